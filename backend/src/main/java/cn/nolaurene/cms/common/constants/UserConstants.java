@@ -10,4 +10,9 @@ public class UserConstants {
      * 用户登录态键
      */
     public static String USER_LOGIN_STATE = "userLoginState";
+
+    /**
+     * 由其他节点路由过来的请求中，已在入口节点校验过的用户ID请求属性键
+     */
+    public static String ROUTED_USER_ID = "routedUserId";
 }
@@ -2,6 +2,8 @@ package cn.nolaurene.cms.common.dto;
 
 import lombok.Data;
 
+import java.util.Map;
+
 /**
  * @author nolaurence
  * @description LLM配置响应对象
@@ -22,4 +24,9 @@ public class LlmConfigResponse {
      * 模型名称
      */
     private String modelName;
+
+    /**
+     * 按阶段配置的模型，key 为 planner / plan_updater / executor / checker / concluder，未配置的阶段使用默认模型
+     */
+    private Map<String, LlmPhaseModelConfig> phaseModels;
 }
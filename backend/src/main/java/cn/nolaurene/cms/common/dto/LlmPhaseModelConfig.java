@@ -0,0 +1,25 @@
+package cn.nolaurene.cms.common.dto;
+
+import lombok.Data;
+
+/**
+ * @author nolaurence
+ * @description 单个agent阶段使用的模型配置，endpoint 和 apiKey 为空时沿用默认配置
+ */
+@Data
+public class LlmPhaseModelConfig {
+    /**
+     * LLM服务端点
+     */
+    private String endpoint;
+
+    /**
+     * API密钥
+     */
+    private String apiKey;
+
+    /**
+     * 模型名称
+     */
+    private String modelName;
+}
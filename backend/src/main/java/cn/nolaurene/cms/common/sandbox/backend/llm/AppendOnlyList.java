@@ -0,0 +1,88 @@
+package cn.nolaurene.cms.common.sandbox.backend.llm;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * @author nolaurence
+ * @date 2026/10/17 下午8:10
+ * @description: list that only grows at the tail and shrinks at the head. Slots of the backing array are written once,
+ * so a snapshot is a (array, from, to) window that never changes and is taken in O(1).
+ */
+final class AppendOnlyList<T> {
+
+    private Object[] elements = new Object[16];
+
+    private int from;
+
+    private int to;
+
+    void add(T element) {
+        if (to == elements.length) {
+            grow();
+        }
+        elements[to++] = element;
+    }
+
+    /**
+     * drop the oldest {@code count} elements, snapshots taken before keep seeing them
+     */
+    void dropFirst(int count) {
+        from += Math.min(Math.max(count, 0), size());
+    }
+
+    @SuppressWarnings("unchecked")
+    T get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+        return (T) elements[from + index];
+    }
+
+    int size() {
+        return to - from;
+    }
+
+    List<T> snapshot() {
+        return new Snapshot<>(elements, from, to);
+    }
+
+    /**
+     * Move to a new array instead of shifting in place, snapshots still hold the old one.
+     */
+    private void grow() {
+        int size = size();
+        Object[] grown = new Object[Math.max(16, size * 2)];
+        System.arraycopy(elements, from, grown, 0, size);
+        elements = grown;
+        from = 0;
+        to = size;
+    }
+
+    private static final class Snapshot<T> extends AbstractList<T> implements RandomAccess {
+        private final Object[] elements;
+        private final int from;
+        private final int to;
+
+        private Snapshot(Object[] elements, int from, int to) {
+            this.elements = elements;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T get(int index) {
+            if (index < 0 || index >= to - from) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + (to - from));
+            }
+            return (T) elements[from + index];
+        }
+
+        @Override
+        public int size() {
+            return to - from;
+        }
+    }
+}
@@ -2,69 +2,286 @@ package cn.nolaurene.cms.common.sandbox.backend.llm;
 
 
 import cn.nolaurene.cms.common.sandbox.backend.model.SSEEventType;
-import cn.nolaurene.cms.common.sandbox.backend.model.data.ToolEventData;
-import com.alibaba.fastjson.JSON;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.TokenCountEstimator;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToIntFunction;
 
 /**
  * @author nolau
  * @date 2025/6/24
- * @description
+ * @description conversation memory of an agent. Messages are immutable and kept in an append-only list,
+ * readers get O(1) snapshots, the langchain4j view is converted incrementally and compaction only moves a watermark.
  */
 public class ChatMemory {
 
-    private final List<ChatMessage> history = new ArrayList<>();
+    private static final String SUMMARY_PREFIX = "Summary of the earlier conversation:\n";
+
+    /**
+     * read and written from the virtual threads of the run, a lock instead of a monitor so they are not pinned
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final AppendOnlyList<ChatMessage> history = new AppendOnlyList<>();
+
+    /**
+     * langchain4j form of the MESSAGE/PLAN/STEP messages of the window, converted once when first requested
+     */
+    private final AppendOnlyList<dev.langchain4j.data.message.ChatMessage> converted = new AppendOnlyList<>();
+
+    /**
+     * window index of each converted message, used to drop conversions of folded messages
+     */
+    private final AppendOnlyList<Integer> convertedSources = new AppendOnlyList<>();
+
+    /**
+     * message each live conversion was made from, its cached token count stands for the conversion
+     */
+    private final Map<dev.langchain4j.data.message.ChatMessage, ChatMessage> conversionSources = new IdentityHashMap<>();
+
+    /**
+     * messages of the window already looked at by the incremental conversion
+     */
+    private int convertedUpTo;
+
+    /**
+     * messages of the window counted as folded by earlier summaries, window indexes are shifted by it
+     */
+    private int folded;
+
+    /**
+     * tool events before this window index are compacted
+     */
+    private int compactedUpTo;
+
+    /**
+     * rolling summary of the messages that were folded out of the window, null when nothing was folded
+     */
+    private String summary;
 
     public void add(ChatMessage message) {
-        history.add(message);
+        lock.lock();
+        try {
+            history.add(message);
+        } finally {
+            lock.unlock();
+        }
     }
 
+    /**
+     * Snapshot of the summary and the window, later changes of the memory are not visible through it.
+     */
     public List<ChatMessage> getHistory() {
-        List<ChatMessage> copy = new ArrayList<>();
-        for (ChatMessage message : history) {
-            ChatMessage cloned = new ChatMessage(message.getRole(), message.getEventType(), message.getContent());
-            copy.add(cloned);
+        lock.lock();
+        try {
+            ChatMessage head = summary == null ? null : summaryMessage();
+            return new MessageSnapshot(head, history.snapshot(), compactedUpTo);
+        } finally {
+            lock.unlock();
         }
-        return copy;
     }
 
     /**
      * Convert history to langchain4j message types.
      * Only converts system/user/assistant messages (skips tool event messages).
+     * Messages added since the previous call are the only ones converted.
      */
     public List<dev.langchain4j.data.message.ChatMessage> toLangchain4jMessages() {
-        return history.stream()
-                .filter(msg -> msg.getRole() != ChatMessage.Role.tool)
-                .filter(msg -> msg.getEventType() == SSEEventType.MESSAGE
-                        || msg.getEventType() == SSEEventType.PLAN
-                        || msg.getEventType() == SSEEventType.STEP)
-                .map(ChatMessage::toLangchain4j)
-                .collect(Collectors.toList());
+        lock.lock();
+        try {
+            for (int idx = convertedUpTo; idx < history.size(); idx++) {
+                ChatMessage message = history.get(idx);
+                if (isSent(message)) {
+                    dev.langchain4j.data.message.ChatMessage conversion = message.toLangchain4j();
+                    converted.add(conversion);
+                    convertedSources.add(folded + idx);
+                    conversionSources.put(conversion, message);
+                }
+            }
+            convertedUpTo = history.size();
+
+            List<dev.langchain4j.data.message.ChatMessage> messages = converted.snapshot();
+            if (summary == null) {
+                return messages;
+            }
+            return new PrefixedList<>(UserMessage.from(SUMMARY_PREFIX + summary), messages);
+        } finally {
+            lock.unlock();
+        }
     }
 
-    public void compact() {
-        for (ChatMessage chatMessage : history) {
-            if (chatMessage.getEventType() == SSEEventType.TOOL) {
-                ToolEventData toolEventData = JSON.parseObject(chatMessage.getContent(), ToolEventData.class);
-                toolEventData.setResult("(removed)");
-                chatMessage.setContent(JSON.toJSONString(toolEventData));
+    /**
+     * Whether the message is part of the model input, tool events are kept for the history only.
+     */
+    public static boolean isSent(ChatMessage message) {
+        if (message.getRole() == ChatMessage.Role.tool) {
+            return false;
+        }
+        SSEEventType eventType = message.getEventType();
+        return eventType == SSEEventType.MESSAGE || eventType == SSEEventType.PLAN || eventType == SSEEventType.STEP;
+    }
+
+    /**
+     * Raw messages still inside the window, without the summary.
+     */
+    public List<ChatMessage> getWindow() {
+        lock.lock();
+        try {
+            return new MessageSnapshot(null, history.snapshot(), compactedUpTo);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String getSummary() {
+        lock.lock();
+        try {
+            return summary;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Fold the oldest {@code count} messages into the rolling summary, the summary replaces any previous one.
+     */
+    public void summarize(int count, String newSummary) {
+        lock.lock();
+        try {
+            int removeCount = Math.min(Math.max(count, 0), history.size());
+            history.dropFirst(removeCount);
+            folded += removeCount;
+            convertedUpTo = Math.max(0, convertedUpTo - removeCount);
+            compactedUpTo = Math.max(0, compactedUpTo - removeCount);
+            int droppedConversions = 0;
+            while (droppedConversions < convertedSources.size() && convertedSources.get(droppedConversions) < folded) {
+                droppedConversions++;
+            }
+            for (int idx = 0; idx < droppedConversions; idx++) {
+                conversionSources.remove(converted.get(idx));
+            }
+            converted.dropFirst(droppedConversions);
+            convertedSources.dropFirst(droppedConversions);
+            this.summary = newSummary;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Refill an empty memory from a checkpoint, the messages are taken as already compacted.
+     */
+    public void restore(String restoredSummary, List<ChatMessage> messages) {
+        lock.lock();
+        try {
+            if (!isEmpty()) {
+                throw new IllegalStateException("memory is not empty");
             }
+            messages.forEach(history::add);
+            this.summary = restoredSummary;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ChatMessage summaryMessage() {
+        return new ChatMessage(ChatMessage.Role.user, SSEEventType.MESSAGE, SUMMARY_PREFIX + summary);
+    }
+
+    /**
+     * Drop the results of the tool events recorded so far. Nothing is rewritten here,
+     * readers see the compacted form of the tool events before the watermark.
+     */
+    public void compact() {
+        lock.lock();
+        try {
+            compactedUpTo = history.size();
+        } finally {
+            lock.unlock();
         }
     }
 
     public boolean isEmpty() {
-        return history.isEmpty();
+        lock.lock();
+        try {
+            return history.size() == 0 && summary == null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 使用 tokenizer 计算发送给模型的上下文token长度，包含滚动摘要，不计入不发送的工具事件
+     */
+    public int calculateTokenCount(TokenCountEstimator estimator) {
+        if (estimator == null) {
+            return calculateTokenCount();
+        }
+        int totalTokens = 0;
+        String currentSummary = getSummary();
+        if (currentSummary != null) {
+            totalTokens += estimator.estimateTokenCountInText(SUMMARY_PREFIX + currentSummary) + 4;
+        }
+        for (ChatMessage message : getWindow()) {
+            if (isSent(message)) {
+                totalTokens += countTokens(message, estimator);
+            }
+        }
+        return totalTokens;
     }
 
     /**
-     * 计算上下文的token长度
+     * Token length of a model input built from this memory. Messages converted by {@link #toLangchain4jMessages()}
+     * use the count cached by their source message, the other ones (prompts, step loop messages) are counted by
+     * {@code others}.
+     */
+    public int estimateTokenCount(List<dev.langchain4j.data.message.ChatMessage> messages, TokenCountEstimator estimator,
+                                  ToIntFunction<dev.langchain4j.data.message.ChatMessage> others) {
+        List<ChatMessage> sources = new ArrayList<>(messages.size());
+        lock.lock();
+        try {
+            for (dev.langchain4j.data.message.ChatMessage message : messages) {
+                sources.add(conversionSources.get(message));
+            }
+        } finally {
+            lock.unlock();
+        }
+        // counted outside the lock, a message seen for the first time is tokenized once here
+        int totalTokens = 0;
+        for (int idx = 0; idx < messages.size(); idx++) {
+            ChatMessage source = sources.get(idx);
+            totalTokens += source != null ? countTokens(source, estimator) : others.applyAsInt(messages.get(idx));
+        }
+        return totalTokens;
+    }
+
+    /**
+     * token length of a single message, 4 extra tokens for the role framing, cached by the message
+     */
+    public static int countTokens(ChatMessage message, TokenCountEstimator estimator) {
+        return message.tokenCount(estimator);
+    }
+
+    /**
+     * 计算发送给模型的上下文token长度（字符启发式估算）
      */
     public int calculateTokenCount() {
         int totalTokens = 0;
-        for (ChatMessage message : history) {
+        String currentSummary = getSummary();
+        if (currentSummary != null) {
+            totalTokens += estimateTokens(currentSummary) + 4;
+        }
+        for (ChatMessage message : getWindow()) {
+            if (!isSent(message)) {
+                continue;
+            }
             if (message.getContent() != null) {
                 totalTokens += estimateTokens(message.getContent());
             }
@@ -108,4 +325,56 @@ public class ChatMemory {
 
         return (int) Math.ceil(chineseCount * 1.5 + englishWordCount * 1.3 + otherCharCount * 0.5);
     }
+
+    /**
+     * window snapshot with an optional summary head, tool events before the watermark are read in compacted form
+     */
+    private static final class MessageSnapshot extends AbstractList<ChatMessage> implements RandomAccess {
+        private final ChatMessage head;
+        private final List<ChatMessage> window;
+        private final int compactedUpTo;
+
+        private MessageSnapshot(ChatMessage head, List<ChatMessage> window, int compactedUpTo) {
+            this.head = head;
+            this.window = window;
+            this.compactedUpTo = compactedUpTo;
+        }
+
+        @Override
+        public ChatMessage get(int index) {
+            if (head != null) {
+                if (index == 0) {
+                    return head;
+                }
+                index--;
+            }
+            ChatMessage message = window.get(index);
+            return index < compactedUpTo ? message.compacted() : message;
+        }
+
+        @Override
+        public int size() {
+            return window.size() + (head == null ? 0 : 1);
+        }
+    }
+
+    private static final class PrefixedList<T> extends AbstractList<T> implements RandomAccess {
+        private final T head;
+        private final List<T> tail;
+
+        private PrefixedList(T head, List<T> tail) {
+            this.head = head;
+            this.tail = tail;
+        }
+
+        @Override
+        public T get(int index) {
+            return index == 0 ? head : tail.get(index - 1);
+        }
+
+        @Override
+        public int size() {
+            return tail.size() + 1;
+        }
+    }
 }
@@ -6,25 +6,41 @@ import dev.langchain4j.data.message.AiMessage;
 import dev.langchain4j.data.message.SystemMessage;
 import dev.langchain4j.data.message.ToolExecutionResultMessage;
 import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.TokenCountEstimator;
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONObject;
+import lombok.AccessLevel;
 import lombok.Getter;
-import lombok.Setter;
 
 /**
  * @author nolau
  * @date 2025/6/24
- * @description
+ * @description immutable memory message, derived forms (langchain4j message, compacted tool event, token count) are computed once
  */
 @Getter
-@Setter
 public class ChatMessage {
 
     public enum Role { system, user, assistant, tool }
 
-    private Role role;
+    private static final String REMOVED_RESULT = "(removed)";
 
-    private String content;
+    private final Role role;
 
-    private SSEEventType eventType;
+    private final String content;
+
+    private final SSEEventType eventType;
+
+    @Getter(AccessLevel.NONE)
+    private transient volatile dev.langchain4j.data.message.ChatMessage langchain4jMessage;
+
+    @Getter(AccessLevel.NONE)
+    private transient volatile ChatMessage compacted;
+
+    /**
+     * token count cached for the last estimator used, memories of one agent always use the same estimator
+     */
+    @Getter(AccessLevel.NONE)
+    private transient volatile TokenCount tokenCount;
 
     public ChatMessage(Role role, String content) {
         this.role = role;
@@ -39,9 +55,61 @@ public class ChatMessage {
     }
 
     /**
-     * Convert to langchain4j message type.
+     * Convert to langchain4j message type, the converted message is cached since both sides are immutable.
      */
     public dev.langchain4j.data.message.ChatMessage toLangchain4j() {
+        dev.langchain4j.data.message.ChatMessage converted = langchain4jMessage;
+        if (converted == null) {
+            converted = convert();
+            langchain4jMessage = converted;
+        }
+        return converted;
+    }
+
+    /**
+     * The message as kept after compaction: tool events lose their result, other messages are returned as is.
+     */
+    public ChatMessage compacted() {
+        if (eventType != SSEEventType.TOOL) {
+            return this;
+        }
+        ChatMessage result = compacted;
+        if (result == null) {
+            result = new ChatMessage(role, eventType, removeToolResult(content));
+            result.compacted = result;
+            compacted = result;
+        }
+        return result;
+    }
+
+    /**
+     * token length of the content plus 4 tokens for the role framing
+     */
+    public int tokenCount(TokenCountEstimator estimator) {
+        // estimator and count are published together, a reader never pairs a count with another estimator
+        TokenCount cached = tokenCount;
+        if (cached == null || cached.estimator != estimator) {
+            cached = new TokenCount(estimator,
+                    (content == null || content.isEmpty() ? 0 : estimator.estimateTokenCountInText(content)) + 4);
+            tokenCount = cached;
+        }
+        return cached.count;
+    }
+
+    private static String removeToolResult(String content) {
+        try {
+            JSONObject toolEvent = JSON.parseObject(content);
+            if (toolEvent == null || REMOVED_RESULT.equals(toolEvent.get("result"))) {
+                return content;
+            }
+            toolEvent.put("result", REMOVED_RESULT);
+            return toolEvent.toJSONString();
+        } catch (Exception e) {
+            return content;
+        }
+    }
+
+    private dev.langchain4j.data.message.ChatMessage convert() {
         switch (role) {
             case system:
                 return SystemMessage.from(content != null ? content : "");
@@ -69,4 +137,14 @@ public class ChatMessage {
         }
         throw new IllegalArgumentException("Unsupported langchain4j message type: " + msg.getClass());
     }
+
+    private static final class TokenCount {
+        private final TokenCountEstimator estimator;
+        private final int count;
+
+        private TokenCount(TokenCountEstimator estimator, int count) {
+            this.estimator = estimator;
+            this.count = count;
+        }
+    }
 }
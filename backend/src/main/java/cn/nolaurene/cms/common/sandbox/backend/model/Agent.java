@@ -1,15 +1,19 @@
 package cn.nolaurene.cms.common.sandbox.backend.model;
 
 
+import cn.nolaurene.cms.common.dto.LlmPhaseModelConfig;
+import cn.nolaurene.cms.service.sandbox.backend.agent.AgentContext;
 import cn.nolaurene.cms.service.sandbox.backend.agent.Executor;
 import cn.nolaurene.cms.service.sandbox.backend.agent.Planner;
 import cn.nolaurene.cms.service.sandbox.backend.tool.Tool;
+import cn.nolaurene.cms.service.sandbox.backend.tool.ToolResultCache;
 import dev.langchain4j.agent.tool.ToolSpecification;
 import dev.langchain4j.mcp.client.McpClient;
 import dev.langchain4j.mcp.McpToolProvider;
 import lombok.Data;
 
 import java.util.List;
+import java.util.Map;
 
 /**
  * @author nolau
@@ -40,13 +44,31 @@ public class Agent {
 
     private String llmModelName;
 
-    private McpClient browserMcpClient;
+    /**
+     * 按阶段配置的模型，未配置的阶段使用默认模型
+     */
+    private Map<String, LlmPhaseModelConfig> llmPhaseModels;
 
-    private McpClient nativeMcpClient;
+    /**
+     * 心跳检查连续失败后由会话替换为新的连接，工具调用在其他线程读取
+     */
+    private volatile McpClient browserMcpClient;
 
-    private McpToolProvider toolProvider;
+    private volatile McpClient nativeMcpClient;
+
+    private volatile McpToolProvider toolProvider;
 
     private List<ToolSpecification> toolSpecifications;
 
     private List<Tool> vanillaTools;
+
+    /**
+     * 会话内只读工具调用的结果缓存
+     */
+    private final ToolResultCache toolResultCache = new ToolResultCache();
+
+    /**
+     * 会话内的工具使用情况，用于按步骤选择工具族
+     */
+    private final AgentContext agentContext = new AgentContext();
 }
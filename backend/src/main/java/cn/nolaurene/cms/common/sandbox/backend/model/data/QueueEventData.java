@@ -0,0 +1,16 @@
+package cn.nolaurene.cms.common.sandbox.backend.model.data;
+
+import lombok.Data;
+
+@Data
+public class QueueEventData {
+
+    private long timestamp;
+
+    /**
+     * 1-based position of the run in the dispatch order, 0 once the run starts
+     */
+    private int position;
+
+    private String message;
+}
@@ -5,6 +5,9 @@ import cn.nolaurene.cms.common.sandbox.Response;
 import cn.nolaurene.cms.common.sandbox.backend.model.Agent;
 import cn.nolaurene.cms.common.sandbox.backend.model.AgentInfo;
 import cn.nolaurene.cms.common.sandbox.backend.model.FileViewResponse;
+import cn.nolaurene.cms.common.sandbox.backend.model.SSEEventType;
+import cn.nolaurene.cms.common.sandbox.backend.model.data.ErrorEventData;
+import cn.nolaurene.cms.common.sandbox.backend.model.data.QueueEventData;
 import cn.nolaurene.cms.common.sandbox.backend.req.ChatRequest;
 import cn.nolaurene.cms.common.vo.User;
 import cn.nolaurene.cms.dal.entity.LlmConfigDO;
@@ -12,14 +15,20 @@ import cn.nolaurene.cms.exception.BusinessException;
 import cn.nolaurene.cms.service.AgentSessionServerService;
 import cn.nolaurene.cms.service.UserLoginService;
 import cn.nolaurene.cms.service.LlmConfigService;
+import cn.nolaurene.cms.service.sandbox.backend.agent.AgentCheckpoint;
 import cn.nolaurene.cms.service.sandbox.backend.agent.AgentSessionFactory;
+import cn.nolaurene.cms.service.sandbox.backend.message.AgentCheckpointService;
 import cn.nolaurene.cms.service.sandbox.backend.message.ConversationHistoryService;
 import cn.nolaurene.cms.common.dto.ConversationRequest;
+import cn.nolaurene.cms.common.dto.LlmPhaseModelConfig;
 import cn.nolaurene.cms.dal.enhance.entity.ConversationHistoryDO;
 import cn.nolaurene.cms.service.sandbox.backend.agent.AgentSession;
+import cn.nolaurene.cms.service.sandbox.backend.AgentRunScheduler;
+import cn.nolaurene.cms.service.sandbox.backend.ListenableSseEmitter;
 import cn.nolaurene.cms.service.sandbox.backend.McpHeartbeatService;
 import cn.nolaurene.cms.service.sandbox.backend.message.ConversationHistoryService;
 import cn.nolaurene.cms.service.sandbox.backend.SseMessageForwardService;
+import cn.nolaurene.cms.service.sandbox.backend.session.AgentPlacementService;
 import cn.nolaurene.cms.service.sandbox.backend.session.GlobalAgentSessionManager;
 import com.alibaba.fastjson2.JSON;
 import dev.langchain4j.agent.tool.ToolExecutionRequest;
@@ -35,18 +44,17 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
-import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.time.Duration;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @author nolau
@@ -69,9 +77,6 @@ public class AgentController {
     @Value("${sandbox.backend.sse-timeout-ms}")
     private long sseTimeout;
 
-    @Value("${sandbox.backend.max-threads}")
-    private int maxThreads;
-
     @Value("${sandbox.backend.worker-url}")
     private String workerUrl;
 
@@ -96,8 +101,6 @@ public class AgentController {
     @Resource
     private AgentSessionFactory agentSessionFactory;
 
-    private ThreadPoolExecutor executor;
-
     @Resource
     private ConversationHistoryService conversationHistoryService;
 
@@ -113,16 +116,14 @@ public class AgentController {
     @Resource
     private SseMessageForwardService sseMessageForwardService;
 
-    @PostConstruct
-    public void initThreadPool() {
-        executor = new ThreadPoolExecutor(
-                maxThreads,              // 核心线程数（固定大小）
-                maxThreads,              // 最大线程数（与核心线程数相同）
-                0L,             // 保持空闲线程的时间
-                TimeUnit.SECONDS,
-                new LinkedBlockingQueue<Runnable>() // 任务队列
-        );
-    }
+    @Resource
+    private AgentRunScheduler agentRunScheduler;
+
+    @Resource
+    private AgentCheckpointService agentCheckpointService;
+
+    @Resource
+    private AgentPlacementService agentPlacementService;
 
     /**
      * 创建Agent
@@ -134,37 +135,12 @@ public class AgentController {
         if (null == currentUserInfo) {
             return Response.error("未登录", null);
         }
-        String agentId = UUID.randomUUID().toString().replace("-", "");
-
-        // 从数据库获取用户自定义的LLM配置，如果没有则使用默认配置
-        LlmConfigDO llmConfig = llmConfigService.getByUserId(currentUserInfo.getUserid());
-
-        String endpoint = siliconFlowEndpoint;
-        String apiKey = siliconFlowApiKey;
-        String modelName = null;
-
-        if (llmConfig != null &&
-            StringUtils.isNotBlank(llmConfig.getEndpoint()) &&
-            StringUtils.isNotBlank(llmConfig.getApiKey())) {
-            endpoint = llmConfig.getEndpoint();
-            apiKey = llmConfig.getApiKey();
-            modelName = llmConfig.getModelName();
-            log.info("Using custom LLM config from database for user {}: endpoint={}, modelName={}",
-                    currentUserInfo.getUserid(), endpoint, modelName);
-        }
+        // 选择落在本节点上的 agentId，创建会话的节点即负责该 agent 的节点
+        String agentId = agentPlacementService.newAgentId();
 
         // 重试三次
         for (int i = 0; i < MAX_RETRIES; i++) {
-            Agent agent = new Agent();
-            agent.setUserId(null != currentUserInfo ? currentUserInfo.getUserid().toString() : "anonymous");
-            agent.setAgentId(agentId);
-            agent.setMaxLoop(maxLoop);
-            agent.setExecutionMaxLoop(maxExecutionLoop);
-            agent.setStatus("CREATED");
-            agent.setMessage("Creating agent session...");
-            agent.setLlmEndpoint(endpoint);
-            agent.setLlmApiKey(apiKey);
-            agent.setLlmModelName(modelName);
+            Agent agent = buildAgent(agentId, currentUserInfo.getUserid());
 
             AgentSession agentSession = agentSessionFactory.createAgentSession(agent, workerUrl, sseEndpoint);
 
@@ -188,6 +164,56 @@ public class AgentController {
         return Response.error("Failed to create agent after 3 attempts.", null);
     }
 
+    /**
+     * agent entity of the user, the LLM config of the user is used when there is one, otherwise the default one
+     */
+    private Agent buildAgent(String agentId, Long userId) {
+        // 从数据库获取用户自定义的LLM配置，如果没有则使用默认配置
+        LlmConfigDO llmConfig = llmConfigService.getByUserId(userId);
+
+        String endpoint = siliconFlowEndpoint;
+        String apiKey = siliconFlowApiKey;
+        String modelName = null;
+        Map<String, LlmPhaseModelConfig> phaseModels = Collections.emptyMap();
+
+        if (llmConfig != null &&
+            StringUtils.isNotBlank(llmConfig.getEndpoint()) &&
+            StringUtils.isNotBlank(llmConfig.getApiKey())) {
+            endpoint = llmConfig.getEndpoint();
+            apiKey = llmConfig.getApiKey();
+            modelName = llmConfig.getModelName();
+            phaseModels = llmConfigService.parsePhaseModels(llmConfig);
+            log.info("Using custom LLM config from database for user {}: endpoint={}, modelName={}",
+                    userId, endpoint, modelName);
+        }
+
+        Agent agent = new Agent();
+        agent.setUserId(null != userId ? userId.toString() : "anonymous");
+        agent.setAgentId(agentId);
+        agent.setMaxLoop(maxLoop);
+        agent.setExecutionMaxLoop(maxExecutionLoop);
+        agent.setStatus("CREATED");
+        agent.setMessage("Creating agent session...");
+        agent.setLlmEndpoint(endpoint);
+        agent.setLlmApiKey(apiKey);
+        agent.setLlmModelName(modelName);
+        agent.setLlmPhaseModels(phaseModels);
+        return agent;
+    }
+
+    /**
+     * 本节点上 agent 的会话，被回收的会话重新连接 worker，对话记忆在下次运行时从持久化的历史中恢复。
+     * 从未创建过的 agent 没有归属记录，返回 null
+     */
+    private AgentSession obtainSession(String agentId, Long userId) {
+        return globalAgentSessionManager.getOrRehydrate(agentId, () -> {
+            if (agentSessionServerService.getOwner(agentId) == null) {
+                return null;
+            }
+            return agentSessionFactory.createAgentSession(buildAgent(agentId, userId), workerUrl, sseEndpoint);
+        });
+    }
+
     @PostMapping("/{agentId}/chat")
     public SseEmitter chat(@PathVariable String agentId, @RequestBody ChatRequest request, HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse) {
         User currentUserInfo = userLoginService.getCurrentUserInfo(httpServletRequest);
@@ -197,11 +223,18 @@ public class AgentController {
         String userId = currentUserInfo.getUserid().toString();
 
         // 让浏览器知道这是一个SSE流
-        SseEmitter sseEmitter = new SseEmitter(sseTimeout);
+        SseEmitter sseEmitter = new ListenableSseEmitter(sseTimeout);
         httpServletResponse.setContentType("text/event-stream");
 
-        executor.submit(() -> {
-            AgentSession agentSession = globalAgentSessionManager.getSession(agentId);
+        Runnable run = () -> {
+            AgentSession agentSession;
+            try {
+                agentSession = obtainSession(agentId, currentUserInfo.getUserid());
+            } catch (Exception e) {
+                log.error("Failed to rehydrate agent session {}", agentId, e);
+                sseEmitter.completeWithError(e);
+                return;
+            }
             try {
                 Thread.sleep(1000L);
             } catch (InterruptedException e) {
@@ -242,10 +275,138 @@ public class AgentController {
             } catch (Exception e) {
                 sseEmitter.completeWithError(e);
             }
-        });
+        };
+
+        return submitRun(agentId, userId, run, sseEmitter);
+    }
+
+    /**
+     * 从最近的检查点恢复中断的运行，可以在任意节点调用，本节点没有会话时重新创建
+     */
+    @PostMapping("/{agentId}/resume")
+    public SseEmitter resume(@PathVariable String agentId, HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse) {
+        User currentUserInfo = userLoginService.getCurrentUserInfo(httpServletRequest);
+        if (null == currentUserInfo) {
+            throw new BusinessException("未登录", null);
+        }
+        String userId = currentUserInfo.getUserid().toString();
+
+        SseEmitter sseEmitter = new ListenableSseEmitter(sseTimeout);
+        httpServletResponse.setContentType("text/event-stream");
+
+        AgentCheckpoint checkpoint = agentCheckpointService.getByAgentId(agentId);
+        String rejection = null;
+        if (checkpoint == null || !AgentCheckpoint.RUNNING.equals(checkpoint.getRunStatus())) {
+            rejection = "没有可恢复的运行";
+        } else if (!userId.equals(checkpoint.getUserId())) {
+            rejection = "无权恢复该运行";
+        } else if (agentCheckpointService.isOwnedByLiveRun(checkpoint)) {
+            rejection = "该运行仍在节点 " + checkpoint.getServerIp() + " 上执行";
+        } else if (!agentCheckpointService.claim(checkpoint)) {
+            // another resume claimed the run first, or its node renewed the lease since it was read
+            rejection = "该运行已由其他请求恢复";
+        }
+        if (rejection != null) {
+            log.warn("Agent resume rejected: agentId={}, userId={}, reason={}", agentId, userId, rejection);
+            sendErrorEvent(sseEmitter, rejection);
+            sseEmitter.complete();
+            return sseEmitter;
+        }
+
+        Runnable run = () -> {
+            try {
+                // the node that ran the agent is gone or the session was evicted, connect a new session to the worker here
+                AgentSession agentSession = globalAgentSessionManager.getOrRehydrate(agentId,
+                        () -> agentSessionFactory.createAgentSession(buildAgent(agentId, currentUserInfo.getUserid()), workerUrl, sseEndpoint));
+                agentSession.getAgent().setUserId(userId);
+                agentSessionServerService.saveOrUpdate(agentId, agentSessionServerService.getCurrentServerIp(), Integer.valueOf(serverPort));
+                agentSession.setConversationPersistence(conversationHistoryService, userId, agentId);
+                agentSession.resumeFromCheckpoint(checkpoint, sseEmitter);
+            } catch (Exception e) {
+                log.error("Failed to resume agent {}", agentId, e);
+                sseEmitter.completeWithError(e);
+            }
+        };
+        return submitRun(agentId, userId, run, sseEmitter);
+    }
+
+    private SseEmitter submitRun(String agentId, String userId, Runnable run, SseEmitter sseEmitter) {
+        // a client leaving the queue frees its slot, registered before the run may start so nothing is missed,
+        // the emitter keeps these next to the listeners the session adds once the run starts
+        AtomicReference<AgentRunScheduler.Ticket> submitted = new AtomicReference<>();
+        AtomicBoolean clientGone = new AtomicBoolean(false);
+        Runnable cancel = () -> {
+            clientGone.set(true);
+            AgentRunScheduler.Ticket ticket = submitted.get();
+            if (ticket != null) {
+                ticket.cancel();
+            }
+        };
+        sseEmitter.onCompletion(cancel);
+        sseEmitter.onTimeout(cancel);
+        sseEmitter.onError(error -> cancel.run());
+
+        AgentRunScheduler.Ticket ticket;
+        try {
+            ticket = agentRunScheduler.submit(userId, run, position -> sendQueueEvent(agentId, sseEmitter, position));
+        } catch (BusinessException e) {
+            // rejected before anything ran, tell the client why and close the stream
+            log.warn("Agent run rejected: agentId={}, userId={}, reason={}", agentId, userId, e.getMessage());
+            sendErrorEvent(sseEmitter, e.getMessage());
+            sseEmitter.complete();
+            return sseEmitter;
+        }
+        submitted.set(ticket);
+        if (clientGone.get()) {
+            // the client went away while the run was being submitted
+            ticket.cancel();
+        }
         return sseEmitter;
     }
 
+    /**
+     * Queue position of the run, sent like the other events of the agent: forwarded when another node owns it.
+     */
+    private void sendQueueEvent(String agentId, SseEmitter sseEmitter, int position) {
+        QueueEventData data = new QueueEventData();
+        data.setTimestamp(System.currentTimeMillis());
+        data.setPosition(position);
+        data.setMessage(position > 0 ? "任务排队中，当前第 " + position + " 位" : "任务开始执行");
+        String eventData = JSON.toJSONString(data);
+        try {
+            AgentSessionServerService.Owner owner = agentSessionServerService.getOwner(agentId);
+            if (owner != null && owner.getServerIp() != null
+                    && !owner.getServerIp().equals(agentSessionServerService.getCurrentServerIp())) {
+                sseMessageForwardService.forwardMessage(owner.getServerIp(), owner.getServerPort(), agentId,
+                        SSEEventType.QUEUE.getType(), eventData);
+                return;
+            }
+            sseEmitter.send(SseEmitter.event()
+                    .name(SSEEventType.QUEUE.getType())
+                    .data(eventData)
+                    .id(String.valueOf(System.currentTimeMillis())));
+        } catch (Exception e) {
+            log.warn("Failed to send queue event: {}", e.getMessage());
+        }
+    }
+
+    private void sendErrorEvent(SseEmitter sseEmitter, String error) {
+        ErrorEventData data = new ErrorEventData();
+        data.setTimestamp(System.currentTimeMillis());
+        data.setError(error);
+        try {
+            sseEmitter.send(SseEmitter.event()
+                    .name(SSEEventType.ERROR.getType())
+                    .data(JSON.toJSONString(data))
+                    .id(String.valueOf(System.currentTimeMillis())));
+        } catch (Exception e) {
+            log.warn("Failed to send error event: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 单条事件的 HTTP 转发入口，节点间默认走 {@link cn.nolaurene.cms.service.sandbox.backend.SseForwardReceiver} 的 WebSocket 通道
+     */
     @PostMapping("/{agentId}/forward")
     public Response<String> forwardMessage(@PathVariable String agentId, @RequestBody SseMessageForwardService.ForwardRequest request) {
         AgentSession agentSession = globalAgentSessionManager.getSession(agentId);
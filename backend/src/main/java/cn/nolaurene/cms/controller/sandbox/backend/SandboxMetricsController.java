@@ -0,0 +1,162 @@
+package cn.nolaurene.cms.controller.sandbox.backend;
+
+import cn.nolaurene.cms.common.vo.BaseWebResult;
+import cn.nolaurene.cms.service.sandbox.backend.AgentRunScheduler;
+import cn.nolaurene.cms.service.sandbox.backend.AgentThreads;
+import cn.nolaurene.cms.service.sandbox.backend.McpHeartbeatService;
+import cn.nolaurene.cms.service.sandbox.backend.SseForwardReceiver;
+import cn.nolaurene.cms.service.sandbox.backend.SseMessageForwardService;
+import cn.nolaurene.cms.service.sandbox.backend.llm.ChatModelRegistry;
+import cn.nolaurene.cms.service.sandbox.backend.llm.LlmAdmissionController;
+import cn.nolaurene.cms.service.sandbox.backend.llm.LlmHedgingPolicy;
+import cn.nolaurene.cms.service.sandbox.backend.llm.LlmUsageRecorder;
+import cn.nolaurene.cms.service.sandbox.backend.llm.LlmUsageStats;
+import cn.nolaurene.cms.service.sandbox.backend.session.AgentPlacementService;
+import cn.nolaurene.cms.service.sandbox.backend.session.AgentSessionPool;
+import cn.nolaurene.cms.service.sandbox.backend.session.GlobalAgentSessionManager;
+import cn.nolaurene.cms.service.sandbox.backend.tool.ToolResultMemoizer;
+import cn.nolaurene.cms.service.sandbox.backend.tool.ToolSpecRegistry;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author nolaurence
+ * @date 2026/10/17 下午5:40
+ * @description: sandbox backend 运行指标
+ */
+@RestController
+@Tag(name = "sandbox 运行指标")
+@RequestMapping("/maintenance/sandbox")
+public class SandboxMetricsController {
+
+    @Resource
+    private LlmUsageRecorder llmUsageRecorder;
+
+    @Resource
+    private ChatModelRegistry chatModelRegistry;
+
+    @Resource
+    private LlmAdmissionController llmAdmissionController;
+
+    @Resource
+    private LlmHedgingPolicy llmHedgingPolicy;
+
+    @Resource
+    private AgentThreads agentThreads;
+
+    @Resource
+    private AgentRunScheduler agentRunScheduler;
+
+    @Resource
+    private ToolResultMemoizer toolResultMemoizer;
+
+    @Resource
+    private ToolSpecRegistry toolSpecRegistry;
+
+    @Resource
+    private AgentSessionPool agentSessionPool;
+
+    @Resource
+    private SseMessageForwardService sseMessageForwardService;
+
+    @Resource
+    private SseForwardReceiver sseForwardReceiver;
+
+    @Resource
+    private AgentPlacementService agentPlacementService;
+
+    @Resource
+    private GlobalAgentSessionManager globalAgentSessionManager;
+
+    @Resource
+    private McpHeartbeatService mcpHeartbeatService;
+
+    @GetMapping("/llm-usage")
+    @Operation(summary = "按模型统计的token用量与prefix cache命中率")
+    public BaseWebResult<List<LlmUsageStats>> getLlmUsage() {
+        return BaseWebResult.success(llmUsageRecorder.snapshot());
+    }
+
+    @GetMapping("/llm-pool")
+    @Operation(summary = "共享ChatModel实例与HTTP连接池统计")
+    public BaseWebResult<Map<String, Object>> getLlmPool() {
+        return BaseWebResult.success(chatModelRegistry.stats());
+    }
+
+    @GetMapping("/llm-admission")
+    @Operation(summary = "各LLM endpoint的排队深度、等待时间与限流统计")
+    public BaseWebResult<List<Map<String, Object>>> getLlmAdmission() {
+        return BaseWebResult.success(llmAdmissionController.stats());
+    }
+
+    @GetMapping("/llm-hedge")
+    @Operation(summary = "各阶段LLM调用的对冲率、超时次数与尾延迟")
+    public BaseWebResult<List<Map<String, Object>>> getLlmHedge() {
+        return BaseWebResult.success(llmHedgingPolicy.stats());
+    }
+
+    @GetMapping("/agent-threads")
+    @Operation(summary = "agent 运行数、排队数与各 worker 的并发工具调用")
+    public BaseWebResult<Map<String, Object>> getAgentThreads() {
+        return BaseWebResult.success(agentThreads.stats());
+    }
+
+    @GetMapping("/agent-runs")
+    @Operation(summary = "agent 运行调度：执行中、排队与拒绝数，及各用户的份额")
+    public BaseWebResult<Map<String, Object>> getAgentRuns() {
+        return BaseWebResult.success(agentRunScheduler.stats());
+    }
+
+    @GetMapping("/tool-cache")
+    @Operation(summary = "会话内只读工具调用缓存的命中率与失效次数")
+    public BaseWebResult<Map<String, Object>> getToolCache() {
+        return BaseWebResult.success(toolResultMemoizer.stats());
+    }
+
+    @GetMapping("/tool-specs")
+    @Operation(summary = "各 worker endpoint 共享的工具列表版本与内容哈希")
+    public BaseWebResult<List<Map<String, Object>>> getToolSpecs() {
+        return BaseWebResult.success(toolSpecRegistry.stats());
+    }
+
+    @GetMapping("/session-pool")
+    @Operation(summary = "各 worker endpoint 预连接会话池的空闲数与命中率")
+    public BaseWebResult<List<Map<String, Object>>> getSessionPool() {
+        return BaseWebResult.success(agentSessionPool.stats());
+    }
+
+    @GetMapping("/sessions")
+    @Operation(summary = "本节点 agent 会话数，空闲回收、超限回收与重新连接次数")
+    public BaseWebResult<Map<String, Object>> getSessions() {
+        return BaseWebResult.success(globalAgentSessionManager.stats());
+    }
+
+    @GetMapping("/mcp-heartbeat")
+    @Operation(summary = "MCP 客户端健康状态、检查延迟与重连次数")
+    public BaseWebResult<Map<String, Object>> getMcpHeartbeat() {
+        return BaseWebResult.success(mcpHeartbeatService.stats());
+    }
+
+    @GetMapping("/sse-forward")
+    @Operation(summary = "节点间事件转发通道的缓冲、批次与丢弃数")
+    public BaseWebResult<Map<String, Object>> getSseForward() {
+        Map<String, Object> result = new HashMap<>();
+        result.put("peers", sseMessageForwardService.stats());
+        result.put("received", sseForwardReceiver.stats());
+        return BaseWebResult.success(result);
+    }
+
+    @GetMapping("/placement")
+    @Operation(summary = "存活节点组成的一致性哈希环")
+    public BaseWebResult<Map<String, Object>> getPlacement() {
+        return BaseWebResult.success(agentPlacementService.stats());
+    }
+}
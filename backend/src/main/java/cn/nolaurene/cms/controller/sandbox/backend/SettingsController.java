@@ -2,11 +2,13 @@ package cn.nolaurene.cms.controller.sandbox.backend;
 
 import cn.nolaurene.cms.common.dto.LlmConfigRequest;
 import cn.nolaurene.cms.common.dto.LlmConfigResponse;
+import cn.nolaurene.cms.common.dto.LlmPhaseModelConfig;
 import cn.nolaurene.cms.common.vo.BaseWebResult;
 import cn.nolaurene.cms.common.vo.User;
 import cn.nolaurene.cms.dal.entity.LlmConfigDO;
 import cn.nolaurene.cms.service.LlmConfigService;
 import cn.nolaurene.cms.service.UserLoginService;
+import cn.nolaurene.cms.service.sandbox.backend.llm.LlmPhase;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.tags.Tag;
 import lombok.extern.slf4j.Slf4j;
@@ -15,6 +17,8 @@ import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
 import javax.servlet.http.HttpServletRequest;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * @author nolaurence
@@ -49,6 +53,7 @@ public class SettingsController {
             config.setEndpoint(configDO.getEndpoint());
             config.setApiKey(configDO.getApiKey());
             config.setModelName(configDO.getModelName());
+            config.setPhaseModels(llmConfigService.parsePhaseModels(configDO));
         } else {
             // 返回空配置
             config.setEndpoint("");
@@ -66,6 +71,25 @@ public class SettingsController {
         if (request == null || StringUtils.isAnyBlank(request.getEndpoint(), request.getApiKey(), request.getModelName())) {
             return BaseWebResult.fail("配置参数不能为空");
         }
+        // 请求中没有 phaseModels 时保留已有的按阶段配置
+        Map<String, LlmPhaseModelConfig> phaseModels = request.getPhaseModels() == null ? null : new HashMap<>();
+        if (request.getPhaseModels() != null) {
+            for (Map.Entry<String, LlmPhaseModelConfig> entry : request.getPhaseModels().entrySet()) {
+                LlmPhaseModelConfig phaseConfig = entry.getValue();
+                // 未填写模型名的阶段视为使用默认模型
+                if (phaseConfig == null || StringUtils.isBlank(phaseConfig.getModelName())) {
+                    continue;
+                }
+                if (LlmPhase.fromCode(entry.getKey()) == null) {
+                    return BaseWebResult.fail("不支持的阶段: " + entry.getKey());
+                }
+                LlmPhaseModelConfig normalized = new LlmPhaseModelConfig();
+                normalized.setEndpoint(StringUtils.trimToNull(phaseConfig.getEndpoint()));
+                normalized.setApiKey(StringUtils.trimToNull(phaseConfig.getApiKey()));
+                normalized.setModelName(phaseConfig.getModelName().trim());
+                phaseModels.put(entry.getKey().toLowerCase(), normalized);
+            }
+        }
 
         // 获取当前用户
         User currentUser = userLoginService.getCurrentUserInfo(httpRequest);
@@ -79,7 +103,8 @@ public class SettingsController {
                 currentUser.getUserid(),
                 request.getEndpoint().trim(),
                 request.getApiKey().trim(),
-                request.getModelName().trim()
+                request.getModelName().trim(),
+                phaseModels
             );
             
             log.info("用户更新LLM配置: userId={}, endpoint={}, modelName={}", 
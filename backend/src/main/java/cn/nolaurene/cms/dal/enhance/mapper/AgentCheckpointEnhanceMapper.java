@@ -0,0 +1,35 @@
+package cn.nolaurene.cms.dal.enhance.mapper;
+
+import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.Date;
+
+/**
+ * 检查点租约的续约、接管与存活判断都使用数据库时间，各节点本地时钟的偏差不影响运行归属
+ */
+@Mapper
+public interface AgentCheckpointEnhanceMapper {
+
+    /**
+     * 续约本节点持有的检查点
+     * @return 0 表示检查点不存在或已不属于该节点
+     */
+    int renewLease(@Param("agentId") String agentId,
+                   @Param("serverIp") String serverIp);
+
+    /**
+     * 接管检查点，只匹配读取时的节点和更新时间
+     */
+    int claim(@Param("agentId") String agentId,
+              @Param("fromServerIp") String fromServerIp,
+              @Param("gmtModified") Date gmtModified,
+              @Param("toServerIp") String toServerIp);
+
+    /**
+     * 统计 serverIp 写入、仍在运行且 staleAfterMs 内续约过的检查点
+     */
+    int countLive(@Param("agentId") String agentId,
+                  @Param("serverIp") String serverIp,
+                  @Param("staleAfterMs") long staleAfterMs);
+}
@@ -0,0 +1,25 @@
+package cn.nolaurene.cms.dal.enhance.mapper;
+
+import cn.nolaurene.cms.dal.entity.BackendNodeDO;
+import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
+
+/**
+ * 节点心跳的写入与存活判断都使用数据库时间，各节点本地时钟的偏差不影响成员判断
+ */
+@Mapper
+public interface BackendNodeEnhanceMapper {
+
+    /**
+     * 写入本节点心跳，不存在时插入
+     */
+    int heartbeat(@Param("serverIp") String serverIp,
+                  @Param("serverPort") Integer serverPort);
+
+    /**
+     * 查询心跳在 ttlMs 内更新过的节点
+     */
+    List<BackendNodeDO> selectLive(@Param("ttlMs") long ttlMs);
+}
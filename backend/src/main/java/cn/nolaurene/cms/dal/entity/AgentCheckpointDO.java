@@ -0,0 +1,48 @@
+package cn.nolaurene.cms.dal.entity;
+
+import io.mybatis.provider.Entity.Column;
+import io.mybatis.provider.Entity.Table;
+import lombok.Data;
+
+import java.util.Date;
+
+@Data
+@Table("agent_checkpoint")
+public class AgentCheckpointDO {
+
+    @Column(id = true, remark = "主键", updatable = false, insertable = false)
+    private Long id;
+
+    @Column("agent_id")
+    private String agentId;
+
+    @Column("user_id")
+    private String userId;
+
+    @Column("input")
+    private String input;
+
+    @Column("agent_status")
+    private String agentStatus;
+
+    @Column("round")
+    private Integer round;
+
+    @Column("plan")
+    private String plan;
+
+    @Column("memory")
+    private String memory;
+
+    @Column("run_status")
+    private String runStatus;
+
+    @Column("server_ip")
+    private String serverIp;
+
+    @Column("gmt_create")
+    private Date gmtCreate;
+
+    @Column("gmt_modified")
+    private Date gmtModified;
+}
@@ -44,6 +44,12 @@ public class LlmConfigDO {
     @Column("model_name")
     private String modelName;
 
+    /**
+     * 按阶段配置的模型（JSON），key 为 planner / plan_updater / executor / checker / concluder
+     */
+    @Column("phase_models")
+    private String phaseModels;
+
     /**
      * 创建时间
      */
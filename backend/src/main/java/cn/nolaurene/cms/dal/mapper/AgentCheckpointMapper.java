@@ -0,0 +1,7 @@
+package cn.nolaurene.cms.dal.mapper;
+
+import cn.nolaurene.cms.dal.entity.AgentCheckpointDO;
+import io.mybatis.mapper.Mapper;
+
+public interface AgentCheckpointMapper extends Mapper<AgentCheckpointDO, Long> {
+}
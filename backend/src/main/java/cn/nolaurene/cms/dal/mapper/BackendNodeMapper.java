@@ -0,0 +1,7 @@
+package cn.nolaurene.cms.dal.mapper;
+
+import cn.nolaurene.cms.dal.entity.BackendNodeDO;
+import io.mybatis.mapper.Mapper;
+
+public interface BackendNodeMapper extends Mapper<BackendNodeDO, Long> {
+}
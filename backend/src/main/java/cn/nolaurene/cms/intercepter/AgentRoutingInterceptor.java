@@ -0,0 +1,172 @@
+package cn.nolaurene.cms.intercepter;
+
+import cn.nolaurene.cms.common.constants.UserConstants;
+import cn.nolaurene.cms.common.vo.User;
+import cn.nolaurene.cms.service.UserLoginService;
+import cn.nolaurene.cms.service.sandbox.backend.session.AgentPlacementService;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * @author nolaurence
+ * @date 2026/10/17 下午9:20
+ * @description: requests of an agent that another node serves are proxied to that node, SSE responses are streamed
+ * back as they arrive. The entry node passes the signed in user along, the serving node trusts it only from a live node.
+ */
+@Slf4j
+@Component
+public class AgentRoutingInterceptor implements HandlerInterceptor {
+
+    public static final String ROUTED_BY_HEADER = "X-Agent-Routed-By";
+
+    public static final String ROUTED_USER_HEADER = "X-Agent-Routed-User";
+
+    private static final Pattern AGENT_PATH = Pattern.compile("^/agents/([0-9a-zA-Z]+)(/.*)?$");
+
+    private static final Set<String> SKIPPED_HEADERS = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+
+    static {
+        Collections.addAll(SKIPPED_HEADERS, "Host", "Connection", "Keep-Alive", "Proxy-Connection", "Transfer-Encoding",
+                "TE", "Trailer", "Upgrade", "Content-Length", ROUTED_BY_HEADER, ROUTED_USER_HEADER);
+    }
+
+    @Value("${sandbox.backend.sse-timeout-ms}")
+    private int sseTimeout;
+
+    @Value("${sandbox.backend.placement.max-proxy-connections:200}")
+    private int maxProxyConnections;
+
+    @Resource
+    private AgentPlacementService agentPlacementService;
+
+    @Resource
+    private UserLoginService userLoginService;
+
+    private CloseableHttpClient httpClient;
+
+    @PostConstruct
+    public void init() {
+        httpClient = HttpClients.custom()
+                .setMaxConnTotal(maxProxyConnections)
+                .setMaxConnPerRoute(maxProxyConnections)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(5000)
+                        .setSocketTimeout(sseTimeout)
+                        .build())
+                .disableRedirectHandling()
+                .disableContentCompression()
+                .build();
+    }
+
+    @PreDestroy
+    public void shutdown() throws IOException {
+        httpClient.close();
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        Matcher matcher = AGENT_PATH.matcher(request.getRequestURI());
+        if (!matcher.matches()) {
+            return true;
+        }
+        if (request.getHeader(ROUTED_BY_HEADER) != null) {
+            // placed here by a peer, served here even if the ring moved meanwhile so a request never takes a second hop
+            String routedUser = request.getHeader(ROUTED_USER_HEADER);
+            if (StringUtils.isNumeric(routedUser) && agentPlacementService.isMemberAddress(request.getRemoteAddr())) {
+                request.setAttribute(UserConstants.ROUTED_USER_ID, Long.valueOf(routedUser));
+            }
+            return true;
+        }
+        String agentId = matcher.group(1);
+        String node = agentPlacementService.nodeOf(agentId);
+        if (agentPlacementService.isLocalNode(node)) {
+            return true;
+        }
+        proxy(request, response, agentId, node);
+        return false;
+    }
+
+    private void proxy(HttpServletRequest request, HttpServletResponse response, String agentId, String node) throws IOException {
+        String url = "http://" + node + request.getRequestURI()
+                + (request.getQueryString() != null ? "?" + request.getQueryString() : "");
+        RequestBuilder builder = RequestBuilder.create(request.getMethod()).setUri(url);
+        for (String name : Collections.list(request.getHeaderNames())) {
+            if (!SKIPPED_HEADERS.contains(name)) {
+                for (String value : Collections.list(request.getHeaders(name))) {
+                    builder.addHeader(name, value);
+                }
+            }
+        }
+        builder.addHeader(ROUTED_BY_HEADER, agentPlacementService.getLocalNode());
+        User user = currentUser(request);
+        if (user != null) {
+            builder.addHeader(ROUTED_USER_HEADER, String.valueOf(user.getUserid()));
+        }
+        if (request.getContentLengthLong() != 0 && !"GET".equals(request.getMethod())) {
+            builder.setEntity(new InputStreamEntity(request.getInputStream(), request.getContentLengthLong()));
+        }
+
+        log.info("Route agent request to its node: agentId={}, node={}, uri={}", agentId, node, request.getRequestURI());
+        try (CloseableHttpResponse proxied = httpClient.execute(builder.build())) {
+            response.setStatus(proxied.getStatusLine().getStatusCode());
+            for (Header header : proxied.getAllHeaders()) {
+                if (!SKIPPED_HEADERS.contains(header.getName())) {
+                    response.addHeader(header.getName(), header.getValue());
+                }
+            }
+            HttpEntity entity = proxied.getEntity();
+            if (entity == null) {
+                return;
+            }
+            // flush every chunk, SSE events must not wait in buffers
+            byte[] buffer = new byte[8192];
+            try (InputStream in = entity.getContent()) {
+                OutputStream out = response.getOutputStream();
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Failed to route agent request: agentId={}, node={}: {}", agentId, node, e.getMessage());
+            if (!response.isCommitted()) {
+                response.sendError(HttpServletResponse.SC_BAD_GATEWAY, "agent node unavailable");
+            }
+        }
+    }
+
+    private User currentUser(HttpServletRequest request) {
+        try {
+            return userLoginService.getCurrentUserInfo(request);
+        } catch (Exception e) {
+            // not signed in here, the serving node answers as it would for any anonymous request
+            return null;
+        }
+    }
+}
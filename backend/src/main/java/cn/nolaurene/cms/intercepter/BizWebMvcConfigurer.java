@@ -37,6 +37,9 @@ public class BizWebMvcConfigurer implements WebMvcConfigurer {
     @Resource
     private LoginInterceptor loginInterceptor;
 
+    @Resource
+    private AgentRoutingInterceptor agentRoutingInterceptor;
+
     @Bean
     public OpenAPI openApi() {
         return new OpenAPI()
@@ -48,6 +51,10 @@ public class BizWebMvcConfigurer implements WebMvcConfigurer {
 
     @Override
     public void addInterceptors(org.springframework.web.servlet.config.annotation.InterceptorRegistry registry) {
+        // agent requests go to the node serving the agent, event forwarding between nodes is never routed
+        registry.addInterceptor(agentRoutingInterceptor)
+                .addPathPatterns("/agents/*/**")
+                .excludePathPatterns("/agents/*/forward", "/agents/forward/**", "/agents/debug/**");
         if ("backend".equals(env)) {
             registry.addInterceptor(loginInterceptor)
                     .addPathPatterns("/**")
@@ -3,21 +3,59 @@ package cn.nolaurene.cms.service;
 import cn.nolaurene.cms.dal.entity.AgentSessionServerDO;
 import cn.nolaurene.cms.dal.mapper.AgentSessionServerMapper;
 import io.mybatis.mapper.example.Example;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
 import java.net.InetAddress;
 import java.util.Date;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Slf4j
 @Service
 public class AgentSessionServerService {
 
+    /**
+     * 缓存条目数超过该值时清理过期条目
+     */
+    private static final int MAX_CACHED_OWNERS = 10000;
+
+    /**
+     * 本地缓存 agent 所属节点的租期，其他节点接管 agent 后，最迟在租期结束时感知
+     */
+    @Value("${sandbox.backend.ownership.lease-ms:3000}")
+    private long ownerLeaseMs;
+
     @Resource
     private AgentSessionServerMapper agentSessionServerMapper;
 
+    /**
+     * agentId -> owner node, also caches agents without a record
+     */
+    private final ConcurrentHashMap<String, Lease> owners = new ConcurrentHashMap<>();
+
+    /**
+     * Node that owns the agent, answered from the local cache while the lease lasts.
+     * Used on the event hot path instead of {@link #getByAgentId(String)}.
+     * @return null when the agent has no record
+     */
+    public Owner getOwner(String agentId) {
+        if (agentId == null || agentId.isEmpty()) {
+            return null;
+        }
+        Lease lease = owners.get(agentId);
+        long now = System.currentTimeMillis();
+        if (lease == null || lease.expiresAt <= now) {
+            AgentSessionServerDO record = getByAgentId(agentId);
+            lease = cacheOwner(agentId, record == null ? null : new Owner(record.getServerIp(), record.getServerPort()));
+        }
+        return lease.owner;
+    }
+
     public AgentSessionServerDO getByAgentId(String agentId) {
         if (agentId == null || agentId.isEmpty()) {
             return null;
@@ -46,6 +84,7 @@ public class AgentSessionServerService {
             existing.setServerPort(serverPort);
             existing.setGmtModified(new Date());
             agentSessionServerMapper.updateByPrimaryKeySelective(existing);
+            cacheOwner(agentId, new Owner(serverIp, serverPort));
             log.info("更新Agent Session Server信息: agentId={}, serverIp={}, serverPort={}", agentId, serverIp, serverPort);
         } else {
             AgentSessionServerDO newRecord = new AgentSessionServerDO();
@@ -55,6 +94,7 @@ public class AgentSessionServerService {
             newRecord.setGmtCreate(new Date());
             newRecord.setGmtModified(new Date());
             agentSessionServerMapper.insertSelective(newRecord);
+            cacheOwner(agentId, new Owner(serverIp, serverPort));
             log.info("创建Agent Session Server信息: agentId={}, serverIp={}, serverPort={}", agentId, serverIp, serverPort);
         }
     }
@@ -64,6 +104,7 @@ public class AgentSessionServerService {
             return;
         }
 
+        owners.remove(agentId);
         AgentSessionServerDO record = getByAgentId(agentId);
         if (record != null) {
             agentSessionServerMapper.deleteByPrimaryKey(record.getId());
@@ -79,4 +120,31 @@ public class AgentSessionServerService {
             return "127.0.0.1";
         }
     }
+
+    private Lease cacheOwner(String agentId, Owner owner) {
+        long now = System.currentTimeMillis();
+        if (owners.size() > MAX_CACHED_OWNERS) {
+            owners.values().removeIf(lease -> lease.expiresAt <= now);
+        }
+        Lease lease = new Lease(owner, now + ownerLeaseMs);
+        owners.put(agentId, lease);
+        return lease;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class Owner {
+        private final String serverIp;
+        private final Integer serverPort;
+    }
+
+    private static class Lease {
+        private final Owner owner;
+        private final long expiresAt;
+
+        private Lease(Owner owner, long expiresAt) {
+            this.owner = owner;
+            this.expiresAt = expiresAt;
+        }
+    }
 }
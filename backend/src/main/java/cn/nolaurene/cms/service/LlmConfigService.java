@@ -1,13 +1,19 @@
 package cn.nolaurene.cms.service;
 
+import cn.nolaurene.cms.common.dto.LlmPhaseModelConfig;
 import cn.nolaurene.cms.dal.entity.LlmConfigDO;
 import cn.nolaurene.cms.dal.mapper.LlmConfigMapper;
+import cn.nolaurene.cms.service.sandbox.backend.llm.ChatModelRegistry;
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.TypeReference;
 import io.mybatis.mapper.example.Example;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Map;
 import java.util.Optional;
 
 /**
@@ -21,6 +27,9 @@ public class LlmConfigService {
     @Resource
     private LlmConfigMapper llmConfigMapper;
 
+    @Resource
+    private ChatModelRegistry chatModelRegistry;
+
     /**
      * 根据用户ID获取LLM配置
      */
@@ -43,6 +52,16 @@ public class LlmConfigService {
      * 保存或更新LLM配置
      */
     public void saveOrUpdate(Long userId, String endpoint, String apiKey, String modelName) {
+        saveOrUpdate(userId, endpoint, apiKey, modelName, null);
+    }
+
+    /**
+     * 保存或更新LLM配置，包含按阶段配置的模型
+     * @param phaseModels 为 null 时保留已有的按阶段配置，为空时清除
+     */
+    public void saveOrUpdate(Long userId, String endpoint, String apiKey, String modelName,
+                             Map<String, LlmPhaseModelConfig> phaseModels) {
+        String phaseModelsJson = phaseModels == null || phaseModels.isEmpty() ? null : JSON.toJSONString(phaseModels);
         if (userId == null) {
             throw new IllegalArgumentException("用户ID不能为空");
         }
@@ -50,12 +69,23 @@ public class LlmConfigService {
         LlmConfigDO existingConfig = getByUserId(userId);
         
         if (existingConfig != null) {
+            // 旧配置对应的共享模型实例不再使用
+            evictModel(existingConfig);
             // 更新现有配置
             existingConfig.setEndpoint(endpoint);
             existingConfig.setApiKey(apiKey);
             existingConfig.setModelName(modelName);
+            existingConfig.setPhaseModels(phaseModelsJson);
             existingConfig.setGmtModified(new Date());
+            // 只更新请求中给出的字段
             llmConfigMapper.updateByPrimaryKeySelective(existingConfig);
+            if (phaseModels != null && phaseModelsJson == null) {
+                // 按阶段配置被清空，选择性更新不会写入 null，单独清除该列
+                Example<LlmConfigDO> clearPhaseModels = new Example<>();
+                clearPhaseModels.createCriteria().andEqualTo(LlmConfigDO::getId, existingConfig.getId());
+                clearPhaseModels.set(LlmConfigDO::getPhaseModels, null);
+                llmConfigMapper.updateByExampleSetValues(clearPhaseModels);
+            }
             log.info("更新LLM配置成功: userId={}, endpoint={}", userId, endpoint);
         } else {
             // 创建新配置
@@ -64,6 +94,7 @@ public class LlmConfigService {
             newConfig.setEndpoint(endpoint);
             newConfig.setApiKey(apiKey);
             newConfig.setModelName(modelName);
+            newConfig.setPhaseModels(phaseModelsJson);
             newConfig.setGmtCreate(new Date());
             newConfig.setGmtModified(new Date());
             newConfig.setIsDelete(false);
@@ -85,7 +116,33 @@ public class LlmConfigService {
             config.setIsDelete(true);
             config.setGmtModified(new Date());
             llmConfigMapper.updateByPrimaryKeySelective(config);
+            evictModel(config);
             log.info("删除LLM配置成功: userId={}", userId);
         }
     }
+
+    /**
+     * 解析按阶段配置的模型，解析失败时视为未配置
+     */
+    public Map<String, LlmPhaseModelConfig> parsePhaseModels(LlmConfigDO config) {
+        if (config == null || config.getPhaseModels() == null || config.getPhaseModels().isBlank()) {
+            return Collections.emptyMap();
+        }
+        try {
+            Map<String, LlmPhaseModelConfig> phaseModels = JSON.parseObject(config.getPhaseModels(),
+                    new TypeReference<Map<String, LlmPhaseModelConfig>>() {});
+            return phaseModels == null ? Collections.emptyMap() : phaseModels;
+        } catch (Exception e) {
+            log.warn("解析按阶段模型配置失败: userId={}", config.getUserId(), e);
+            return Collections.emptyMap();
+        }
+    }
+
+    private void evictModel(LlmConfigDO config) {
+        chatModelRegistry.evict(config.getEndpoint(), config.getApiKey(), config.getModelName());
+        parsePhaseModels(config).values().forEach(phase -> chatModelRegistry.evict(
+                phase.getEndpoint() == null || phase.getEndpoint().isBlank() ? config.getEndpoint() : phase.getEndpoint(),
+                phase.getApiKey() == null || phase.getApiKey().isBlank() ? config.getApiKey() : phase.getApiKey(),
+                phase.getModelName()));
+    }
 }
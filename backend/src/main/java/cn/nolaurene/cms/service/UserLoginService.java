@@ -193,6 +193,11 @@ public class UserLoginService {
         if ((StringUtils.isBlank(httpServletRequest.getHeader("Origin")) ? "" : httpServletRequest.getHeader("Origin")).contains("http://localhost:8000")) {
             return getMockUserInfo();
         }
+        // routed from the node the user signed in on, the login state lives in that node's session
+        Object routedUserId = httpServletRequest.getAttribute(UserConstants.ROUTED_USER_ID);
+        if (routedUserId instanceof Long) {
+            return getById((Long) routedUserId);
+        }
         User currentUser = (User) httpServletRequest.getSession().getAttribute(USER_LOGIN_STATE);
 
         if (null == currentUser) {
@@ -0,0 +1,385 @@
+package cn.nolaurene.cms.service.sandbox.backend;
+
+import cn.nolaurene.cms.exception.BusinessException;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+
+/**
+ * @author nolaurence
+ * @date 2026/10/17 下午7:10
+ * @description: admission and fair scheduling of agent runs.
+ * Runs are bounded globally and per user, waiting runs sit in bounded per-user queues and are dispatched by
+ * stride scheduling: every dispatch advances the pass of its user by 1 / weight, the user with the smallest pass goes next,
+ * so a burst of one user only delays that user.
+ */
+@Slf4j
+@Component
+public class AgentRunScheduler {
+
+    /**
+     * 单节点同时执行的 agent 运行数
+     */
+    @Value("${sandbox.backend.scheduler.max-concurrent-runs:500}")
+    private int maxConcurrentRuns;
+
+    /**
+     * 单个用户同时执行的 agent 运行数
+     */
+    @Value("${sandbox.backend.scheduler.max-runs-per-user:2}")
+    private int maxRunsPerUser;
+
+    /**
+     * 单个用户排队的运行数上限，超出时直接拒绝
+     */
+    @Value("${sandbox.backend.scheduler.max-queued-per-user:5}")
+    private int maxQueuedPerUser;
+
+    /**
+     * 全局排队的运行数上限
+     */
+    @Value("${sandbox.backend.scheduler.max-queued:1000}")
+    private int maxQueued;
+
+    /**
+     * 用户权重，格式 userId:weight，多个用逗号分隔，未配置的用户权重为 1
+     */
+    @Value("${sandbox.backend.scheduler.user-weights:}")
+    private String userWeightsConfig;
+
+    @Resource
+    private AgentThreads agentThreads;
+
+    private final Map<String, Double> userWeights = new HashMap<>();
+
+    /**
+     * guards the scheduling state, runs start on virtual threads and a monitor would pin them
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * userId -> scheduling state, guarded by the lock
+     */
+    private final Map<String, UserQueue> users = new LinkedHashMap<>();
+
+    private int running;
+
+    private int queued;
+
+    private long dispatched;
+
+    private long rejected;
+
+    @PostConstruct
+    public void init() {
+        if (StringUtils.isBlank(userWeightsConfig)) {
+            return;
+        }
+        for (String entry : userWeightsConfig.split(",")) {
+            String[] parts = entry.trim().split(":");
+            if (parts.length != 2) {
+                continue;
+            }
+            try {
+                userWeights.put(parts[0].trim(), Math.max(0.01, Double.parseDouble(parts[1].trim())));
+            } catch (NumberFormatException e) {
+                log.warn("[AgentRunScheduler] Invalid user weight: {}", entry);
+            }
+        }
+    }
+
+    /**
+     * Submit a run of the user. It starts right away when the limits allow it, otherwise it is queued
+     * and {@code onPosition} receives its position whenever it changes, and 0 once the run starts.
+     * @return handle to cancel the run while it is still queued
+     * @throws BusinessException when the queue of the user or the global queue is full
+     */
+    public Ticket submit(String userId, Runnable run, IntConsumer onPosition) {
+        String user = StringUtils.defaultIfBlank(userId, "anonymous");
+        Ticket ticket = new Ticket(user, run, onPosition);
+        List<Ticket> ready;
+        lock.lock();
+        try {
+            UserQueue userQueue = users.computeIfAbsent(user, key -> new UserQueue(weightOf(key)));
+            if (userQueue.waiting.isEmpty() && userQueue.running < maxRunsPerUser && running < maxConcurrentRuns) {
+                // idle capacity, start without touching the queues
+                userQueue.pass = Math.max(userQueue.pass, globalPass()) + userQueue.stride;
+                userQueue.running++;
+                running++;
+                dispatched++;
+                ready = List.of(ticket);
+            } else {
+                if (userQueue.waiting.size() >= maxQueuedPerUser) {
+                    rejected++;
+                    dropIfIdle(user, userQueue);
+                    throw new BusinessException("RUN_QUEUE_FULL", "当前用户排队任务已达上限 " + maxQueuedPerUser + "，请等待已有任务完成后再试");
+                }
+                if (queued >= maxQueued) {
+                    rejected++;
+                    dropIfIdle(user, userQueue);
+                    throw new BusinessException("RUN_QUEUE_FULL", "系统繁忙，排队任务已达上限，请稍后再试");
+                }
+                if (userQueue.waiting.isEmpty() && userQueue.running == 0) {
+                    // a user coming back does not get credit for the time it was away
+                    userQueue.pass = Math.max(userQueue.pass, globalPass());
+                }
+                userQueue.waiting.addLast(ticket);
+                queued++;
+                ready = new ArrayList<>();
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Ticket t : ready) {
+            start(t);
+        }
+        publishPositions();
+        return ticket;
+    }
+
+    public Map<String, Object> stats() {
+        lock.lock();
+        try {
+            Map<String, Object> stats = new HashMap<>();
+            stats.put("maxConcurrentRuns", maxConcurrentRuns);
+            stats.put("maxRunsPerUser", maxRunsPerUser);
+            stats.put("running", running);
+            stats.put("queued", queued);
+            stats.put("dispatched", dispatched);
+            stats.put("rejected", rejected);
+            Map<String, Object> perUser = new HashMap<>();
+            users.forEach((user, userQueue) -> {
+                Map<String, Object> item = new HashMap<>();
+                item.put("running", userQueue.running);
+                item.put("queued", userQueue.waiting.size());
+                item.put("weight", 1.0 / userQueue.stride);
+                perUser.put(user, item);
+            });
+            stats.put("users", perUser);
+            return stats;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void start(Ticket ticket) {
+        ticket.notifyPosition(0);
+        try {
+            agentThreads.submitRun(() -> {
+                try {
+                    ticket.run.run();
+                } finally {
+                    release(ticket);
+                }
+            });
+        } catch (RuntimeException e) {
+            release(ticket);
+            throw e;
+        }
+    }
+
+    private void release(Ticket ticket) {
+        List<Ticket> ready;
+        lock.lock();
+        try {
+            UserQueue userQueue = users.get(ticket.userId);
+            if (userQueue != null) {
+                userQueue.running--;
+            }
+            running--;
+            ready = dispatch();
+        } finally {
+            lock.unlock();
+        }
+        for (Ticket t : ready) {
+            start(t);
+        }
+        publishPositions();
+    }
+
+    private void cancel(Ticket ticket) {
+        lock.lock();
+        try {
+            UserQueue userQueue = users.get(ticket.userId);
+            if (userQueue == null || !userQueue.waiting.remove(ticket)) {
+                return;
+            }
+            queued--;
+            dropIfIdle(ticket.userId, userQueue);
+        } finally {
+            lock.unlock();
+        }
+        log.info("[AgentRunScheduler] Queued run of user {} cancelled", ticket.userId);
+        publishPositions();
+    }
+
+    /**
+     * take the runs that may start now, must hold the lock
+     */
+    private List<Ticket> dispatch() {
+        List<Ticket> ready = new ArrayList<>();
+        while (running < maxConcurrentRuns) {
+            String nextUser = null;
+            UserQueue next = null;
+            for (Map.Entry<String, UserQueue> entry : users.entrySet()) {
+                UserQueue candidate = entry.getValue();
+                if (candidate.waiting.isEmpty() || candidate.running >= maxRunsPerUser) {
+                    continue;
+                }
+                if (next == null || candidate.pass < next.pass) {
+                    next = candidate;
+                    nextUser = entry.getKey();
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            Ticket ticket = next.waiting.pollFirst();
+            next.pass += next.stride;
+            next.running++;
+            running++;
+            queued--;
+            dispatched++;
+            ready.add(ticket);
+            log.debug("[AgentRunScheduler] Dispatch run of user {}, running: {}, queued: {}", nextUser, running, queued);
+        }
+        Iterator<Map.Entry<String, UserQueue>> iterator = users.entrySet().iterator();
+        while (iterator.hasNext()) {
+            UserQueue userQueue = iterator.next().getValue();
+            if (userQueue.waiting.isEmpty() && userQueue.running <= 0) {
+                iterator.remove();
+            }
+        }
+        return ready;
+    }
+
+    /**
+     * Tell every queued run its position in the expected dispatch order, per-user limits are ignored for the estimate.
+     */
+    private void publishPositions() {
+        List<Ticket> order = new ArrayList<>();
+        lock.lock();
+        try {
+            if (queued == 0) {
+                return;
+            }
+            Map<UserQueue, Double> passes = new HashMap<>();
+            Map<UserQueue, Iterator<Ticket>> cursors = new HashMap<>();
+            for (UserQueue userQueue : users.values()) {
+                if (!userQueue.waiting.isEmpty()) {
+                    passes.put(userQueue, userQueue.pass);
+                    cursors.put(userQueue, userQueue.waiting.iterator());
+                }
+            }
+            while (!cursors.isEmpty()) {
+                UserQueue next = null;
+                for (UserQueue candidate : cursors.keySet()) {
+                    if (next == null || passes.get(candidate) < passes.get(next)) {
+                        next = candidate;
+                    }
+                }
+                Iterator<Ticket> cursor = cursors.get(next);
+                order.add(cursor.next());
+                passes.put(next, passes.get(next) + next.stride);
+                if (!cursor.hasNext()) {
+                    cursors.remove(next);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (int idx = 0; idx < order.size(); idx++) {
+            order.get(idx).notifyPosition(idx + 1);
+        }
+    }
+
+    private void dropIfIdle(String userId, UserQueue userQueue) {
+        if (userQueue.waiting.isEmpty() && userQueue.running <= 0) {
+            users.remove(userId);
+        }
+    }
+
+    /**
+     * smallest pass among the active users, new users start there
+     */
+    private double globalPass() {
+        return users.values().stream()
+                .filter(userQueue -> !userQueue.waiting.isEmpty() || userQueue.running > 0)
+                .mapToDouble(userQueue -> userQueue.pass)
+                .min()
+                .orElse(0);
+    }
+
+    private double weightOf(String userId) {
+        return userWeights.getOrDefault(userId, 1.0);
+    }
+
+    private static class UserQueue {
+        private final double stride;
+        private final Deque<Ticket> waiting = new ArrayDeque<>();
+        private double pass;
+        private int running;
+
+        private UserQueue(double weight) {
+            this.stride = 1.0 / weight;
+        }
+    }
+
+    public class Ticket {
+        private final String userId;
+        private final Runnable run;
+        private final IntConsumer onPosition;
+        private final ReentrantLock notifyLock = new ReentrantLock();
+        private int lastPosition = -1;
+
+        private Ticket(String userId, Runnable run, IntConsumer onPosition) {
+            this.userId = userId;
+            this.run = run;
+            this.onPosition = onPosition;
+        }
+
+        /**
+         * drop the run if it has not started yet, e.g. the client went away while waiting
+         */
+        public void cancel() {
+            AgentRunScheduler.this.cancel(this);
+        }
+
+        private void notifyPosition(int position) {
+            notifyLock.lock();
+            try {
+                // a position computed before the run started may arrive late, the start is final
+                if (position == lastPosition || lastPosition == 0) {
+                    return;
+                }
+                boolean wasQueued = lastPosition > 0;
+                lastPosition = position;
+                if (position == 0 && !wasQueued) {
+                    // started without waiting, nothing to tell
+                    return;
+                }
+                try {
+                    onPosition.accept(position);
+                } catch (Exception e) {
+                    log.warn("[AgentRunScheduler] Failed to notify queue position: {}", e.getMessage());
+                }
+            } finally {
+                notifyLock.unlock();
+            }
+        }
+    }
+}
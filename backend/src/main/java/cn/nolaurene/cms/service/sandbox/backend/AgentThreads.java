@@ -0,0 +1,188 @@
+package cn.nolaurene.cms.service.sandbox.backend;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * @author nolaurence
+ * @date 2026/10/17 下午6:40
+ * @description: threads of the agent runs, step loops, tool calls and event dispatch.
+ * With virtual threads every task gets its own thread and the concurrency is bounded per resource
+ * (runs by {@link AgentRunScheduler}, LLM endpoints by the admission controller, workers by the semaphores here),
+ * the platform mode keeps the former fixed pools.
+ */
+@Slf4j
+@Component
+public class AgentThreads {
+
+    /**
+     * 使用虚拟线程执行 agent 运行、步骤循环、工具调用和事件推送，关闭时回退到固定大小的平台线程池
+     */
+    @Value("${sandbox.backend.threads.virtual:true}")
+    private boolean virtual;
+
+    /**
+     * 平台线程模式下 agent 运行线程池大小
+     */
+    @Value("${sandbox.backend.max-threads:10}")
+    private int maxThreads;
+
+    /**
+     * 单个 worker 同时执行的工具调用数
+     */
+    @Value("${sandbox.backend.threads.worker-max-concurrency:32}")
+    private int workerMaxConcurrency;
+
+    private ExecutorService runExecutor;
+
+    private ExecutorService stepExecutor;
+
+    private ExecutorService toolExecutor;
+
+    private ExecutorService eventExecutor;
+
+    private ExecutorService llmCallExecutor;
+
+    /**
+     * worker key (MCP endpoint) -> permits of concurrent tool calls
+     */
+    private final ConcurrentHashMap<String, Semaphore> workerPermits = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        if (virtual) {
+            runExecutor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("agent-run-", 0).factory());
+            stepExecutor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("agent-step-", 0).factory());
+            toolExecutor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("agent-tool-", 0).factory());
+            eventExecutor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("agent-event-", 0).factory());
+            llmCallExecutor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("llm-call-", 0).factory());
+        } else {
+            runExecutor = fixedPool(maxThreads, "agent-run-");
+            stepExecutor = fixedPool(8, "agent-step-");
+            toolExecutor = fixedPool(8, "agent-tool-");
+            eventExecutor = fixedPool(5, "agent-event-");
+            llmCallExecutor = Executors.newCachedThreadPool(platformFactory("llm-call-"));
+        }
+        log.info("[AgentThreads] virtual threads: {}, worker max concurrency: {}", virtual, workerMaxConcurrency);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        runExecutor.shutdownNow();
+        stepExecutor.shutdownNow();
+        toolExecutor.shutdownNow();
+        eventExecutor.shutdownNow();
+        llmCallExecutor.shutdownNow();
+    }
+
+    /**
+     * Submit an agent run, admission and ordering of the runs is decided by {@link AgentRunScheduler}.
+     */
+    public Future<?> submitRun(Runnable run) {
+        return runExecutor.submit(run);
+    }
+
+    /**
+     * step loops of one plan running concurrently
+     */
+    public ExecutorService stepExecutor() {
+        return stepExecutor;
+    }
+
+    /**
+     * tool calls of one round running concurrently
+     */
+    public ExecutorService toolExecutor() {
+        return toolExecutor;
+    }
+
+    /**
+     * SSE events sent off the agent thread
+     */
+    public ExecutorService eventExecutor() {
+        return eventExecutor;
+    }
+
+    /**
+     * LLM calls raced by the hedging policy
+     */
+    public ExecutorService llmCallExecutor() {
+        return llmCallExecutor;
+    }
+
+    /**
+     * Run a tool call once the worker has a free slot.
+     * @param workerKey key of the worker the call goes to, blank keys are not limited
+     */
+    public <T> T callWorker(String workerKey, Supplier<T> call) throws InterruptedException {
+        if (StringUtils.isBlank(workerKey)) {
+            return call.get();
+        }
+        Semaphore permits = workerPermits.computeIfAbsent(workerKey, key -> new Semaphore(Math.max(1, workerMaxConcurrency), true));
+        permits.acquire();
+        try {
+            return call.get();
+        } finally {
+            permits.release();
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("virtual", virtual);
+        if (runExecutor instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) runExecutor;
+            stats.put("runPoolSize", maxThreads);
+            stats.put("activeRuns", pool.getActiveCount());
+            stats.put("waitingRuns", pool.getQueue().size());
+        }
+        Map<String, Object> workers = new HashMap<>();
+        workerPermits.forEach((key, permits) -> {
+            Map<String, Object> worker = new HashMap<>();
+            worker.put("inFlight", workerMaxConcurrency - permits.availablePermits());
+            worker.put("waiting", permits.getQueueLength());
+            workers.put(key, worker);
+        });
+        stats.put("workerMaxConcurrency", workerMaxConcurrency);
+        stats.put("workers", workers);
+        return stats;
+    }
+
+    private static ExecutorService fixedPool(int size, String namePrefix) {
+        return new ThreadPoolExecutor(
+                size,
+                size,
+                0L,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                platformFactory(namePrefix)
+        );
+    }
+
+    private static ThreadFactory platformFactory(String namePrefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, namePrefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
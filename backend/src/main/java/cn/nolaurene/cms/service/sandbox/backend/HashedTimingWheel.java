@@ -0,0 +1,148 @@
+package cn.nolaurene.cms.service.sandbox.backend;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author nolaurence
+ * @date 2026/10/17 下午10:40
+ * @description: hashed timing wheel, a timeout costs O(1) to add and cancel however many are pending. A single ticker
+ * thread advances one bucket per tick and hands the due timeouts to the executor, so tasks never run on the ticker.
+ */
+@Slf4j
+class HashedTimingWheel {
+
+    private final long tickNanos;
+
+    private final int mask;
+
+    private final Queue<Timeout>[] buckets;
+
+    /**
+     * timeouts added since the last tick, moved into their buckets by the ticker
+     */
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+
+    private final Executor executor;
+
+    private final Thread ticker;
+
+    private final long startNanos = System.nanoTime();
+
+    private volatile boolean stopped;
+
+    /**
+     * ticks elapsed since the start, only touched by the ticker
+     */
+    private long tick;
+
+    @SuppressWarnings("unchecked")
+    HashedTimingWheel(String name, long tickMs, int wheelSize, Executor executor) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMs));
+        // a power of two, the bucket of a tick is a mask away
+        int size = Integer.highestOneBit(Math.max(2, wheelSize) * 2 - 1);
+        this.mask = size - 1;
+        this.buckets = new Queue[size];
+        for (int idx = 0; idx < size; idx++) {
+            buckets[idx] = new ArrayDeque<>();
+        }
+        this.executor = executor;
+        this.ticker = new Thread(this::run, name);
+        this.ticker.setDaemon(true);
+        this.ticker.start();
+    }
+
+    /**
+     * Run the task on the executor once the delay has passed, rounded up to the next tick.
+     */
+    Timeout schedule(Runnable task, long delayMs) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - startNanos + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMs)));
+        pending.add(timeout);
+        return timeout;
+    }
+
+    void stop() {
+        stopped = true;
+        ticker.interrupt();
+    }
+
+    private void run() {
+        while (!stopped) {
+            long sleepNanos = (tick + 1) * tickNanos - (System.nanoTime() - startNanos);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    if (stopped) {
+                        return;
+                    }
+                }
+                continue;
+            }
+            transferPending();
+            expire(buckets[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            long ticks = Math.max(tick, (timeout.deadlineNanos + tickNanos - 1) / tickNanos);
+            timeout.remainingRounds = (ticks - tick) / buckets.length;
+            buckets[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    private void expire(Queue<Timeout> bucket) {
+        Iterator<Timeout> iterator = bucket.iterator();
+        while (iterator.hasNext()) {
+            Timeout timeout = iterator.next();
+            if (timeout.cancelled) {
+                iterator.remove();
+            } else if (timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+            } else {
+                iterator.remove();
+                try {
+                    executor.execute(timeout.task);
+                } catch (RejectedExecutionException e) {
+                    log.debug("Timing wheel executor is shut down");
+                }
+            }
+        }
+    }
+
+    static final class Timeout {
+
+        private final Runnable task;
+
+        private final long deadlineNanos;
+
+        private long remainingRounds;
+
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadlineNanos) {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        /**
+         * the task does not run unless it was already handed to the executor
+         */
+        void cancel() {
+            cancelled = true;
+        }
+    }
+}
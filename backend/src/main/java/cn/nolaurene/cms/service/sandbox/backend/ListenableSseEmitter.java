@@ -0,0 +1,58 @@
+package cn.nolaurene.cms.service.sandbox.backend;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * @author nolaurence
+ * @date 2026/10/17 下午11:20
+ * @description: SseEmitter keeping every completion, timeout and error callback. Spring 5.3 keeps one callback of each
+ * kind per emitter and a later registration replaces the earlier one, here one composite is registered and the
+ * callbacks added by the controller, the scheduler and the session all run, in the order they were added.
+ */
+@Slf4j
+public class ListenableSseEmitter extends SseEmitter {
+
+    private final List<Runnable> completionCallbacks = new CopyOnWriteArrayList<>();
+
+    private final List<Runnable> timeoutCallbacks = new CopyOnWriteArrayList<>();
+
+    private final List<Consumer<Throwable>> errorCallbacks = new CopyOnWriteArrayList<>();
+
+    public ListenableSseEmitter(Long timeout) {
+        super(timeout);
+        super.onCompletion(() -> completionCallbacks.forEach(ListenableSseEmitter::runQuietly));
+        super.onTimeout(() -> timeoutCallbacks.forEach(ListenableSseEmitter::runQuietly));
+        super.onError(error -> errorCallbacks.forEach(callback -> runQuietly(() -> callback.accept(error))));
+    }
+
+    @Override
+    public void onCompletion(Runnable callback) {
+        completionCallbacks.add(callback);
+    }
+
+    @Override
+    public void onTimeout(Runnable callback) {
+        timeoutCallbacks.add(callback);
+    }
+
+    @Override
+    public void onError(Consumer<Throwable> callback) {
+        errorCallbacks.add(callback);
+    }
+
+    /**
+     * a failing callback must not keep the others from running
+     */
+    private static void runQuietly(Runnable callback) {
+        try {
+            callback.run();
+        } catch (Exception e) {
+            log.warn("SSE emitter callback failed: {}", e.getMessage());
+        }
+    }
+}
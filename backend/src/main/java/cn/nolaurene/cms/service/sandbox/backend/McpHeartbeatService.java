@@ -1,39 +1,355 @@
 package cn.nolaurene.cms.service.sandbox.backend;
 
 
+import cn.nolaurene.cms.service.sandbox.backend.tool.ToolSpecRegistry;
 import dev.langchain4j.mcp.client.McpClient;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
 
+/**
+ * MCP 客户端心跳：所有客户端挂在一个哈希时间轮上，各自按带抖动的周期检查，检查线程数有上限。
+ * 记录每个客户端的健康状态与延迟，连续失败后由所属会话重新连接，工具调用可据此快速失败
+ */
 @Service
 @Slf4j
 public class McpHeartbeatService {
 
-    private final List<McpClient> mcpClients = new ArrayList<>();
+    public enum HealthState {
+        UNKNOWN, HEALTHY, UNHEALTHY
+    }
+
+    @Value("${sandbox.backend.mcp-heartbeat.enabled:true}")
+    private boolean enabled;
+
+    @Value("${sandbox.backend.mcp-heartbeat.interval-ms:60000}")
+    private long intervalMs;
+
+    /**
+     * 每次检查的间隔在 interval 上下浮动的比例，避免同一时刻创建的客户端同时检查
+     */
+    @Value("${sandbox.backend.mcp-heartbeat.jitter-ratio:0.2}")
+    private double jitterRatio;
+
+    /**
+     * 同时进行的健康检查数上限
+     */
+    @Value("${sandbox.backend.mcp-heartbeat.concurrency:8}")
+    private int concurrency;
+
+    /**
+     * 连续失败达到该次数后标记为不可用并重新连接
+     */
+    @Value("${sandbox.backend.mcp-heartbeat.failure-threshold:2}")
+    private int failureThreshold;
+
+    /**
+     * 失败后的复查间隔，随连续失败次数翻倍，最长为 interval
+     */
+    @Value("${sandbox.backend.mcp-heartbeat.retry-interval-ms:5000}")
+    private long retryIntervalMs;
+
+    @Value("${sandbox.backend.mcp-heartbeat.tick-ms:100}")
+    private long tickMs;
+
+    @Value("${sandbox.backend.mcp-heartbeat.wheel-size:512}")
+    private int wheelSize;
+
+    @Resource
+    private ToolSpecRegistry toolSpecRegistry;
+
+    private final ConcurrentHashMap<McpClient, ClientHealth> clients = new ConcurrentHashMap<>();
+
+    private final AtomicLong checks = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final AtomicLong reconnects = new AtomicLong();
+
+    private final AtomicLong reconnectFailures = new AtomicLong();
+
+    private ThreadPoolExecutor checkers;
+
+    private HashedTimingWheel wheel;
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger threadIndex = new AtomicInteger();
+        checkers = new ThreadPoolExecutor(Math.max(1, concurrency), Math.max(1, concurrency), 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "mcp-heartbeat-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        checkers.allowCoreThreadTimeOut(true);
+        wheel = new HashedTimingWheel("mcp-heartbeat-wheel", tickMs, wheelSize, checkers);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        wheel.stop();
+        checkers.shutdownNow();
+    }
 
     public void addClient(McpClient client) {
-        if (client != null) {
-            mcpClients.add(client);
-            log.info("Adding client to mcp heartbeat service");
-        } else {
+        addClient(client, null);
+    }
+
+    /**
+     * @param reconnector replaces the client once it failed failure-threshold checks in a row, returns the new client,
+     *                    or null when the client no longer belongs to a live session
+     */
+    public void addClient(McpClient client, UnaryOperator<McpClient> reconnector) {
+        if (client == null) {
             log.warn("Attempted to add a null McpClient");
+            return;
+        }
+        ClientHealth health = new ClientHealth(client, reconnector);
+        if (clients.putIfAbsent(client, health) != null) {
+            return;
+        }
+        log.info("Adding client to mcp heartbeat service: {}", client.key());
+        if (enabled) {
+            // the first check lands anywhere in the interval, clients created together are spread over the wheel
+            schedule(health, ThreadLocalRandom.current().nextLong(Math.max(1, intervalMs)));
         }
     }
 
-    @Scheduled(fixedRate = 120000)  // every 2 minutes
-    public void sendHeartbeat() {
-        try {
-            log.info("McpClient health check...");
-            this.mcpClients.parallelStream().forEach(client -> {
-                client.checkHealth();
-                log.info("Sending heartbeat to server");
+    /**
+     * 会话关闭时移除其客户端，不再对已关闭的连接发送心跳
+     */
+    public void removeClient(McpClient client) {
+        ClientHealth health = client == null ? null : clients.remove(client);
+        if (health == null) {
+            return;
+        }
+        synchronized (health) {
+            health.removed = true;
+            if (health.next != null) {
+                health.next.cancel();
+            }
+        }
+        log.info("Removing client from mcp heartbeat service: {}", client.key());
+    }
+
+    public HealthState stateOf(McpClient client) {
+        ClientHealth health = client == null ? null : clients.get(client);
+        return health == null ? HealthState.UNKNOWN : health.state;
+    }
+
+    /**
+     * whether the client failed its recent health checks, calls on it would only wait for their timeout
+     */
+    public boolean isUnavailable(McpClient client) {
+        return stateOf(client) == HealthState.UNHEALTHY;
+    }
+
+    /**
+     * A call on the client failed, check it now instead of at its next turn.
+     */
+    public void checkSoon(McpClient client) {
+        ClientHealth health = client == null ? null : clients.get(client);
+        if (!enabled || health == null) {
+            return;
+        }
+        synchronized (health) {
+            if (health.checking || System.currentTimeMillis() - health.lastCheckAt < retryIntervalMs) {
+                return;
+            }
+        }
+        schedule(health, 0);
+    }
+
+    public Map<String, Object> stats() {
+        int healthy = 0;
+        int unhealthy = 0;
+        Map<String, Map<String, Object>> endpoints = new TreeMap<>();
+        for (ClientHealth health : clients.values()) {
+            HealthState state = health.state;
+            if (state == HealthState.HEALTHY) {
+                healthy++;
+            } else if (state == HealthState.UNHEALTHY) {
+                unhealthy++;
+            }
+            Map<String, Object> endpoint = endpoints.computeIfAbsent(health.client.key(), key -> {
+                Map<String, Object> initial = new HashMap<>();
+                initial.put("key", key);
+                initial.put("clients", 0);
+                initial.put("unhealthy", 0);
+                initial.put("maxLatencyMs", 0L);
+                initial.put("latencySumMs", 0L);
+                return initial;
             });
+            endpoint.merge("clients", 1, (left, right) -> (Integer) left + (Integer) right);
+            if (state == HealthState.UNHEALTHY) {
+                endpoint.merge("unhealthy", 1, (left, right) -> (Integer) left + (Integer) right);
+            }
+            endpoint.merge("maxLatencyMs", health.lastLatencyMs, (left, right) -> Math.max((Long) left, (Long) right));
+            endpoint.merge("latencySumMs", (long) health.avgLatencyMs, (left, right) -> (Long) left + (Long) right);
+        }
+        List<Map<String, Object>> endpointStats = new ArrayList<>();
+        for (Map<String, Object> endpoint : endpoints.values()) {
+            endpoint.put("avgLatencyMs", (Long) endpoint.remove("latencySumMs") / (Integer) endpoint.get("clients"));
+            endpointStats.add(endpoint);
+        }
+
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("clients", clients.size());
+        stats.put("healthy", healthy);
+        stats.put("unhealthy", unhealthy);
+        stats.put("checks", checks.get());
+        stats.put("failures", failures.get());
+        stats.put("reconnects", reconnects.get());
+        stats.put("reconnectFailures", reconnectFailures.get());
+        stats.put("activeChecks", checkers.getActiveCount());
+        stats.put("queuedChecks", checkers.getQueue().size());
+        stats.put("endpoints", endpointStats);
+        return stats;
+    }
+
+    private void schedule(ClientHealth health, long delayMs) {
+        synchronized (health) {
+            if (health.removed) {
+                return;
+            }
+            if (health.next != null) {
+                health.next.cancel();
+            }
+            health.next = wheel.schedule(() -> check(health), delayMs);
+        }
+    }
+
+    private void check(ClientHealth health) {
+        synchronized (health) {
+            if (health.removed || health.checking) {
+                return;
+            }
+            health.checking = true;
+            health.next = null;
+        }
+
+        long start = System.nanoTime();
+        String error = null;
+        try {
+            health.client.checkHealth();
+        } catch (Exception e) {
+            error = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+        }
+        long latencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (checkers.isShutdown()) {
+            // interrupted by the shutdown, not a failure of the client
+            return;
+        }
+        checks.incrementAndGet();
+
+        int consecutiveFailures;
+        synchronized (health) {
+            health.checking = false;
+            health.lastCheckAt = System.currentTimeMillis();
+            health.lastLatencyMs = latencyMs;
+            health.avgLatencyMs = health.avgLatencyMs == 0 ? latencyMs : health.avgLatencyMs * 0.8 + latencyMs * 0.2;
+            if (error == null) {
+                if (health.state == HealthState.UNHEALTHY) {
+                    log.info("MCP client recovered: {}", health.client.key());
+                }
+                health.consecutiveFailures = 0;
+                health.state = HealthState.HEALTHY;
+            } else {
+                health.consecutiveFailures++;
+                if (health.consecutiveFailures >= failureThreshold) {
+                    health.state = HealthState.UNHEALTHY;
+                }
+            }
+            consecutiveFailures = health.consecutiveFailures;
+        }
+
+        if (error == null) {
+            schedule(health, jittered(intervalMs));
+            return;
+        }
+        failures.incrementAndGet();
+        log.warn("MCP client health check failed ({} in a row): {}: {}", consecutiveFailures, health.client.key(), error);
+        // the worker may come back as a new build, its tools are fetched again on next use
+        toolSpecRegistry.invalidate(health.client.key());
+        if (consecutiveFailures >= failureThreshold && health.reconnector != null && reconnect(health)) {
+            return;
+        }
+        long backoffMs = retryIntervalMs << Math.min(consecutiveFailures - 1, 10);
+        schedule(health, jittered(Math.min(intervalMs, backoffMs)));
+    }
+
+    /**
+     * Have the session replace the client, the new one takes over the heartbeat.
+     * @return whether the failed client left the heartbeat
+     */
+    private boolean reconnect(ClientHealth health) {
+        McpClient replacement;
+        try {
+            replacement = health.reconnector.apply(health.client);
         } catch (Exception e) {
-            log.warn("Heartbeat failed, triggering reconnect");
+            reconnectFailures.incrementAndGet();
+            log.warn("Failed to reconnect MCP client {}: {}", health.client.key(), e.getMessage());
+            return false;
+        }
+        removeClient(health.client);
+        if (replacement == null) {
+            // the session was closed or replaced the client already
+            return true;
+        }
+        reconnects.incrementAndGet();
+        log.info("MCP client reconnected: {}", replacement.key());
+        addClient(replacement, health.reconnector);
+        return true;
+    }
+
+    private long jittered(long delayMs) {
+        double jitter = Math.max(0, Math.min(1, jitterRatio));
+        return (long) (delayMs * (1 + jitter * (ThreadLocalRandom.current().nextDouble() * 2 - 1)));
+    }
+
+    private static final class ClientHealth {
+
+        private final McpClient client;
+
+        private final UnaryOperator<McpClient> reconnector;
+
+        private volatile HealthState state = HealthState.UNKNOWN;
+
+        private volatile long lastLatencyMs;
+
+        private volatile double avgLatencyMs;
+
+        private int consecutiveFailures;
+
+        private long lastCheckAt;
+
+        private boolean checking;
+
+        private boolean removed;
+
+        private HashedTimingWheel.Timeout next;
+
+        private ClientHealth(McpClient client, UnaryOperator<McpClient> reconnector) {
+            this.client = client;
+            this.reconnector = reconnector;
         }
     }
 }
@@ -0,0 +1,108 @@
+package cn.nolaurene.cms.service.sandbox.backend;
+
+import cn.nolaurene.cms.service.sandbox.backend.utils.PromptTemplateCache;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+/**
+ * @author nolaurence
+ * @date 2026/10/17 下午4:30
+ * @description: development only, reload prompt templates when files under the configured directory change
+ */
+@Service
+@Slf4j
+public class PromptTemplateWatcher {
+
+    @Value("${sandbox.backend.prompt.hot-reload:false}")
+    private boolean hotReload;
+
+    /**
+     * 模板源码目录，例如 src/main/resources/prompts
+     */
+    @Value("${sandbox.backend.prompt.hot-reload-dir:src/main/resources/prompts}")
+    private String hotReloadDir;
+
+    private WatchService watchService;
+
+    private Thread watchThread;
+
+    @PostConstruct
+    public void start() {
+        if (!hotReload || StringUtils.isBlank(hotReloadDir)) {
+            return;
+        }
+        Path dir = Paths.get(hotReloadDir).toAbsolutePath();
+        if (!Files.isDirectory(dir)) {
+            log.warn("[PromptTemplateWatcher] hot reload directory does not exist: {}", dir);
+            return;
+        }
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException e) {
+            log.warn("[PromptTemplateWatcher] failed to watch {}: {}", dir, e.getMessage());
+            return;
+        }
+        PromptTemplateCache.setOverrideDir(dir);
+
+        watchThread = new Thread(this::watchLoop, "prompt-template-watcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+        log.info("[PromptTemplateWatcher] prompt hot reload enabled, watching {}", dir);
+    }
+
+    private void watchLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ClosedWatchServiceException e) {
+                return;
+            }
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    PromptTemplateCache.invalidateAll();
+                    continue;
+                }
+                Path changed = (Path) event.context();
+                PromptTemplateCache.invalidate(PromptTemplateCache.nameOf(changed.toString()));
+            }
+            if (!key.reset()) {
+                log.warn("[PromptTemplateWatcher] watch key is no longer valid, stop watching");
+                return;
+            }
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (watchThread != null) {
+            watchThread.interrupt();
+        }
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+}
@@ -0,0 +1,375 @@
+package cn.nolaurene.cms.service.sandbox.backend;
+
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONObject;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author nolaurence
+ * @date 2026/10/17 下午9:00
+ * @description: events of this node for agents owned by one peer node. They share one WebSocket, are numbered per
+ * channel, sent in batches by a single sender thread and kept until the peer acks them, so a reconnect resends what
+ * may be lost and the peer drops what it already delivered. The buffer is bounded, producers wait when it is full.
+ */
+@Slf4j
+class SseForwardChannel {
+
+    private final String peer;
+
+    private final String url;
+
+    private final Settings settings;
+
+    /**
+     * identifies this sender to the peer, a restarted node starts a new sequence
+     */
+    private final String channelId = UUID.randomUUID().toString().replace("-", "");
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    private final Condition notFull = lock.newCondition();
+
+    /**
+     * not sent yet, guarded by the lock
+     */
+    private final Deque<Event> pending = new ArrayDeque<>();
+
+    /**
+     * sent and not acked yet, guarded by the lock
+     */
+    private final Deque<Event> unacked = new ArrayDeque<>();
+
+    private long nextSeq = 1;
+
+    private long sentBatches;
+
+    private long sentEvents;
+
+    private long ackedEvents;
+
+    private long dropped;
+
+    private long reconnects;
+
+    private volatile WebSocketSession session;
+
+    private volatile boolean closed;
+
+    private final Thread sender;
+
+    SseForwardChannel(String targetIp, Integer targetPort, Settings settings) {
+        this.peer = targetIp + ":" + targetPort;
+        this.url = String.format("ws://%s:%d%s", targetIp, targetPort, SseForwardReceiver.PATH);
+        this.settings = settings;
+        this.sender = new Thread(this::run, "sse-forward-" + peer);
+        this.sender.setDaemon(true);
+        this.sender.start();
+    }
+
+    /**
+     * Queue an event for the peer, waits up to the offer timeout while the buffer is full.
+     * @return false when the event was dropped
+     */
+    boolean offer(String agentId, String eventName, Object data) {
+        Event event = new Event(agentId, eventName, data);
+        if (event.size > settings.maxMessageBytes) {
+            log.warn("[SseForwardChannel] event too large for peer {}, dropped: agentId={}, eventName={}, size={}",
+                    peer, agentId, eventName, event.size);
+            countDropped();
+            return false;
+        }
+        lock.lock();
+        try {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(settings.offerTimeoutMs);
+            while (pending.size() + unacked.size() >= settings.maxBufferedEvents) {
+                if (remaining <= 0 || closed) {
+                    dropped++;
+                    log.warn("[SseForwardChannel] buffer of peer {} full, dropped: agentId={}, eventName={}", peer, agentId, eventName);
+                    return false;
+                }
+                remaining = notFull.awaitNanos(remaining);
+            }
+            event.seq = nextSeq++;
+            pending.addLast(event);
+            notEmpty.signal();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            dropped++;
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void close() {
+        closed = true;
+        sender.interrupt();
+        disconnect(session);
+    }
+
+    Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("peer", peer);
+        stats.put("connected", session != null && session.isOpen());
+        lock.lock();
+        try {
+            stats.put("pending", pending.size());
+            stats.put("unacked", unacked.size());
+            stats.put("sentBatches", sentBatches);
+            stats.put("sentEvents", sentEvents);
+            stats.put("ackedEvents", ackedEvents);
+            stats.put("dropped", dropped);
+            stats.put("reconnects", reconnects);
+        } finally {
+            lock.unlock();
+        }
+        return stats;
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                if (!awaitPending()) {
+                    continue;
+                }
+                WebSocketSession current = connect();
+                if (current == null) {
+                    Thread.sleep(settings.reconnectBackoffMs);
+                    continue;
+                }
+                if (settings.lingerMs > 0) {
+                    // let a burst of deltas gather into one frame
+                    Thread.sleep(settings.lingerMs);
+                }
+                List<Event> batch = nextBatch();
+                if (batch.isEmpty()) {
+                    continue;
+                }
+                JSONObject message = new JSONObject();
+                message.put("channel", channelId);
+                message.put("events", batch);
+                try {
+                    current.sendMessage(new TextMessage(JSON.toJSONString(message)));
+                } catch (Exception e) {
+                    log.warn("[SseForwardChannel] failed to send {} events to peer {}, resend after reconnect: {}",
+                            batch.size(), peer, e.getMessage());
+                    disconnect(current);
+                    continue;
+                }
+                lock.lock();
+                try {
+                    sentBatches++;
+                    sentEvents += batch.size();
+                } finally {
+                    lock.unlock();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                log.warn("[SseForwardChannel] sender of peer {} failed: {}", peer, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * wait for events to send, including unacked ones that must be resent after a reconnect
+     */
+    private boolean awaitPending() throws InterruptedException {
+        lock.lock();
+        try {
+            if (pending.isEmpty() && (unacked.isEmpty() || isOpen(session))) {
+                notEmpty.await(1, TimeUnit.SECONDS);
+            }
+            return !pending.isEmpty() || (!unacked.isEmpty() && !isOpen(session));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Open connection to the peer, a new connection resends every unacked event first, in the original order.
+     */
+    private WebSocketSession connect() {
+        WebSocketSession current = session;
+        if (isOpen(current)) {
+            return current;
+        }
+        try {
+            current = new StandardWebSocketClient().doHandshake(new AckHandler(), url)
+                    .get(settings.connectTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            log.warn("[SseForwardChannel] failed to connect to peer {}, retry in {} ms: {}", peer, settings.reconnectBackoffMs, e.getMessage());
+            return null;
+        }
+        lock.lock();
+        try {
+            Iterator<Event> iterator = unacked.descendingIterator();
+            while (iterator.hasNext()) {
+                pending.addFirst(iterator.next());
+            }
+            unacked.clear();
+            reconnects++;
+        } finally {
+            lock.unlock();
+        }
+        session = current;
+        log.info("[SseForwardChannel] connected to peer {}", peer);
+        return current;
+    }
+
+    private List<Event> nextBatch() {
+        List<Event> batch = new ArrayList<>();
+        long bytes = 0;
+        lock.lock();
+        try {
+            while (!pending.isEmpty() && batch.size() < settings.maxBatchEvents) {
+                Event event = pending.peekFirst();
+                if (!batch.isEmpty() && bytes + event.size > settings.maxMessageBytes) {
+                    break;
+                }
+                pending.pollFirst();
+                unacked.addLast(event);
+                batch.add(event);
+                bytes += event.size;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return batch;
+    }
+
+    private void ack(long seq) {
+        lock.lock();
+        try {
+            while (!unacked.isEmpty() && unacked.peekFirst().seq <= seq) {
+                unacked.pollFirst();
+                ackedEvents++;
+            }
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void countDropped() {
+        lock.lock();
+        try {
+            dropped++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void disconnect(WebSocketSession current) {
+        if (current == null) {
+            return;
+        }
+        if (session == current) {
+            session = null;
+        }
+        try {
+            current.close();
+        } catch (Exception e) {
+            log.debug("[SseForwardChannel] failed to close connection to peer {}: {}", peer, e.getMessage());
+        }
+        lock.lock();
+        try {
+            // wake the sender to reconnect and resend
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static boolean isOpen(WebSocketSession session) {
+        return session != null && session.isOpen();
+    }
+
+    private class AckHandler extends TextWebSocketHandler {
+
+        @Override
+        protected void handleTextMessage(WebSocketSession session, TextMessage message) {
+            Long seq = JSON.parseObject(message.getPayload()).getLong("ack");
+            if (seq != null) {
+                ack(seq);
+            }
+        }
+
+        @Override
+        public void handleTransportError(WebSocketSession session, Throwable exception) {
+            log.warn("[SseForwardChannel] connection to peer {} failed: {}", peer, exception.getMessage());
+            disconnect(session);
+        }
+
+        @Override
+        public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+            log.info("[SseForwardChannel] connection to peer {} closed: {}", peer, status);
+            disconnect(session);
+        }
+    }
+
+    /**
+     * one forwarded SSE event, serialized into the batch
+     */
+    static class Event {
+        private long seq;
+        private final String agentId;
+        private final String eventName;
+        private final Object data;
+        private final long size;
+
+        private Event(String agentId, String eventName, Object data) {
+            this.agentId = agentId;
+            this.eventName = eventName;
+            this.data = data;
+            // worst case UTF-8 length of the serialized data
+            this.size = 3L * (data instanceof String ? ((String) data).length() : JSON.toJSONString(data).length()) + 128;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public String getAgentId() {
+            return agentId;
+        }
+
+        public String getEventName() {
+            return eventName;
+        }
+
+        public Object getData() {
+            return data;
+        }
+    }
+
+    static class Settings {
+        int maxBufferedEvents;
+        int maxBatchEvents;
+        long maxMessageBytes;
+        long lingerMs;
+        long offerTimeoutMs;
+        long connectTimeoutMs;
+        long reconnectBackoffMs;
+    }
+}
@@ -0,0 +1,105 @@
+package cn.nolaurene.cms.service.sandbox.backend;
+
+import cn.nolaurene.cms.service.sandbox.backend.agent.AgentSession;
+import cn.nolaurene.cms.service.sandbox.backend.session.GlobalAgentSessionManager;
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONArray;
+import com.alibaba.fastjson2.JSONObject;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+
+import javax.annotation.Resource;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author nolaurence
+ * @date 2026/10/17 下午9:00
+ * @description: receiving end of {@link SseForwardChannel}. Batches are delivered to the local agent sessions in order,
+ * events already delivered on an earlier connection of the same channel are skipped, the highest sequence is acked.
+ */
+@Slf4j
+@Component
+public class SseForwardReceiver extends TextWebSocketHandler {
+
+    public static final String PATH = "/agents/forward/ws";
+
+    /**
+     * channels silent for this long are forgotten
+     */
+    private static final long CHANNEL_EXPIRE_MS = TimeUnit.HOURS.toMillis(1);
+
+    @Resource
+    private GlobalAgentSessionManager globalAgentSessionManager;
+
+    /**
+     * channel of a sender node -> highest delivered sequence
+     */
+    private final ConcurrentHashMap<String, Delivered> channels = new ConcurrentHashMap<>();
+
+    private final AtomicLong deliveredEvents = new AtomicLong();
+
+    private final AtomicLong duplicateEvents = new AtomicLong();
+
+    private final AtomicLong orphanEvents = new AtomicLong();
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) {
+        long now = System.currentTimeMillis();
+        channels.values().removeIf(delivered -> now - delivered.lastSeenAt > CHANNEL_EXPIRE_MS);
+        log.info("[SseForwardReceiver] peer connected: {}", session.getRemoteAddress());
+    }
+
+    @Override
+    protected void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
+        JSONObject batch = JSON.parseObject(message.getPayload());
+        Delivered delivered = channels.computeIfAbsent(batch.getString("channel"), key -> new Delivered());
+        JSONArray events = batch.getJSONArray("events");
+        // one sender per channel, batches of a channel arrive on one connection at a time
+        synchronized (delivered) {
+            delivered.lastSeenAt = System.currentTimeMillis();
+            for (int idx = 0; idx < events.size(); idx++) {
+                JSONObject event = events.getJSONObject(idx);
+                long seq = event.getLongValue("seq");
+                if (seq <= delivered.seq) {
+                    duplicateEvents.incrementAndGet();
+                    continue;
+                }
+                deliver(event.getString("agentId"), event.getString("eventName"), event.get("data"));
+                delivered.seq = seq;
+            }
+            JSONObject ack = new JSONObject();
+            ack.put("ack", delivered.seq);
+            session.sendMessage(new TextMessage(ack.toJSONString()));
+        }
+    }
+
+    public Map<String, Object> stats() {
+        return Map.of(
+                "channels", channels.size(),
+                "deliveredEvents", deliveredEvents.get(),
+                "duplicateEvents", duplicateEvents.get(),
+                "orphanEvents", orphanEvents.get());
+    }
+
+    private void deliver(String agentId, String eventName, Object data) {
+        AgentSession agentSession = globalAgentSessionManager.getSession(agentId);
+        if (agentSession == null) {
+            orphanEvents.incrementAndGet();
+            log.warn("收到转发消息，但session不存在: agentId={}, eventName={}", agentId, eventName);
+            return;
+        }
+        agentSession.sendMessage(eventName, data);
+        deliveredEvents.incrementAndGet();
+    }
+
+    private static class Delivered {
+        private long seq;
+        private volatile long lastSeenAt = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,42 @@
+package cn.nolaurene.cms.service.sandbox.backend;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.socket.config.annotation.EnableWebSocket;
+import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
+import org.springframework.web.socket.server.standard.ServletServerContainerFactoryBean;
+
+import javax.annotation.Resource;
+
+/**
+ * 节点间 SSE 事件转发通道的 WebSocket 配置
+ */
+@Configuration
+@EnableWebSocket
+public class SseForwardWebSocketConfig implements WebSocketConfigurer {
+
+    /**
+     * 单个批次消息的最大字节数，接收端的缓冲区按此设置
+     */
+    @Value("${sandbox.backend.forward.max-message-bytes:1048576}")
+    private int maxMessageBytes;
+
+    @Resource
+    private SseForwardReceiver sseForwardReceiver;
+
+    @Override
+    public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
+        registry.addHandler(sseForwardReceiver, SseForwardReceiver.PATH)
+                .setAllowedOrigins("*");
+    }
+
+    @Bean
+    public ServletServerContainerFactoryBean createWebSocketContainer() {
+        // the default 8 KB text buffer would close the channel on the first large batch
+        ServletServerContainerFactoryBean container = new ServletServerContainerFactoryBean();
+        container.setMaxTextMessageBufferSize(maxMessageBytes);
+        return container;
+    }
+}
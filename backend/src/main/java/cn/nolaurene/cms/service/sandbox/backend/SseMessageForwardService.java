@@ -1,51 +1,95 @@
 package cn.nolaurene.cms.service.sandbox.backend;
 
-import com.alibaba.fastjson2.JSON;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.util.EntityUtils;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * 将事件转发给 agent 所在的节点，每个目标节点一条 WebSocket 通道，按批次有序发送
+ */
 @Slf4j
 @Service
 public class SseMessageForwardService {
 
-    private final CloseableHttpClient httpClient = HttpClients.createDefault();
+    /**
+     * 每个目标节点缓冲的事件数上限，包含已发送未确认的事件
+     */
+    @Value("${sandbox.backend.forward.max-buffered-events:10000}")
+    private int maxBufferedEvents;
 
+    @Value("${sandbox.backend.forward.max-batch-events:200}")
+    private int maxBatchEvents;
+
+    @Value("${sandbox.backend.forward.max-message-bytes:1048576}")
+    private long maxMessageBytes;
+
+    /**
+     * 发送前等待更多事件合并为一批的时间
+     */
+    @Value("${sandbox.backend.forward.linger-ms:10}")
+    private long lingerMs;
+
+    /**
+     * 缓冲区满时生产者最长等待时间，超时后丢弃事件
+     */
+    @Value("${sandbox.backend.forward.offer-timeout-ms:2000}")
+    private long offerTimeoutMs;
+
+    @Value("${sandbox.backend.forward.connect-timeout-ms:5000}")
+    private long connectTimeoutMs;
+
+    @Value("${sandbox.backend.forward.reconnect-backoff-ms:1000}")
+    private long reconnectBackoffMs;
+
+    private SseForwardChannel.Settings settings;
+
+    /**
+     * ip:port of the peer node -> channel
+     */
+    private final ConcurrentHashMap<String, SseForwardChannel> channels = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        settings = new SseForwardChannel.Settings();
+        settings.maxBufferedEvents = Math.max(1, maxBufferedEvents);
+        settings.maxBatchEvents = Math.max(1, maxBatchEvents);
+        settings.maxMessageBytes = maxMessageBytes;
+        settings.lingerMs = lingerMs;
+        settings.offerTimeoutMs = offerTimeoutMs;
+        settings.connectTimeoutMs = connectTimeoutMs;
+        settings.reconnectBackoffMs = reconnectBackoffMs;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        channels.values().forEach(SseForwardChannel::close);
+    }
+
+    /**
+     * Queue the event on the channel of the target node, events of one node arrive in the order they were queued.
+     * Blocks while the buffer of the target node is full.
+     */
     public void forwardMessage(String targetIp, Integer targetPort, String agentId, String eventName, Object data) {
-        String url = String.format("http://%s:%d/agents/%s/forward", targetIp, targetPort, agentId);
-
-        try {
-            HttpPost httpPost = new HttpPost(url);
-            httpPost.setHeader("Content-Type", "application/json");
-
-            ForwardRequest request = new ForwardRequest();
-            request.setEventName(eventName);
-            request.setData(data);
-
-            StringEntity entity = new StringEntity(JSON.toJSONString(request), StandardCharsets.UTF_8);
-            httpPost.setEntity(entity);
-
-            CloseableHttpResponse response = httpClient.execute(httpPost);
-            int statusCode = response.getStatusLine().getStatusCode();
-            if (statusCode == 200) {
-                log.info("成功转发消息到 {}: agentId={}, eventName={}", url, agentId, eventName);
-            } else {
-                log.warn("转发消息到 {} 失败: status code={}", url, statusCode);
-            }
-            EntityUtils.consume(response.getEntity());
-        } catch (IOException e) {
-            log.error("转发消息到 {} 失败: agentId={}, eventName={}", url, agentId, eventName, e);
+        SseForwardChannel channel = channels.computeIfAbsent(targetIp + ":" + targetPort,
+                key -> new SseForwardChannel(targetIp, targetPort, settings));
+        if (!channel.offer(agentId, eventName, data)) {
+            log.warn("转发消息到 {}:{} 失败: agentId={}, eventName={}", targetIp, targetPort, agentId, eventName);
         }
     }
 
+    public List<Map<String, Object>> stats() {
+        List<Map<String, Object>> result = new ArrayList<>();
+        channels.values().forEach(channel -> result.add(channel.stats()));
+        return result;
+    }
+
     public static class ForwardRequest {
         private String eventName;
         private Object data;
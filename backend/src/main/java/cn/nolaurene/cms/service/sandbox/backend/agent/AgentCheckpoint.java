@@ -0,0 +1,61 @@
+package cn.nolaurene.cms.service.sandbox.backend.agent;
+
+import cn.nolaurene.cms.common.sandbox.backend.llm.ChatMessage;
+import cn.nolaurene.cms.service.sandbox.backend.message.Plan;
+import lombok.Data;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * @author nolaurence
+ * @date 2026/10/17 下午8:40
+ * @description: state of a plan-act run at a step boundary, enough to go on from the next state on any node
+ */
+@Data
+public class AgentCheckpoint {
+
+    public static final String RUNNING = "RUNNING";
+
+    public static final String COMPLETED = "COMPLETED";
+
+    private String agentId;
+
+    private String userId;
+
+    /**
+     * user input of the run
+     */
+    private String input;
+
+    /**
+     * state the run goes on from
+     */
+    private AgentStatus agentStatus;
+
+    /**
+     * round the run goes on from
+     */
+    private int round;
+
+    /**
+     * plan with the status and result of every step, null before planning
+     */
+    private Plan plan;
+
+    private String memorySummary;
+
+    /**
+     * messages of the memory window, tool results already compacted
+     */
+    private List<ChatMessage> memoryMessages;
+
+    private String runStatus;
+
+    /**
+     * node that wrote the checkpoint
+     */
+    private String serverIp;
+
+    private Date gmtModified;
+}
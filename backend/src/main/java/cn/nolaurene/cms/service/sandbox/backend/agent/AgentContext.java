@@ -1,14 +1,13 @@
 package cn.nolaurene.cms.service.sandbox.backend.agent;
 
 
+import cn.nolaurene.cms.service.sandbox.backend.tool.ToolFamily;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
 import org.apache.commons.lang3.StringUtils;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Set;
-import java.util.stream.Collectors;
-
 /**
  * @author nolaurence
  * @date 2026/1/28 下午1:36
@@ -57,59 +56,76 @@ public class AgentContext {
      */
     private String lastToolName;
 
-    private List<String> toolList = null;
-    
+    /**
+     * families of every tool used in the session, one bit per {@link ToolFamily}
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private int usedFamilies;
+
+    /**
+     * families of the last {@link #RECENT_TOOL_WINDOW} tool calls, ring buffer of family ordinals with a count per family
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private final int[] recentTools = new int[RECENT_TOOL_WINDOW];
+
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private final int[] recentFamilyCounts = new int[ToolFamily.values().length];
+
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private int recentToolCount;
+
+    private static final int RECENT_TOOL_WINDOW = 8;
     private static final int MAX_SNAPSHOT_LENGTH = 8000;
     private static final int MAX_SHELL_OUTPUT_LENGTH = 4000;
     private static final int MAX_FILE_CONTENT_LENGTH = 4000;
 
     public boolean hitBrowser() {
-        if (toolList == null || toolList.isEmpty()) {
-            return false;
-        }
-        Set<String> hitSet = toolList.parallelStream().map(tool -> {
-            String[] s = tool.split("_");
-            if (s.length == 0) {
-                return "";
-            }
-            return s[0];
-        }).collect(Collectors.toSet());
-        return hitSet.contains("browser");
+        return hit(ToolFamily.BROWSER);
     }
 
     public boolean hitShell() {
-        if (toolList == null || toolList.isEmpty()) {
-            return false;
-        }
-        Set<String> hitSet = toolList.parallelStream().map(tool -> {
-            String[] s = tool.split("_");
-            if (s.length == 0) {
-                return "";
-            }
-            return s[0];
-        }).collect(Collectors.toSet());
-        return hitSet.contains("shell");
+        return hit(ToolFamily.SHELL);
     }
     
     public boolean hitFile() {
-        if (toolList == null || toolList.isEmpty()) {
-            return false;
+        return hit(ToolFamily.FILE);
+    }
+
+    public synchronized boolean hit(ToolFamily family) {
+        return (usedFamilies & family.bit()) != 0;
+    }
+
+    /**
+     * record a tool call, updates the family bits in O(1)
+     */
+    public synchronized void addTool(String toolName) {
+        ToolFamily family = ToolFamily.of(toolName);
+        usedFamilies |= family.bit();
+
+        int slot = recentToolCount % RECENT_TOOL_WINDOW;
+        if (recentToolCount >= RECENT_TOOL_WINDOW) {
+            recentFamilyCounts[recentTools[slot]]--;
         }
-        Set<String> hitSet = toolList.parallelStream().map(tool -> {
-            String[] s = tool.split("_");
-            if (s.length == 0) {
-                return "";
-            }
-            return s[0];
-        }).collect(Collectors.toSet());
-        return hitSet.contains("file");
+        recentTools[slot] = family.ordinal();
+        recentFamilyCounts[family.ordinal()]++;
+        recentToolCount++;
     }
 
-    public void addTool(String toolName) {
-        if (null == toolList) {
-            toolList = new ArrayList<>();
+    /**
+     * bitset of the families used by the most recent tool calls of the session
+     */
+    public synchronized int recentFamilies() {
+        int families = 0;
+        for (ToolFamily family : ToolFamily.values()) {
+            if (recentFamilyCounts[family.ordinal()] > 0) {
+                families |= family.bit();
+            }
         }
-        toolList.add(toolName);
+        return families;
     }
     
     /**
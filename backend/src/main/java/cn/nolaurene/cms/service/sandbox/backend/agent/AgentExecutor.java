@@ -9,21 +9,25 @@ import cn.nolaurene.cms.common.sandbox.backend.model.data.*;
 import cn.nolaurene.cms.service.sandbox.backend.message.Plan;
 import cn.nolaurene.cms.service.sandbox.backend.message.Step;
 import cn.nolaurene.cms.service.sandbox.backend.utils.ReActParser;
+import cn.nolaurene.cms.service.sandbox.backend.AgentThreads;
 import cn.nolaurene.cms.service.sandbox.backend.ToolRegistry;
+import cn.nolaurene.cms.service.sandbox.backend.message.AgentCheckpointService;
 import cn.nolaurene.cms.service.sandbox.backend.message.ConversationHistoryService;
 import cn.nolaurene.cms.service.sandbox.backend.SseMessageForwardService;
 import cn.nolaurene.cms.common.dto.ConversationRequest;
 import cn.nolaurene.cms.dal.enhance.entity.ConversationHistoryDO;
-import cn.nolaurene.cms.dal.entity.AgentSessionServerDO;
 import cn.nolaurene.cms.service.AgentSessionServerService;
+import cn.nolaurene.cms.service.sandbox.backend.llm.ContextWindowManager;
+import cn.nolaurene.cms.service.sandbox.backend.llm.LlmClient;
+import cn.nolaurene.cms.service.sandbox.backend.llm.LlmPriority;
 import com.alibaba.fastjson2.JSON;
-import dev.langchain4j.model.chat.ChatModel;
 import io.mybatis.mapper.example.Example;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Component;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
@@ -32,11 +36,12 @@ import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.util.*;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import javax.annotation.Resource;
 
 
@@ -56,23 +61,33 @@ public class AgentExecutor {
     @Setter
     @Getter
     private String systemPrompt;
-    private ChatModel chatModel;
+    private LlmClient llmClient;
     private Agent agent;
     private final ChatMemory memory = new ChatMemory();
     private static final String START_SIGNAL = "[START]";
     private static final String DONE_SIGNAL = "[DONE]";
-    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(
-            5,
-            20,
-            0L,
-            TimeUnit.SECONDS,
-            new LinkedBlockingQueue<Runnable>()
-    );
+
+    /**
+     * 计划中没有依赖关系的就绪步骤是否并发执行，每个步骤使用独立的 shell 会话，浏览器只分配给第一个步骤
+     */
+    @Value("${sandbox.backend.execution.parallel-steps:false}")
+    private boolean parallelSteps;
+
+    /**
+     * 同时执行的步骤数上限
+     */
+    @Value("${sandbox.backend.execution.max-parallel-steps:3}")
+    private int maxParallelSteps;
 
     private final AtomicBoolean frontendConnected = new AtomicBoolean(true);
     private volatile SseEmitter currentSseEmitter = null;
     private final List<Long> currentStepToolIds = new ArrayList<>();
 
+    /**
+     * shell sessions opened on the worker for the non-lead branches and not closed yet
+     */
+    private final Set<String> branchShellSessions = ConcurrentHashMap.newKeySet();
+
     private String localServerIp = "127.0.0.1";
 
     @Resource
@@ -89,6 +104,15 @@ public class AgentExecutor {
     @Resource
     private ExecutionSubAgent executionSubAgent;
 
+    @Resource
+    private ContextWindowManager contextWindowManager;
+
+    @Resource
+    private AgentThreads agentThreads;
+
+    @Resource
+    private AgentCheckpointService agentCheckpointService;
+
     public AgentExecutor() {
         this.MAX_ROUNDS = 30;
         try {
@@ -98,28 +122,30 @@ public class AgentExecutor {
         }
     }
 
-    private boolean shouldDirectSend(String agentId) {
+    /**
+     * owner of the agent when it is another node, null when the event is sent here
+     */
+    private AgentSessionServerService.Owner remoteOwner(String agentId) {
         if (agent == null || agent.getAgentId() == null) {
-            return true;
+            return null;
         }
 
-        AgentSessionServerDO serverInfo = agentSessionServerService.getByAgentId(agentId);
-        if (serverInfo == null || serverInfo.getServerIp() == null) {
+        // answered from the local ownership cache, the table is only read when the lease ran out
+        AgentSessionServerService.Owner owner = agentSessionServerService.getOwner(agentId);
+        if (owner == null || owner.getServerIp() == null) {
             log.warn("无法获取agent {} 的服务器信息，默认直接发送", agentId);
-            return true;
+            return null;
         }
 
-        return localServerIp.equals(serverInfo.getServerIp());
+        return localServerIp.equals(owner.getServerIp()) ? null : owner;
     }
 
     private void sendOrForwardMessage(SseEmitter emitter, String eventName, Object data) {
-        if (!shouldDirectSend(agent.getAgentId())) {
-            AgentSessionServerDO serverInfo = agentSessionServerService.getByAgentId(agent.getAgentId());
-            if (serverInfo != null) {
-                log.info("转发消息到服务器 {}: agentId={}, eventName={}", serverInfo.getServerIp(), agent.getAgentId(), eventName);
-                sseMessageForwardService.forwardMessage(serverInfo.getServerIp(), serverInfo.getServerPort(), agent.getAgentId(), eventName, data);
-                return;
-            }
+        AgentSessionServerService.Owner owner = remoteOwner(agent.getAgentId());
+        if (owner != null) {
+            log.info("转发消息到服务器 {}: agentId={}, eventName={}", owner.getServerIp(), agent.getAgentId(), eventName);
+            sseMessageForwardService.forwardMessage(owner.getServerIp(), owner.getServerPort(), agent.getAgentId(), eventName, data);
+            return;
         }
 
         try {
@@ -137,9 +163,12 @@ public class AgentExecutor {
         }
     }
 
-    public void initialize(ToolRegistry tools, ChatModel chatModel, Agent agent) {
+    public void initialize(ToolRegistry tools, LlmClient llmClient, Agent agent) {
         this.tools = tools;
-        this.chatModel = chatModel;
+        this.llmClient = llmClient;
+        // sessions whose frontend went away yield the endpoint to users that are watching
+        this.llmClient.setPrioritySupplier(() -> frontendConnected.get() ? LlmPriority.INTERACTIVE : LlmPriority.BACKGROUND);
+        this.llmClient.setPromptMemory(memory);
         this.MAX_ROUNDS = agent.getMaxLoop();
         this.agent = agent;
     }
@@ -160,9 +189,39 @@ public class AgentExecutor {
         ensureMemory();
         addMessageToMemory(new ChatMessage(ChatMessage.Role.user, input));
 
-        AgentStatus agentStatus = AgentStatus.IDLE;
-        Plan plan = new Plan();
-        for (int round = 1; round <= MAX_ROUNDS; round++) {
+        agentCheckpointService.save(checkpointOf(input, AgentStatus.IDLE, 1, null));
+        runPlanAct(input, AgentStatus.IDLE, new Plan(), 1, emitter);
+    }
+
+    /**
+     * Go on with an interrupted run from its last checkpoint, the steps finished before are not executed again.
+     * A memory that survived on this node is newer than the checkpoint and is kept.
+     */
+    public void resume(AgentCheckpoint checkpoint, SseEmitter emitter) {
+        this.currentSseEmitter = emitter;
+        this.frontendConnected.set(true);
+
+        setupSseEmitterListeners(emitter);
+        if (memory.isEmpty()) {
+            memory.restore(checkpoint.getMemorySummary(), checkpoint.getMemoryMessages());
+        }
+
+        Plan plan = checkpoint.getPlan() != null ? checkpoint.getPlan() : new Plan();
+        if (plan.getSteps() != null) {
+            // a step that was running when the run died starts over
+            plan.getSteps().stream()
+                    .filter(step -> StepEventStatus.running.getCode().equals(step.getStatus()))
+                    .forEach(step -> step.setStatus(StepEventStatus.pending.getCode()));
+            syncRespondPlan(plan, emitter);
+        }
+        log.info("[PLAN ACT] Resume agent {} from {} at round {}", agent.getAgentId(), checkpoint.getAgentStatus(), checkpoint.getRound());
+        runPlanAct(checkpoint.getInput(), checkpoint.getAgentStatus(), plan, checkpoint.getRound(), emitter);
+    }
+
+    private void runPlanAct(String input, AgentStatus initialStatus, Plan initialPlan, int firstRound, SseEmitter emitter) {
+        AgentStatus agentStatus = initialStatus;
+        Plan plan = initialPlan;
+        for (int round = firstRound; round <= MAX_ROUNDS; round++) {
             try {
                 switch (agentStatus) {
                     case IDLE:
@@ -171,7 +230,20 @@ public class AgentExecutor {
                         break;
 
                     case PLANNING:
-                        String rawPlan = agent.getPlanner().createPlan(chatModel, input, memory);
+                        fitContext();
+                        String rawPlan;
+                        String thought;
+                        if (llmClient.isStreaming()) {
+                            // tokens go to the frontend as they arrive, the thought is embedded in the streamed content
+                            syncRespondThought(START_SIGNAL, emitter);
+                            syncRespondThought(DONE_SIGNAL, emitter);
+                            rawPlan = agent.getPlanner().createPlan(llmClient, input, memory, delta -> syncRespondContent(delta, emitter));
+                            syncRespondContent(DONE_SIGNAL, emitter);
+                            thought = ReActParser.parseThinking(rawPlan);
+                        } else {
+                            rawPlan = agent.getPlanner().createPlan(llmClient, input, memory);
+                            thought = ReActParser.parseThinking(rawPlan);
+                        }
 
                         log.info("[PLAN ACT] Raw plan for round {}: {}", round, rawPlan);
                         if (StringUtils.isBlank(rawPlan)) {
@@ -179,12 +251,13 @@ public class AgentExecutor {
                             agentStatus = AgentStatus.IDLE;
                             continue;
                         }
-                        String thought = ReActParser.parseThinking(rawPlan);
-                        syncRespondThought(START_SIGNAL, emitter);
-                        syncRespondThought(thought, emitter);
-                        syncRespondThought(DONE_SIGNAL, emitter);
-                        syncRespondContent(rawPlan, emitter);
-                        syncRespondContent(DONE_SIGNAL, emitter);
+                        if (!llmClient.isStreaming()) {
+                            syncRespondThought(START_SIGNAL, emitter);
+                            syncRespondThought(thought, emitter);
+                            syncRespondThought(DONE_SIGNAL, emitter);
+                            syncRespondContent(rawPlan, emitter);
+                            syncRespondContent(DONE_SIGNAL, emitter);
+                        }
                         addMessageToMemory(new ChatMessage(ChatMessage.Role.assistant, SSEEventType.MESSAGE, "**Thinking:**\n" + thought + "\n\n**Response:**\n" + rawPlan));
                         plan = ReActParser.parsePlan(rawPlan);
                         if (null == plan) {
@@ -197,22 +270,21 @@ public class AgentExecutor {
                         addMessageToMemory(new ChatMessage(ChatMessage.Role.assistant, SSEEventType.PLAN, JSON.toJSONString(plan)));
 
                         agentStatus = AgentStatus.EXECUTING;
+                        saveCheckpoint(input, agentStatus, round + 1, plan);
                         break;
 
                     case EXECUTING:
-                        Optional<Step> currentStepOpt = plan.getSteps().stream()
-                                .filter(step -> StepEventStatus.pending.getCode().equals(step.getStatus()))
-                                .findFirst();
-                        if (currentStepOpt.isEmpty()) {
+                        List<Step> readySteps = selectReadySteps(plan);
+                        if (readySteps.isEmpty()) {
                             log.info("[PLAN ACT] No pending steps in EXECUTING phase for round {}, go to CONCLUDING.", round);
                             agentStatus = AgentStatus.CONCLUDING;
                             break;
                         }
 
-                        Step currentStep = currentStepOpt.get();
-                        currentStep.setStatus(StepEventStatus.running.getCode());
-
-                        reportStep(StepEventStatus.running, currentStep.getDescription(), emitter);
+                        for (Step readyStep : readySteps) {
+                            readyStep.setStatus(StepEventStatus.running.getCode());
+                            reportStep(StepEventStatus.running, readyStep, emitter);
+                        }
                         syncRespondPlan(plan, emitter);
                         addMessageToMemory(new ChatMessage(ChatMessage.Role.assistant, SSEEventType.PLAN, JSON.toJSONString(plan)));
 
@@ -221,27 +293,32 @@ public class AgentExecutor {
                                 .filter(step -> StepEventStatus.completed.getCode().equals(step.getStatus()))
                                 .collect(Collectors.toList());
 
+                        // results are dropped from older steps, except the ones a step still waiting depends on
+                        Set<Integer> requiredStepIds = plan.getSteps().stream()
+                                .filter(step -> !StepEventStatus.completed.getCode().equals(step.getStatus()))
+                                .filter(step -> step.getDependsOn() != null)
+                                .flatMap(step -> step.getDependsOn().stream())
+                                .collect(Collectors.toSet());
                         if (CollectionUtils.isNotEmpty(completedSteps)) {
                             for (int idx = completedSteps.size() - 2; idx >= 0; idx--) {
-                                completedSteps.get(idx).setResult("");
+                                Step completedStep = completedSteps.get(idx);
+                                if (!requiredStepIds.contains(completedStep.getId())) {
+                                    completedStep.setResult("");
+                                }
                             }
                         }
 
-                        // Execute step via ExecutionSubAgent with native function calling
-                        String observation = executionSubAgent.executeStepWithLoop(
-                                chatModel,
-                                agent.getExecutor(),
-                                plan,
-                                currentStep,
-                                completedSteps,
-                                agent.getExecutionMaxLoop(),
-                                emitter,
-                                agent);
-
-                        currentStep.setResult(observation);
-                        currentStep.setStatus(StepEventStatus.completed.getCode());
-
-                        reportStep(StepEventStatus.completed, currentStep.getDescription(), emitter);
+                        // Execute the ready steps via ExecutionSubAgent with native function calling
+                        executeReadySteps(plan, readySteps, completedSteps, emitter);
+
+                        // merge the results in plan order once every branch is done
+                        for (Step readyStep : readySteps) {
+                            StepEventStatus stepStatus = StepEventStatus.failed.getCode().equals(readyStep.getStatus())
+                                    ? StepEventStatus.failed
+                                    : StepEventStatus.completed;
+                            readyStep.setStatus(stepStatus.getCode());
+                            reportStep(stepStatus, readyStep, emitter);
+                        }
                         syncRespondPlan(plan, emitter);
                         conversationHistoryService.updateLastPlan(agent.getAgentId(), plan);
 
@@ -251,27 +328,24 @@ public class AgentExecutor {
                         boolean hasMorePendingSteps = plan.getSteps().stream()
                                 .anyMatch(step -> StepEventStatus.pending.getCode().equals(step.getStatus()));
                         agentStatus = hasMorePendingSteps ? AgentStatus.UPDATING : AgentStatus.CONCLUDING;
+                        saveCheckpoint(input, agentStatus, round + 1, plan);
                         break;
 
                     case UPDATING:
                         List<Step> finishedSteps = plan.getSteps().stream().filter(step -> !step.getStatus().equals(StepEventStatus.pending.getCode())).collect(Collectors.toList());
 
-                        String updatedStepsString = agent.getPlanner().updatePlan(chatModel, memory, plan);
+                        fitContext();
+                        String updatedStepsString = agent.getPlanner().updatePlan(llmClient, memory, plan);
                         log.info("[PLAN ACT] Updated steps for round {}: {}", round, updatedStepsString);
 
-                        List<String> newSteps = ReActParser.parseStepDescriptions(updatedStepsString);
+                        List<Step> newSteps = ReActParser.parseStepListFromContent(updatedStepsString);
                         if (CollectionUtils.isEmpty(newSteps)) {
                             log.warn("[PLAN ACT] No new steps found in updated steps for round {}, skipping to conclude round.", round);
                             agentStatus = AgentStatus.CONCLUDING;
                             break;
                         }
 
-                        finishedSteps.addAll(newSteps.stream().map(stepString -> {
-                            Step step = new Step();
-                            step.setDescription(stepString);
-                            step.setStatus(StepEventStatus.pending.getCode());
-                            return step;
-                        }).collect(Collectors.toList()));
+                        finishedSteps.addAll(mergeUpdatedSteps(finishedSteps, plan.getSteps(), newSteps));
                         plan.setSteps(new ArrayList<>(finishedSteps));
                         log.info("[PLAN ACT] Updated global steps for round {}: {}", round, JSON.toJSONString(plan.getSteps()));
 
@@ -279,16 +353,23 @@ public class AgentExecutor {
                         conversationHistoryService.updateLastPlan(agent.getAgentId(), plan);
 
                         agentStatus = AgentStatus.EXECUTING;
+                        saveCheckpoint(input, agentStatus, round + 1, plan);
                         break;
 
                     case CONCLUDING:
-                        String conclusion = agent.getExecutor().conclude(chatModel, memory.getHistory());
-
                         syncRespondThought(START_SIGNAL, emitter);
                         syncRespondThought(DONE_SIGNAL, emitter);
-                        syncRespondContent(conclusion, emitter);
+                        fitContext();
+                        String conclusion;
+                        if (llmClient.isStreaming()) {
+                            conclusion = agent.getExecutor().conclude(llmClient, memory.getHistory(), delta -> syncRespondContent(delta, emitter));
+                        } else {
+                            conclusion = agent.getExecutor().conclude(llmClient, memory.getHistory());
+                            syncRespondContent(conclusion, emitter);
+                        }
                         syncRespondContent(DONE_SIGNAL, emitter);
                         saveAssistantMessage(conclusion, SSEEventType.MESSAGE);
+                        agentCheckpointService.markCompleted(agent.getAgentId());
                         agentStatus = AgentStatus.IDLE;
                         round = MAX_ROUNDS + 1;
                         break;
@@ -305,6 +386,160 @@ public class AgentExecutor {
         }
     }
 
+    /**
+     * Pending steps whose dependencies are all finished, in plan order.
+     * Only the first one is returned unless parallel steps are enabled.
+     */
+    private List<Step> selectReadySteps(Plan plan) {
+        List<Step> pendingSteps = plan.getSteps().stream()
+                .filter(step -> StepEventStatus.pending.getCode().equals(step.getStatus()))
+                .collect(Collectors.toList());
+        if (pendingSteps.isEmpty()) {
+            return pendingSteps;
+        }
+
+        // a failed dependency does not block, the plan update decides how to go on
+        Set<Integer> unfinishedStepIds = plan.getSteps().stream()
+                .filter(step -> StepEventStatus.pending.getCode().equals(step.getStatus())
+                        || StepEventStatus.running.getCode().equals(step.getStatus()))
+                .map(Step::getId)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toSet());
+        List<Step> readySteps = pendingSteps.stream()
+                .filter(step -> step.getDependsOn() == null
+                        || step.getDependsOn().stream().noneMatch(unfinishedStepIds::contains))
+                .collect(Collectors.toList());
+        if (readySteps.isEmpty()) {
+            log.warn("[PLAN ACT] Dependencies of the pending steps can not be satisfied, run step {} first", pendingSteps.get(0).getId());
+            return List.of(pendingSteps.get(0));
+        }
+
+        int limit = parallelSteps ? Math.max(1, maxParallelSteps) : 1;
+        return new ArrayList<>(readySteps.subList(0, Math.min(limit, readySteps.size())));
+    }
+
+    /**
+     * Run the ready steps, concurrently when there are several of them.
+     * The first step is the lead branch and keeps the agent shell session, the browser and the content stream.
+     */
+    private void executeReadySteps(Plan plan, List<Step> readySteps, List<Step> completedSteps, SseEmitter emitter) throws Exception {
+        if (readySteps.size() == 1) {
+            Step currentStep = readySteps.get(0);
+            currentStep.setResult(executionSubAgent.executeStepWithLoop(
+                    llmClient,
+                    agent.getExecutor(),
+                    plan,
+                    currentStep,
+                    completedSteps,
+                    agent.getExecutionMaxLoop(),
+                    emitter,
+                    agent));
+            return;
+        }
+
+        log.info("[PLAN ACT] Execute steps {} concurrently", readySteps.stream().map(Step::getId).collect(Collectors.toList()));
+        List<Future<String>> futures = new ArrayList<>();
+        for (int idx = 0; idx < readySteps.size(); idx++) {
+            Step currentStep = readySteps.get(idx);
+            StepBranch branch = StepBranch.of(agent.getAgentId(), currentStep.getId(), idx == 0);
+            if (idx > 0) {
+                branchShellSessions.add(branch.getShellSessionId());
+            }
+            futures.add(agentThreads.stepExecutor().submit(() -> executionSubAgent.executeStepWithLoop(
+                    llmClient,
+                    agent.getExecutor(),
+                    plan,
+                    currentStep,
+                    completedSteps,
+                    agent.getExecutionMaxLoop(),
+                    emitter,
+                    agent,
+                    branch)));
+        }
+
+        try {
+            for (int idx = 0; idx < readySteps.size(); idx++) {
+                Step currentStep = readySteps.get(idx);
+                try {
+                    currentStep.setResult(futures.get(idx).get());
+                } catch (ExecutionException e) {
+                    // the other branches keep their results, the failed step is left to the plan update
+                    log.error("[PLAN ACT] Step {} failed: ", currentStep.getId(), e.getCause());
+                    currentStep.setResult("Step failed: " + e.getCause().getMessage());
+                    currentStep.setStatus(StepEventStatus.failed.getCode());
+                }
+            }
+        } finally {
+            closeBranchShells();
+        }
+    }
+
+    /**
+     * Kill the shell processes the non-lead branches opened on the worker, the lead branch keeps the agent session.
+     * Sessions the worker could not be reached for are retried on the next call.
+     */
+    public void closeBranchShells() {
+        for (String shellSessionId : branchShellSessions) {
+            if (executionSubAgent.closeShellSession(agent, shellSessionId)) {
+                branchShellSessions.remove(shellSessionId);
+            }
+        }
+    }
+
+    /**
+     * Give the re-planned steps ids that do not clash with the finished steps, and keep only the dependencies
+     * on steps that still exist. The planner sees the finished steps, an id it reuses in depends_on means the
+     * finished step, any other id is looked up in the old-id to new-id map of the new steps.
+     * A kept pending step whose dependencies the update left out keeps the ones it had.
+     */
+    private List<Step> mergeUpdatedSteps(List<Step> finishedSteps, List<Step> previousSteps, List<Step> newSteps) {
+        Set<Integer> finishedIds = finishedSteps.stream().map(Step::getId).filter(Objects::nonNull).collect(Collectors.toSet());
+        Map<Integer, List<Integer>> previousDependsOn = new HashMap<>();
+        for (Step step : previousSteps) {
+            if (step.getId() != null && !finishedIds.contains(step.getId()) && step.getDependsOn() != null) {
+                previousDependsOn.putIfAbsent(step.getId(), step.getDependsOn());
+            }
+        }
+        for (Step step : newSteps) {
+            // looked up before the ids are renamed, the previous dependencies use the ids the model saw
+            if (step.getDependsOn() == null && step.getId() != null) {
+                step.setDependsOn(previousDependsOn.get(step.getId()));
+            }
+        }
+        int nextId = Stream.concat(finishedSteps.stream(), newSteps.stream())
+                .map(Step::getId)
+                .filter(Objects::nonNull)
+                .max(Integer::compare)
+                .orElse(0) + 1;
+
+        Map<Integer, Integer> newIdsByOldId = new HashMap<>();
+        Set<Integer> usedIds = new HashSet<>(finishedIds);
+        for (Step step : newSteps) {
+            Integer oldId = step.getId();
+            int newId = oldId == null || usedIds.contains(oldId) ? nextId++ : oldId;
+            step.setId(newId);
+            usedIds.add(newId);
+            if (oldId != null && !finishedIds.contains(oldId)) {
+                // a duplicated id keeps pointing at its first step
+                newIdsByOldId.putIfAbsent(oldId, newId);
+            }
+        }
+
+        for (Step step : newSteps) {
+            step.setStatus(StepEventStatus.pending.getCode());
+            if (step.getDependsOn() == null) {
+                continue;
+            }
+            step.setDependsOn(step.getDependsOn().stream()
+                    .filter(Objects::nonNull)
+                    .map(id -> finishedIds.contains(id) ? id : newIdsByOldId.get(id))
+                    .filter(id -> id != null && !id.equals(step.getId()))
+                    .distinct()
+                    .collect(Collectors.toList()));
+        }
+        return newSteps;
+    }
+
     private void syncRespondThought(String reasoningContent, SseEmitter sseEmitter) {
         MessageEventData messageEvent = new MessageEventData();
         messageEvent.setReasoningContentDelta(reasoningContent);
@@ -356,7 +591,7 @@ public class AgentExecutor {
         data.setDescription(description);
 
         if (frontendConnected.get() && sseEmitter != null) {
-            executor.submit(() -> {
+            agentThreads.eventExecutor().submit(() -> {
                 if (frontendConnected.get()) {
                     sendOrForwardMessage(sseEmitter, SSEEventType.STEP.getType(), data);
                 }
@@ -366,7 +601,8 @@ public class AgentExecutor {
         }
     }
 
-    private void reportStep(StepEventStatus status, String description, SseEmitter sseEmitterOpt) {
+    private void reportStep(StepEventStatus status, Step step, SseEmitter sseEmitterOpt) {
+        String description = step.getDescription();
         addMessageToMemory(new ChatMessage(ChatMessage.Role.assistant, SSEEventType.STEP, description));
         if (frontendConnected.get() && sseEmitterOpt != null) {
             asyncStep(status, description, sseEmitterOpt);
@@ -381,13 +617,13 @@ public class AgentExecutor {
         switch(status) {
             case running:
                 currentStepToolIds.clear();
-                conversationHistoryService.addStep(agent.getUserId(), agent.getAgentId(), description);
+                conversationHistoryService.addStep(agent.getUserId(), agent.getAgentId(), step.getId(), description);
                 break;
             case completed:
-                conversationHistoryService.updateLastStepStatus(agent.getAgentId(), StepEventStatus.completed.getCode(), new ArrayList<>(currentStepToolIds));
+                conversationHistoryService.updateStepStatus(agent.getAgentId(), step.getId(), StepEventStatus.completed.getCode(), new ArrayList<>(currentStepToolIds));
                 break;
             case failed:
-                conversationHistoryService.updateLastStepStatus(agent.getAgentId(), StepEventStatus.failed.getCode(), null);
+                conversationHistoryService.updateStepStatus(agent.getAgentId(), step.getId(), StepEventStatus.failed.getCode(), null);
                 break;
         }
     }
@@ -514,7 +750,38 @@ public class AgentExecutor {
         this.memory.add(message);
     }
 
+    /**
+     * Record where the run goes on from, the memory is saved in its compacted form.
+     * Stops the run when another node took it over meanwhile.
+     */
+    private void saveCheckpoint(String input, AgentStatus nextStatus, int nextRound, Plan plan) {
+        if (!agentCheckpointService.saveOwned(checkpointOf(input, nextStatus, nextRound, plan))) {
+            throw new IllegalStateException("run of agent " + agent.getAgentId() + " was taken over by another node");
+        }
+    }
+
+    private AgentCheckpoint checkpointOf(String input, AgentStatus nextStatus, int nextRound, Plan plan) {
+        AgentCheckpoint checkpoint = new AgentCheckpoint();
+        checkpoint.setAgentId(agent.getAgentId());
+        checkpoint.setUserId(agent.getUserId());
+        checkpoint.setInput(input);
+        checkpoint.setAgentStatus(nextStatus);
+        checkpoint.setRound(nextRound);
+        checkpoint.setPlan(plan);
+        checkpoint.setMemorySummary(memory.getSummary());
+        checkpoint.setMemoryMessages(memory.getWindow());
+        checkpoint.setRunStatus(AgentCheckpoint.RUNNING);
+        return checkpoint;
+    }
+
     private void compactMemory() {
         this.memory.compact();
     }
+
+    /**
+     * keep the memory handed to planner and executor within the token budget of the model
+     */
+    private void fitContext() {
+        contextWindowManager.fit(memory, llmClient, agent.getLlmModelName());
+    }
 }
@@ -3,9 +3,18 @@ package cn.nolaurene.cms.service.sandbox.backend.agent;
 
 import cn.nolaurene.cms.common.sandbox.backend.model.Agent;
 import cn.nolaurene.cms.service.sandbox.backend.ToolRegistry;
+import cn.nolaurene.cms.service.sandbox.backend.llm.ChatModelRegistry;
+import cn.nolaurene.cms.service.sandbox.backend.llm.LlmAdmissionController;
+import cn.nolaurene.cms.service.sandbox.backend.llm.LlmClient;
+import cn.nolaurene.cms.service.sandbox.backend.llm.LlmHedgingPolicy;
+import cn.nolaurene.cms.service.sandbox.backend.llm.LlmPhase;
+import cn.nolaurene.cms.service.sandbox.backend.llm.LlmUsageRecorder;
 import dev.langchain4j.model.chat.ChatModel;
-import dev.langchain4j.model.openai.OpenAiChatModel;
+import dev.langchain4j.model.chat.StreamingChatModel;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationContext;
 import org.springframework.stereotype.Service;
 
@@ -14,6 +23,7 @@ import org.springframework.stereotype.Service;
  * @date 2025/11/11 下午4:00
  * @description:
  */
+@Slf4j
 @Service
 public class AgentExecutorFactory {
 
@@ -23,22 +33,76 @@ public class AgentExecutorFactory {
     @Autowired
     private ToolRegistry toolRegistry;
 
+    @Autowired
+    private LlmUsageRecorder llmUsageRecorder;
+
+    @Autowired
+    private ChatModelRegistry chatModelRegistry;
+
+    @Autowired
+    private LlmAdmissionController llmAdmissionController;
+
+    @Autowired
+    private LlmHedgingPolicy llmHedgingPolicy;
+
+    /**
+     * 是否以流式方式调用LLM，开启后token增量直接通过SSE推送给前端
+     */
+    @Value("${sandbox.backend.llm.streaming:true}")
+    private boolean streaming;
+
     public AgentExecutor createAgentExecutor(Agent agent) {
-        ChatModel chatModel = createChatModel(
-                agent.getLlmEndpoint(), agent.getLlmApiKey(), agent.getLlmModelName());
+        LlmClient llmClient = createLlmClient(agent, agent.getLlmEndpoint(), agent.getLlmApiKey(), agent.getLlmModelName());
 
-        AgentExecutor executor = applicationContext.getBean(AgentExecutor.class);
+        // phases configured with their own model, endpoint and apiKey default to the agent's
+        if (agent.getLlmPhaseModels() != null) {
+            agent.getLlmPhaseModels().forEach((phaseCode, config) -> {
+                LlmPhase phase = LlmPhase.fromCode(phaseCode);
+                if (phase == null || config == null || StringUtils.isBlank(config.getModelName())) {
+                    return;
+                }
+                llmClient.route(phase, createLlmClient(agent,
+                        StringUtils.defaultIfBlank(config.getEndpoint(), agent.getLlmEndpoint()),
+                        StringUtils.defaultIfBlank(config.getApiKey(), agent.getLlmApiKey()),
+                        config.getModelName()));
+                log.info("[AgentExecutorFactory] route phase {} to model {}, agentId: {}", phase.getCode(), config.getModelName(), agent.getAgentId());
+            });
+        }
 
-        executor.initialize(toolRegistry, chatModel, agent);
+        AgentExecutor executor = applicationContext.getBean(AgentExecutor.class);
+        executor.initialize(toolRegistry, llmClient, agent);
 
         return executor;
     }
 
-    private ChatModel createChatModel(String endpoint, String apiKey, String modelName) {
-        return OpenAiChatModel.builder()
-                .baseUrl(endpoint)
-                .apiKey(apiKey)
-                .modelName(modelName)
-                .build();
+    private LlmClient createLlmClient(Agent agent, String endpoint, String apiKey, String modelName) {
+        // models are shared per endpoint / apiKey / model, together with their HTTP connections
+        ChatModel chatModel = chatModelRegistry.chatModel(endpoint, apiKey, modelName);
+        StreamingChatModel streamingChatModel = streaming
+                ? chatModelRegistry.streamingChatModel(endpoint, apiKey, modelName)
+                : null;
+
+        LlmClient llmClient = new LlmClient(chatModel, streamingChatModel, modelName, llmUsageRecorder);
+        llmClient.setAdmission(llmAdmissionController, endpoint, agent.getUserId());
+        llmClient.setHedging(llmHedgingPolicy, createSecondaryLlmClient(agent, apiKey, modelName));
+        return llmClient;
+    }
+
+    /**
+     * same model on the configured secondary endpoint, null when hedging is disabled
+     */
+    private LlmClient createSecondaryLlmClient(Agent agent, String apiKey, String modelName) {
+        if (!llmHedgingPolicy.isHedgeEnabled()) {
+            return null;
+        }
+        String secondaryEndpoint = llmHedgingPolicy.getSecondaryEndpoint();
+        String secondaryApiKey = StringUtils.defaultIfBlank(llmHedgingPolicy.getSecondaryApiKey(), apiKey);
+        String secondaryModelName = StringUtils.defaultIfBlank(llmHedgingPolicy.getSecondaryModelName(), modelName);
+        LlmClient secondary = new LlmClient(
+                chatModelRegistry.chatModel(secondaryEndpoint, secondaryApiKey, secondaryModelName),
+                streaming ? chatModelRegistry.streamingChatModel(secondaryEndpoint, secondaryApiKey, secondaryModelName) : null,
+                secondaryModelName, llmUsageRecorder);
+        secondary.setAdmission(llmAdmissionController, secondaryEndpoint, agent.getUserId());
+        return secondary;
     }
 }
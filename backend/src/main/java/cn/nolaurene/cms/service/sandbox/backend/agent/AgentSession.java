@@ -6,6 +6,7 @@ import cn.nolaurene.cms.service.sandbox.backend.ToolRegistry;
 import cn.nolaurene.cms.service.sandbox.backend.message.TaskStatus;
 import cn.nolaurene.cms.service.sandbox.backend.message.ConversationHistoryService;
 import cn.nolaurene.cms.service.sandbox.backend.tool.CalculatorTool;
+import cn.nolaurene.cms.service.sandbox.backend.tool.ToolSpecRegistry;
 import dev.langchain4j.agent.tool.ToolSpecification;
 import dev.langchain4j.mcp.client.DefaultMcpClient;
 import dev.langchain4j.mcp.client.McpClient;
@@ -13,7 +14,6 @@ import dev.langchain4j.mcp.client.transport.McpTransport;
 import dev.langchain4j.mcp.client.transport.http.HttpMcpTransport;
 import dev.langchain4j.mcp.McpToolProvider;
 import lombok.Getter;
-import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Value;
@@ -21,10 +21,11 @@ import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Component;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import javax.annotation.Resource;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.CompletableFuture;
 
 /**
@@ -40,15 +41,33 @@ public class AgentSession {
     @Getter
     private Agent agent;
 
-    @Getter
-    @Setter
-    private TaskStatus sessionStatus = TaskStatus.PENDING;
+    /**
+     * 会话状态，执行线程写入，会话回收线程读取
+     */
+    private final AtomicReference<TaskStatus> sessionStatus = new AtomicReference<>(TaskStatus.PENDING);
 
     @Value("${sandbox.backend.worker-mcp-url}")
     private String workerNativeMcpUrl;
 
+    @Resource
+    private ToolSpecRegistry toolSpecRegistry;
+
     private AgentExecutor executor;
 
+    private McpClient browserMcpClient;
+
+    private McpClient nativeMcpClient;
+
+    private McpToolProvider toolProvider;
+
+    private McpHeartbeatService mcpHeartbeatService;
+
+    private String workerUrl;
+
+    private String sseEndpoint;
+
+    private boolean closed;
+
     private final AtomicBoolean frontendConnected = new AtomicBoolean(true);
     private volatile SseEmitter currentSseEmitter = null;
     @Getter
@@ -60,47 +79,60 @@ public class AgentSession {
     public void initialize(Agent agent, String workerUrl, String sseEndpoint,
                            AgentExecutorFactory agentExecutorFactory,
                            McpHeartbeatService mcpHeartbeatService) {
-        this.agent = agent;
-        this.agent.setPlanner(new Planner());
-        this.agent.setExecutor(new Executor());
+        connect(workerUrl, sseEndpoint);
+        bind(agent, agentExecutorFactory, mcpHeartbeatService);
+    }
 
+    /**
+     * 连接 worker 的两个 MCP 端点并准备工具，不绑定 agent，预热池中的会话停留在这一阶段
+     */
+    public void connect(String workerUrl, String sseEndpoint) {
+        this.workerUrl = workerUrl;
+        this.sseEndpoint = sseEndpoint;
         // start langchain4j MCP clients
-        McpClient browserMcpClient = startLangchain4jMcpClient(workerUrl, sseEndpoint, "BrowserMCP");
-        agent.setBrowserMcpClient(browserMcpClient);
-
-        // add to heartbeat service
-        if (mcpHeartbeatService != null) {
-            mcpHeartbeatService.addClient(browserMcpClient);
+        browserMcpClient = startLangchain4jMcpClient(workerUrl, sseEndpoint, "BrowserMCP");
+        try {
+            // verify browser tools available, the list is fetched once per worker endpoint and shared by all sessions
+            List<ToolSpecification> browserTools = toolSpecRegistry.toolsOf(browserMcpClient);
+            log.info("Browser MCP tools discovered: {}", browserTools.size());
+
+            // start native mcp client (for file and shell tool)
+            nativeMcpClient = startLangchain4jMcpClient(workerNativeMcpUrl, "/mcp/message/sse", "NativeMCP");
+
+            List<ToolSpecification> nativeTools = toolSpecRegistry.toolsOf(nativeMcpClient);
+            log.info("Native MCP tools discovered: {}", nativeTools.size());
+        } catch (RuntimeException e) {
+            close();
+            throw e;
         }
 
-        // verify browser tools available
-        List<ToolSpecification> browserTools = browserMcpClient.listTools();
-        if (browserTools == null || browserTools.isEmpty()) {
-            log.error("No tools found in Browser MCP server at {}", workerUrl);
-            throw new IllegalStateException("No tools found in Browser MCP server");
-        }
-        log.info("Browser MCP tools discovered: {}", browserTools.size());
+        // create McpToolProvider that aggregates both MCP clients
+        toolProvider = McpToolProvider.builder()
+                .mcpClients(browserMcpClient, nativeMcpClient)
+                .build();
+    }
 
-        // start native mcp client (for file and shell tool)
-        McpClient nativeMcpClient = startLangchain4jMcpClient(workerNativeMcpUrl, "/mcp/message/sse", "NativeMCP");
+    /**
+     * 将已连接的会话绑定到 agent 并创建执行器
+     */
+    public void bind(Agent agent, AgentExecutorFactory agentExecutorFactory, McpHeartbeatService mcpHeartbeatService) {
+        this.agent = agent;
+        this.agent.setPlanner(new Planner());
+        this.agent.setExecutor(new Executor());
+        agent.setBrowserMcpClient(browserMcpClient);
         agent.setNativeMcpClient(nativeMcpClient);
 
-        List<ToolSpecification> nativeTools = nativeMcpClient.listTools();
-        if (nativeTools == null || nativeTools.isEmpty()) {
-            log.error("No tools found in Native MCP server at {}", workerNativeMcpUrl);
-            throw new IllegalStateException("No tools found in Native MCP server");
+        // add to heartbeat service, a client failing its checks is replaced by a new connection
+        if (mcpHeartbeatService != null) {
+            this.mcpHeartbeatService = mcpHeartbeatService;
+            mcpHeartbeatService.addClient(browserMcpClient, this::reconnect);
+            mcpHeartbeatService.addClient(nativeMcpClient, this::reconnect);
         }
-        log.info("Native MCP tools discovered: {}", nativeTools.size());
 
-        // create McpToolProvider that aggregates both MCP clients
-        McpToolProvider toolProvider = McpToolProvider.builder()
-                .mcpClients(browserMcpClient, nativeMcpClient)
-                .build();
         agent.setToolProvider(toolProvider);
 
-        // collect all tool specifications
-        List<ToolSpecification> allTools = new ArrayList<>(browserTools);
-        allTools.addAll(nativeTools);
+        // reference the shared tool specifications instead of copying them
+        List<ToolSpecification> allTools = toolSpecRegistry.toolsOf(browserMcpClient, nativeMcpClient);
         agent.setToolSpecifications(allTools);
         log.info("Total MCP tools available: {}", allTools.size());
 
@@ -109,6 +141,71 @@ public class AgentSession {
         this.executor = agentExecutorFactory.createAgentExecutor(agent);
     }
 
+    /**
+     * Health check of both MCP connections, throws when one of them is broken.
+     */
+    public void checkHealth() {
+        browserMcpClient.checkHealth();
+        nativeMcpClient.checkHealth();
+    }
+
+    /**
+     * 结束并行步骤在 worker 上打开的 shell 会话，停止心跳并关闭两个 MCP 连接
+     */
+    public synchronized void close() {
+        closed = true;
+        if (executor != null) {
+            executor.closeBranchShells();
+        }
+        if (mcpHeartbeatService != null) {
+            mcpHeartbeatService.removeClient(browserMcpClient);
+            mcpHeartbeatService.removeClient(nativeMcpClient);
+        }
+        closeQuietly(browserMcpClient);
+        closeQuietly(nativeMcpClient);
+    }
+
+    /**
+     * Replace a client that stopped answering with a new connection to the same endpoint, tool calls of the agent
+     * pick up the new client on their next attempt.
+     * @return the new client, null when the session is closed or the client was replaced already
+     */
+    public synchronized McpClient reconnect(McpClient failed) {
+        if (closed || agent == null) {
+            return null;
+        }
+        McpClient replacement;
+        if (failed == browserMcpClient) {
+            replacement = startLangchain4jMcpClient(workerUrl, sseEndpoint, "BrowserMCP");
+            browserMcpClient = replacement;
+            agent.setBrowserMcpClient(replacement);
+        } else if (failed == nativeMcpClient) {
+            replacement = startLangchain4jMcpClient(workerNativeMcpUrl, "/mcp/message/sse", "NativeMCP");
+            nativeMcpClient = replacement;
+            agent.setNativeMcpClient(replacement);
+        } else {
+            return null;
+        }
+        toolProvider = McpToolProvider.builder()
+                .mcpClients(browserMcpClient, nativeMcpClient)
+                .build();
+        agent.setToolProvider(toolProvider);
+        closeQuietly(failed);
+        log.info("MCP client of agent {} reconnected: {}", agent.getAgentId(), replacement.key());
+        return replacement;
+    }
+
+    private static void closeQuietly(McpClient client) {
+        if (client == null) {
+            return;
+        }
+        try {
+            client.close();
+        } catch (Exception e) {
+            log.warn("Failed to close MCP client {}: {}", client.key(), e.getMessage());
+        }
+    }
+
     /**
      * Create langchain4j MCP client using SSE transport.
      */
@@ -127,9 +224,13 @@ public class AgentSession {
                 .logResponses(true)
                 .build();
 
+        // the key names the worker endpoint, tool calls are limited per key.
+        // McpHeartbeatService checks the client on a shared wheel instead of a scheduler thread per client
         return DefaultMcpClient.builder()
+                .key(sseUrl)
                 .transport(transport)
                 .clientName(clientName)
+                .autoHealthCheck(false)
                 .build();
     }
 
@@ -137,7 +238,25 @@ public class AgentSession {
      * 启动 Agent 执行流程 (前台模式)
      */
     public void reactFlow(String input, SseEmitter emitter) throws InterruptedException {
-        if (this.sessionStatus == TaskStatus.RUNNING) {
+        log.info("Starting AgentSession reactFlow for input: {}", input);
+        runFlow(emitter, () -> executor.planAct(input, emitter));
+    }
+
+    /**
+     * 从检查点恢复中断的 Agent 执行流程，已完成的步骤不再执行
+     */
+    public void resumeFromCheckpoint(AgentCheckpoint checkpoint, SseEmitter emitter) {
+        log.info("Resuming AgentSession from checkpoint: agentId={}, status={}", checkpoint.getAgentId(), checkpoint.getAgentStatus());
+        runFlow(emitter, () -> executor.resume(checkpoint, emitter));
+    }
+
+    public TaskStatus getSessionStatus() {
+        return sessionStatus.get();
+    }
+
+    private void runFlow(SseEmitter emitter, Runnable flow) {
+        // checked and set in one step, two requests can not both start the session
+        if (sessionStatus.getAndSet(TaskStatus.RUNNING) == TaskStatus.RUNNING) {
             log.warn("AgentSession is already running.");
             try {
                 emitter.send(SseEmitter.event().name("ERROR").data("Session already running."));
@@ -148,17 +267,14 @@ public class AgentSession {
             return;
         }
 
-        this.sessionStatus = TaskStatus.RUNNING;
         this.currentSseEmitter = emitter;
         this.frontendConnected.set(true);
 
-        log.info("Starting AgentSession reactFlow for input: {}", input);
-
         setupSseEmitterListeners(emitter);
 
         try {
-            executor.planAct(input, emitter);
-            this.sessionStatus = TaskStatus.COMPLETED;
+            flow.run();
+            sessionStatus.set(TaskStatus.COMPLETED);
             log.info("AgentSession execution completed.");
             if (!frontendConnected.get() && currentSseEmitter != null) {
                 try {
@@ -170,7 +286,7 @@ public class AgentSession {
 
         } catch (Exception e) {
             log.error("Error during AgentSession execution", e);
-            this.sessionStatus = TaskStatus.FAILED;
+            sessionStatus.set(TaskStatus.FAILED);
             if (frontendConnected.get() && currentSseEmitter != null) {
                 try {
                     currentSseEmitter.send(SseEmitter.event().name("ERROR").data("Execution failed: " + e.getMessage()));
@@ -205,7 +321,7 @@ public class AgentSession {
             this.currentSseEmitter = null;
         }
 
-        if (this.sessionStatus == TaskStatus.COMPLETED) {
+        if (sessionStatus.get() == TaskStatus.COMPLETED) {
             try {
                 emitter.send(SseEmitter.event().name("TASK_ALREADY_FINISHED").data("Execution was already completed."));
                 emitter.complete();
@@ -213,7 +329,7 @@ public class AgentSession {
                 log.error("Failed to send completion status on resume", e);
             }
             this.currentSseEmitter = null;
-        } else if (this.sessionStatus == TaskStatus.FAILED) {
+        } else if (sessionStatus.get() == TaskStatus.FAILED) {
             try {
                 emitter.send(SseEmitter.event().name("TASK_ALREADY_FAILED").data("Execution had already failed."));
                 emitter.complete();
@@ -3,6 +3,7 @@ package cn.nolaurene.cms.service.sandbox.backend.agent;
 
 import cn.nolaurene.cms.common.sandbox.backend.model.Agent;
 import cn.nolaurene.cms.service.sandbox.backend.McpHeartbeatService;
+import cn.nolaurene.cms.service.sandbox.backend.session.AgentSessionPool;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationContext;
 import org.springframework.stereotype.Service;
@@ -24,7 +25,17 @@ public class AgentSessionFactory {
     @Autowired
     private McpHeartbeatService mcpHeartbeatService;
 
+    @Autowired
+    private AgentSessionPool agentSessionPool;
+
     public AgentSession createAgentSession(Agent agent, String workerUrl, String sseEndpoint) {
+        // 优先使用预先连接好的会话，只需绑定 agent
+        AgentSession pooled = agentSessionPool.acquire(workerUrl, sseEndpoint);
+        if (pooled != null) {
+            pooled.bind(agent, agentExecutorFactory, mcpHeartbeatService);
+            return pooled;
+        }
+
         // 使用 Spring 的 ApplicationContext 创建 AgentSession
         AgentSession agentSession = applicationContext.getBean(AgentSession.class);
 
@@ -4,9 +4,19 @@ import cn.nolaurene.cms.common.sandbox.backend.model.Agent;
 import cn.nolaurene.cms.common.sandbox.backend.model.SSEEventType;
 import cn.nolaurene.cms.common.sandbox.backend.model.data.MessageEventData;
 import cn.nolaurene.cms.common.sandbox.backend.model.data.ToolEventData;
+import cn.nolaurene.cms.service.sandbox.backend.AgentThreads;
+import cn.nolaurene.cms.service.sandbox.backend.McpHeartbeatService;
+import cn.nolaurene.cms.service.sandbox.backend.message.AgentCheckpointService;
 import cn.nolaurene.cms.service.sandbox.backend.message.ConversationHistoryService;
 import cn.nolaurene.cms.service.sandbox.backend.message.Plan;
 import cn.nolaurene.cms.service.sandbox.backend.message.Step;
+import cn.nolaurene.cms.service.sandbox.backend.tool.ObservationCompactor;
+import cn.nolaurene.cms.service.sandbox.backend.tool.ToolCallClassifier;
+import cn.nolaurene.cms.service.sandbox.backend.tool.ToolFamily;
+import cn.nolaurene.cms.service.sandbox.backend.tool.ToolResultMemoizer;
+import cn.nolaurene.cms.service.sandbox.backend.tool.ToolRouter;
+import cn.nolaurene.cms.service.sandbox.backend.tool.ToolSpecRegistry;
+import cn.nolaurene.cms.service.sandbox.worker.mcp.server.tool.ToolType;
 import com.alibaba.fastjson2.JSON;
 import com.alibaba.fastjson2.JSONObject;
 import dev.langchain4j.agent.tool.ToolExecutionRequest;
@@ -16,18 +26,21 @@ import dev.langchain4j.data.message.ChatMessage;
 import dev.langchain4j.data.message.SystemMessage;
 import dev.langchain4j.data.message.ToolExecutionResultMessage;
 import dev.langchain4j.data.message.UserMessage;
+import cn.nolaurene.cms.service.sandbox.backend.llm.LlmClient;
+import cn.nolaurene.cms.service.sandbox.backend.llm.LlmPhase;
 import dev.langchain4j.mcp.client.McpClient;
-import dev.langchain4j.model.chat.ChatModel;
 import dev.langchain4j.model.chat.request.ChatRequest;
 import dev.langchain4j.model.chat.response.ChatResponse;
 import dev.langchain4j.model.chat.request.json.JsonObjectSchema;
 import dev.langchain4j.service.tool.ToolExecutionResult;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Resource;
@@ -44,16 +57,66 @@ public class ExecutionSubAgent {
 
     private static final int MCP_TOOL_RETRY_TIMES = 3;
     private static final String THINK_TOOL_NAME = "dummy-server-think";
+    private static final String FINISH_STEP_TOOL_NAME = "finish_step";
+    private static final String DONE_SIGNAL = "[DONE]";
 
     @Resource
     private ConversationHistoryService conversationHistoryService;
 
+    /**
+     * threads of the concurrent tool dispatch and the per-worker limit of tool calls
+     */
+    @Resource
+    private AgentThreads agentThreads;
+
+    @Resource
+    private ObservationCompactor observationCompactor;
+
+    @Resource
+    private ToolResultMemoizer toolResultMemoizer;
+
+    @Resource
+    private ToolRouter toolRouter;
+
+    @Resource
+    private ToolSpecRegistry toolSpecRegistry;
+
+    /**
+     * health of the MCP clients, a call on a client that failed its recent checks fails fast
+     */
+    @Resource
+    private McpHeartbeatService mcpHeartbeatService;
+
+    /**
+     * a step may run longer than the checkpoint lease, the lease is renewed every round
+     */
+    @Resource
+    private AgentCheckpointService agentCheckpointService;
+
+    /**
+     * 同一轮中的多个工具调用是否并发执行，只读工具并发，作用于同一资源的写操作保持顺序
+     */
+    @Value("${sandbox.backend.execution.parallel-tool-calls:true}")
+    private boolean parallelToolCalls;
+
+    /**
+     * 步骤完成判定方式：tool 由模型调用 finish_step 结束步骤；check 为旧方式，每轮工具调用后额外请求一次模型判断
+     */
+    @Value("${sandbox.backend.execution.completion-mode:tool}")
+    private String completionMode;
+
+    /**
+     * 保持请求前缀稳定（固定系统提示词、按名称排序的工具列表），便于推理服务复用 prefix cache
+     */
+    @Value("${sandbox.backend.llm.stable-prefix:true}")
+    private boolean stablePrefix;
+
     /**
      * Execute a single step with a tool-calling loop.
      * Uses langchain4j's native function calling: the LLM returns structured ToolExecutionRequests,
      * which are executed via the McpToolProvider, and results are fed back.
      */
-    public String executeStepWithLoop(ChatModel chatModel,
+    public String executeStepWithLoop(LlmClient llmClient,
                                       Executor executor,
                                       Plan plan,
                                       Step currentStep,
@@ -61,8 +124,44 @@ public class ExecutionSubAgent {
                                       int maxRounds,
                                       SseEmitter emitterOpt,
                                       Agent agent) throws IOException {
+        return executeStepWithLoop(llmClient, executor, plan, currentStep, completedSteps, maxRounds, emitterOpt, agent,
+                StepBranch.single(agent.getAgentId()));
+    }
+
+    /**
+     * Execute a single step as one branch of a concurrent batch, the branch decides the shell session,
+     * the browser access and whether text deltas are streamed.
+     */
+    public String executeStepWithLoop(LlmClient llmClient,
+                                      Executor executor,
+                                      Plan plan,
+                                      Step currentStep,
+                                      List<Step> completedSteps,
+                                      int maxRounds,
+                                      SseEmitter emitterOpt,
+                                      Agent agent,
+                                      StepBranch branch) throws IOException {
 
-        List<ToolSpecification> toolSpecs = buildToolSpecsWithThink(agent.getToolSpecifications());
+        StepCompletionMode mode = StepCompletionMode.fromCode(completionMode);
+        long startTime = System.currentTimeMillis();
+        int llmCalls = 0;
+        int rounds = 0;
+
+        if (agent.getBrowserMcpClient() != null && agent.getNativeMcpClient() != null) {
+            // a refreshed tool list of the worker reaches running sessions at the next step, unchanged lists are the same instance
+            agent.setToolSpecifications(toolSpecRegistry.toolsOf(agent.getBrowserMcpClient(), agent.getNativeMcpClient()));
+        }
+        List<ToolSpecification> allToolSpecs = buildToolSpecsWithThink(agent.getToolSpecifications());
+        // only the lead branch of a batch owns the browser, the others never get its tools
+        int ownedFamilies = branch.isBrowserEnabled() ? ToolFamily.ALL : ToolFamily.ALL & ~ToolFamily.BROWSER.bit();
+        if (!branch.isBrowserEnabled()) {
+            allToolSpecs.removeIf(spec -> ToolFamily.of(spec.name()) == ToolFamily.BROWSER);
+        }
+        AgentContext agentContext = agent.getAgentContext();
+        int toolFamilies = toolRouter.route(currentStep.getDescription(), agentContext) & ownedFamilies;
+        List<ToolSpecification> toolSpecs = selectToolSpecs(allToolSpecs, toolFamilies, ownedFamilies, mode);
+        log.info("[ExecutionSubAgent] Tool families for step {}: {}, {} of {} tools",
+                currentStep.getId(), describeFamilies(toolFamilies), toolSpecs.size(), allToolSpecs.size());
 
         // Build initial messages
         List<ChatMessage> messages = new ArrayList<>();
@@ -71,7 +170,7 @@ public class ExecutionSubAgent {
         messages.add(SystemMessage.from(systemPrompt + "\n" + executorSystemPrompt));
 
         // Add execution context
-        String executionContext = buildExecutionContext(plan, currentStep, completedSteps);
+        String executionContext = buildExecutionContext(plan, currentStep, completedSteps, mode, branch);
         messages.add(UserMessage.from(executionContext));
 
         log.info("[ExecutionSubAgent] executeStepWithLoop start, goal: {}, currentStep: {}, maxRounds: {}",
@@ -81,6 +180,10 @@ public class ExecutionSubAgent {
 
         for (int round = 1; round <= maxRounds; round++) {
             log.info("[ExecutionSubAgent] Round {}/{} for step: {}", round, maxRounds, currentStep.getDescription());
+            rounds = round;
+            if (!agentCheckpointService.renewLease(agent.getAgentId())) {
+                throw new IllegalStateException("run of agent " + agent.getAgentId() + " was taken over by another node");
+            }
 
             // Call LLM with tool specifications
             ChatRequest request = ChatRequest.builder()
@@ -88,8 +191,20 @@ public class ExecutionSubAgent {
                     .toolSpecifications(toolSpecs)
                     .build();
 
-            ChatResponse response = chatModel.chat(request);
+            // In streaming mode text deltas are pushed to the frontend while the model is still generating
+            StringBuilder streamedText = new StringBuilder();
+            ChatResponse response = llmClient.forPhase(LlmPhase.EXECUTOR).chat(request, emitterOpt == null || !branch.isStreamContent() ? null : delta -> {
+                streamedText.append(delta);
+                sendContentDelta(delta, agent, emitterOpt);
+            });
+            llmCalls++;
             AiMessage aiMessage = response.aiMessage();
+            if (streamedText.length() > 0) {
+                sendContentDelta(DONE_SIGNAL, agent, emitterOpt);
+                conversationHistoryService.saveAssistantMessageWithId(
+                        streamedText.toString(), SSEEventType.MESSAGE,
+                        agent.getUserId(), agent.getAgentId());
+            }
 
             // Add AI message to conversation
             messages.add(aiMessage);
@@ -99,7 +214,12 @@ public class ExecutionSubAgent {
                 List<ToolExecutionRequest> toolRequests = aiMessage.toolExecutionRequests();
                 log.info("[ExecutionSubAgent] Round {} - {} tool calls requested", round, toolRequests.size());
 
-                for (ToolExecutionRequest toolRequest : toolRequests) {
+                // Prepare and report calls in request order, the think tool is handled locally right away
+                ToolExecutionResultMessage[] results = new ToolExecutionResultMessage[toolRequests.size()];
+                List<PendingToolCall> pendingCalls = new ArrayList<>();
+                String finishSummary = null;
+                for (int idx = 0; idx < toolRequests.size(); idx++) {
+                    ToolExecutionRequest toolRequest = toolRequests.get(idx);
                     String toolName = toolRequest.name();
                     String arguments = toolRequest.arguments();
 
@@ -109,28 +229,88 @@ public class ExecutionSubAgent {
                     if (THINK_TOOL_NAME.equals(toolName)) {
                         String thought = extractThought(arguments);
                         log.info("[ExecutionSubAgent] Round {} - think tool invoked, thought length: {}", round, thought.length());
-                        sendMessageEvent(thought, agent, emitterOpt);
-                        messages.add(ToolExecutionResultMessage.from(toolRequest, "Thought logged."));
+                        // thoughts of a quiet branch are only persisted, they would be glued to the streamed text
+                        sendMessageEvent(thought, agent, branch.isStreamContent() ? emitterOpt : null);
+                        results[idx] = ToolExecutionResultMessage.from(toolRequest, "Thought logged.");
+                        continue;
+                    }
+
+                    // Handle request_tools locally: the requested families are sent from the next round on
+                    if (ToolRouter.REQUEST_TOOLS_TOOL_NAME.equals(toolName)) {
+                        int requested = toolRouter.parseRequestedFamilies(arguments) & ownedFamilies;
+                        toolFamilies |= requested;
+                        toolSpecs = selectToolSpecs(allToolSpecs, toolFamilies, ownedFamilies, mode);
+                        log.info("[ExecutionSubAgent] Round {} - tools requested: {}, now {} tools", round, describeFamilies(requested), toolSpecs.size());
+                        results[idx] = ToolExecutionResultMessage.from(toolRequest,
+                                "Tools available now: " + describeFamilies(toolFamilies) + ".");
+                        continue;
+                    }
+
+                    // Handle finish_step locally: the remaining calls of this round still run before the step ends
+                    if (FINISH_STEP_TOOL_NAME.equals(toolName)) {
+                        finishSummary = extractArgument(arguments, "summary");
+                        log.info("[ExecutionSubAgent] Round {} - finish_step invoked", round);
+                        results[idx] = ToolExecutionResultMessage.from(toolRequest, "Step finished.");
                         continue;
                     }
 
-                    // For shell tools, inject agentId as the default id parameter
+                    // a family the branch does not own is refused, one that was only left out runs and is sent from now on
+                    ToolFamily family = ToolFamily.of(toolName);
+                    if ((ownedFamilies & family.bit()) == 0) {
+                        log.warn("[ExecutionSubAgent] Round {} - tool {} refused, family {} is not available to this branch",
+                                round, toolName, family.getPrefix());
+                        results[idx] = ToolExecutionResultMessage.from(toolRequest, "Tool " + toolName
+                                + " is not available in this step, other steps running at the same time own it. "
+                                + "Complete the step with the available tools.");
+                        continue;
+                    }
+                    if ((toolFamilies & family.bit()) == 0) {
+                        toolFamilies |= family.bit();
+                        toolSpecs = selectToolSpecs(allToolSpecs, toolFamilies, ownedFamilies, mode);
+                    }
+                    agentContext.addTool(toolName);
+
+                    // For shell tools, inject the shell session of the branch as the id parameter
                     ToolExecutionRequest finalToolRequest = toolRequest;
                     String finalArguments = arguments;
                     if (toolName.startsWith("shell_")) {
-                        finalToolRequest = injectAgentIdForShellTool(toolRequest, agent.getAgentId());
+                        finalToolRequest = injectAgentIdForShellTool(toolRequest, branch.getShellSessionId());
                         finalArguments = finalToolRequest.arguments();
                     }
 
                     // Report tool event to frontend via SSE
                     reportToolEvent(toolName, finalArguments, agent, emitterOpt);
 
-                    // Execute tool via MCP Client directly
-                    String observation = executeToolWithRetry(toolName, finalToolRequest, agent);
-                    log.info("[ExecutionSubAgent] Round {} - Tool {} result: {}", round, toolName, observation);
+                    pendingCalls.add(new PendingToolCall(idx, toolRequest, finalToolRequest));
+                }
+
+                // Execute tools via MCP Client directly
+                if (parallelToolCalls && pendingCalls.size() > 1) {
+                    executeToolsConcurrently(pendingCalls, agent);
+                } else {
+                    for (PendingToolCall call : pendingCalls) {
+                        call.observation = executeToolWithRetry(call.request.name(), call.request, agent);
+                    }
+                }
+
+                // Add tool results to messages in the original request order
+                for (PendingToolCall call : pendingCalls) {
+                    log.info("[ExecutionSubAgent] Round {} - Tool {} result: {}", round, call.request.name(), call.observation);
+                    results[call.index] = ToolExecutionResultMessage.from(call.originalRequest, call.observation);
+                }
+                messages.addAll(Arrays.asList(results));
+                observationCompactor.compact(messages, llmClient);
+
+                if (finishSummary != null) {
+                    finalResult = finishSummary;
+                    log.info("[ExecutionSubAgent] Step finished via {} in round {}: {}",
+                            FINISH_STEP_TOOL_NAME, round, currentStep.getDescription());
+                    break;
+                }
 
-                    // Add tool result to messages
-                    messages.add(ToolExecutionResultMessage.from(toolRequest, observation));
+                if (mode == StepCompletionMode.TOOL) {
+                    // the model reports completion in its next turn, no extra round trip needed
+                    continue;
                 }
 
                 // Sleep 1s to prevent execution from running too fast
@@ -141,7 +321,8 @@ public class ExecutionSubAgent {
                 }
 
                 // After tool execution, check if current step is completed
-                String checkResult = checkStepCompletion(chatModel, messages, currentStep);
+                String checkResult = checkStepCompletion(llmClient, messages, currentStep);
+                llmCalls++;
                 if (checkResult != null) {
                     // Step is completed, return the result
                     finalResult = checkResult;
@@ -166,14 +347,15 @@ public class ExecutionSubAgent {
             break;
         }
 
-        log.info("[ExecutionSubAgent] executeStepWithLoop end, final result length: {}", finalResult.length());
+        log.info("[ExecutionSubAgent] executeStepWithLoop end, completionMode: {}, rounds: {}, llmCalls: {}, wallTimeMs: {}, final result length: {}",
+                mode.getCode(), rounds, llmCalls, System.currentTimeMillis() - startTime, finalResult.length());
         return finalResult;
     }
 
     /**
      * Build execution context message from plan and step info.
      */
-    private String buildExecutionContext(Plan plan, Step currentStep, List<Step> completedSteps) {
+    private String buildExecutionContext(Plan plan, Step currentStep, List<Step> completedSteps, StepCompletionMode mode, StepBranch branch) {
         StringBuilder sb = new StringBuilder();
         sb.append("## Current Goal\n");
         sb.append(plan.getGoal()).append("\n\n");
@@ -195,17 +377,52 @@ public class ExecutionSubAgent {
 
         sb.append("## Current Step to Execute\n");
         sb.append(currentStep.getDescription()).append("\n\n");
+        if (!branch.isBrowserEnabled()) {
+            sb.append("Other steps of the plan are running at the same time and own the browser, ")
+                    .append("complete this step without browser tools.\n");
+        }
         sb.append("Execute this step using the available tools. ");
-        sb.append("When the step is fully completed, respond with a summary of what was accomplished.\n");
+        if (mode == StepCompletionMode.TOOL) {
+            sb.append("When the step is fully completed, call the ").append(FINISH_STEP_TOOL_NAME)
+                    .append(" tool with a summary of what was accomplished.\n");
+        } else {
+            sb.append("When the step is fully completed, respond with a summary of what was accomplished.\n");
+        }
 
         return sb.toString();
     }
 
+    /**
+     * Tools sent for the selected families, the routing escape hatch and finish_step come last.
+     */
+    private List<ToolSpecification> selectToolSpecs(List<ToolSpecification> allToolSpecs, int toolFamilies, int ownedFamilies,
+                                                    StepCompletionMode mode) {
+        List<ToolSpecification> specs = toolRouter.select(allToolSpecs, toolFamilies, ownedFamilies);
+        if (mode == StepCompletionMode.TOOL) {
+            specs.add(buildFinishStepSpec());
+        }
+        return specs;
+    }
+
+    private static String describeFamilies(int toolFamilies) {
+        List<String> names = new ArrayList<>();
+        for (ToolFamily family : ToolFamily.values()) {
+            if (family != ToolFamily.OTHER && (toolFamilies & family.bit()) != 0) {
+                names.add(family.getPrefix());
+            }
+        }
+        return names.isEmpty() ? "none" : String.join(", ", names);
+    }
+
     /**
      * Build tool specifications list including the local dummy-server-think tool.
      */
     private List<ToolSpecification> buildToolSpecsWithThink(List<ToolSpecification> mcpToolSpecs) {
         List<ToolSpecification> specs = new ArrayList<>(mcpToolSpecs);
+        if (stablePrefix) {
+            // MCP servers list tools in arbitrary order, the serialized tool block must be byte-identical across requests
+            specs.sort(Comparator.comparing(ToolSpecification::name));
+        }
         ToolSpecification thinkSpec = ToolSpecification.builder()
                 .name(THINK_TOOL_NAME)
                 .description("Use the tool to think about something. It will not obtain new information or make any changes to the repository, but just log the thought. Use it when complex reasoning or brainstorming is needed.")
@@ -218,11 +435,25 @@ public class ExecutionSubAgent {
         return specs;
     }
 
+    /**
+     * Build the local finish_step tool, the model calls it in its normal turn to end the current step.
+     */
+    private ToolSpecification buildFinishStepSpec() {
+        return ToolSpecification.builder()
+                .name(FINISH_STEP_TOOL_NAME)
+                .description("Call this tool when the current step is fully completed. It ends the step, so only call it after all required work is done and verified.")
+                .parameters(JsonObjectSchema.builder()
+                        .addStringProperty("summary", "A detailed summary of what was accomplished in this step, including key results.")
+                        .required("summary")
+                        .build())
+                .build();
+    }
+
     /**
      * Check if the current step is completed by asking LLM.
      * @return completion summary if step is done, null if step needs more work
      */
-    private String checkStepCompletion(ChatModel chatModel, List<ChatMessage> messages, Step currentStep) {
+    private String checkStepCompletion(LlmClient llmClient, List<ChatMessage> messages, Step currentStep) {
         String checkPrompt = String.format(
                 "Based on the tool execution results above, evaluate whether the current step has been completed.\n\n" +
                 "Current Step: %s\n\n" +
@@ -241,7 +472,7 @@ public class ExecutionSubAgent {
                 .build();
 
         try {
-            ChatResponse checkResponse = chatModel.chat(checkRequest);
+            ChatResponse checkResponse = llmClient.forPhase(LlmPhase.CHECKER).chat(checkRequest);
             AiMessage checkAiMessage = checkResponse.aiMessage();
             String responseText = checkAiMessage.text();
 
@@ -269,12 +500,19 @@ public class ExecutionSubAgent {
      * Extract the "thought" field from the think tool arguments JSON.
      */
     private String extractThought(String arguments) {
+        return extractArgument(arguments, "thought");
+    }
+
+    /**
+     * Extract a string field from tool arguments JSON, falls back to the raw arguments.
+     */
+    private String extractArgument(String arguments, String field) {
         try {
             JSONObject obj = JSON.parseObject(arguments);
-            String thought = obj.getString("thought");
-            return thought != null ? thought : arguments;
+            String value = obj.getString(field);
+            return value != null ? value : arguments;
         } catch (Exception e) {
-            return arguments;
+            return arguments != null ? arguments : "";
         }
     }
 
@@ -282,9 +520,20 @@ public class ExecutionSubAgent {
      * Send a MESSAGE SSE event to the frontend (used for think tool output).
      */
     private void sendMessageEvent(String content, Agent agent, SseEmitter emitter) {
+        sendContentDelta(content, agent, emitter);
+
+        conversationHistoryService.saveAssistantMessageWithId(
+                content, SSEEventType.MESSAGE,
+                agent.getUserId(), agent.getAgentId());
+    }
+
+    /**
+     * Send a content delta as MESSAGE SSE event without persisting it.
+     */
+    private void sendContentDelta(String contentDelta, Agent agent, SseEmitter emitter) {
         MessageEventData messageEventData = new MessageEventData();
         messageEventData.setTimestamp(System.currentTimeMillis());
-        messageEventData.setContentDelta(content);
+        messageEventData.setContentDelta(contentDelta);
 
         try {
             if (emitter != null) {
@@ -294,12 +543,34 @@ public class ExecutionSubAgent {
                         .id(String.valueOf(System.currentTimeMillis())));
             }
         } catch (Exception e) {
-            log.error("[ExecutionSubAgent] Failed to send think message SSE event: agentId={}", agent.getAgentId(), e);
+            log.error("[ExecutionSubAgent] Failed to send message SSE event: agentId={}", agent.getAgentId(), e);
         }
+    }
 
-        conversationHistoryService.saveAssistantMessageWithId(
-                content, SSEEventType.MESSAGE,
-                agent.getUserId(), agent.getAgentId());
+    /**
+     * Kill the process of a shell session opened for a branch, the worker keeps it running otherwise.
+     * @return whether the worker answered, a session the branch never opened counts as closed
+     */
+    public boolean closeShellSession(Agent agent, String shellSessionId) {
+        McpClient mcpClient = selectMcpClient("shell_kill_process", agent);
+        if (mcpClient == null) {
+            return false;
+        }
+        ToolExecutionRequest request = ToolExecutionRequest.builder()
+                .name("shell_kill_process")
+                .arguments(new JSONObject().fluentPut("id", shellSessionId).toJSONString())
+                .build();
+        try {
+            ToolExecutionResult result = agentThreads.callWorker(mcpClient.key(), () -> mcpClient.executeTool(request));
+            log.info("[ExecutionSubAgent] Shell session {} closed: {}", shellSessionId, result.resultText());
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            log.warn("[ExecutionSubAgent] Failed to close shell session {}: {}", shellSessionId, e.getMessage());
+            return false;
+        }
     }
 
     /**
@@ -317,40 +588,134 @@ public class ExecutionSubAgent {
     }
 
     /**
-     * Execute a tool with retry logic using MCP Client directly.
+     * Execute a tool, repeated read-only calls of the session are answered from its result cache.
      */
     private String executeToolWithRetry(String toolName, ToolExecutionRequest request, Agent agent) {
-        McpClient mcpClient = selectMcpClient(toolName, agent);
-        if (mcpClient == null) {
-            String errorMsg = "No MCP client available for tool: " + toolName;
-            log.error("[ExecutionSubAgent] {}", errorMsg);
-            return errorMsg;
-        }
+        return toolResultMemoizer.execute(agent, request, () -> invokeToolWithRetry(toolName, request, agent));
+    }
 
+    /**
+     * Call a tool with retry logic using MCP Client directly, failures are returned as error results.
+     */
+    private ToolExecutionResult invokeToolWithRetry(String toolName, ToolExecutionRequest request, Agent agent) {
         Exception lastException = null;
         for (int i = 0; i < MCP_TOOL_RETRY_TIMES; i++) {
+            // selected per attempt, a retry uses the client that replaced a failed one
+            McpClient mcpClient = selectMcpClient(toolName, agent);
+            if (mcpClient == null) {
+                String errorMsg = "No MCP client available for tool: " + toolName;
+                log.error("[ExecutionSubAgent] {}", errorMsg);
+                return errorResult(errorMsg);
+            }
+            if (mcpHeartbeatService.isUnavailable(mcpClient)) {
+                log.warn("[ExecutionSubAgent] Tool [{}] skipped, MCP client {} failed its recent health checks", toolName, mcpClient.key());
+                return errorResult("Tool call error: MCP endpoint " + mcpClient.key() + " is unavailable, reconnecting");
+            }
             try {
                 log.info("[ExecutionSubAgent] Executing tool [{}] via MCP Client, attempt {}/{}", 
                         toolName, i + 1, MCP_TOOL_RETRY_TIMES);
-                ToolExecutionResult result = mcpClient.executeTool(request);
-                String resultText = result.resultText();
-                return resultText != null ? resultText : "(empty result)";
+                return agentThreads.callWorker(mcpClient.key(), () -> mcpClient.executeTool(request));
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return errorResult("Tool execution interrupted: " + ie.getMessage());
             } catch (Exception e) {
                 log.warn("[ExecutionSubAgent] Tool [{}] failed, retry {}/{}: {}", 
                         toolName, i + 1, MCP_TOOL_RETRY_TIMES, e.getMessage());
                 lastException = e;
+                mcpHeartbeatService.checkSoon(mcpClient);
                 if (i < MCP_TOOL_RETRY_TIMES - 1) {
                     try {
                         Thread.sleep(500);
                     } catch (InterruptedException ie) {
                         Thread.currentThread().interrupt();
-                        return "Tool execution interrupted: " + ie.getMessage();
+                        return errorResult("Tool execution interrupted: " + ie.getMessage());
                     }
                 }
             }
         }
 
-        return "Tool call error after retries: " + (lastException != null ? lastException.getMessage() : "unknown");
+        return errorResult("Tool call error after retries: " + (lastException != null ? lastException.getMessage() : "unknown"));
+    }
+
+    private static ToolExecutionResult errorResult(String message) {
+        return ToolExecutionResult.builder().isError(true).resultText(message).build();
+    }
+
+    /**
+     * Execute tool calls concurrently while keeping the order between calls that touch the same resource:
+     * a read-only call waits for the previous mutating call on its resource,
+     * a mutating call waits for every earlier call on its resource.
+     */
+    private void executeToolsConcurrently(List<PendingToolCall> calls, Agent agent) {
+        Map<String, ToolSpecification> toolSpecs = new HashMap<>();
+        if (agent.getToolSpecifications() != null) {
+            for (ToolSpecification spec : agent.getToolSpecifications()) {
+                toolSpecs.put(spec.name(), spec);
+            }
+        }
+
+        Map<String, CompletableFuture<Void>> lastWrites = new HashMap<>();
+        Map<String, List<CompletableFuture<Void>>> readsSinceLastWrite = new HashMap<>();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+        for (PendingToolCall call : calls) {
+            String toolName = call.request.name();
+            String resource = ToolCallClassifier.resourceOf(call.request);
+            boolean readOnly = ToolCallClassifier.classify(toolName, toolSpecs) == ToolType.READ_ONLY;
+
+            List<CompletableFuture<Void>> dependencies = new ArrayList<>();
+            CompletableFuture<Void> lastWrite = lastWrites.get(resource);
+            if (lastWrite != null) {
+                dependencies.add(lastWrite);
+            }
+            if (!readOnly) {
+                dependencies.addAll(readsSinceLastWrite.getOrDefault(resource, Collections.emptyList()));
+            }
+
+            CompletableFuture<Void> future = CompletableFuture
+                    .allOf(dependencies.toArray(new CompletableFuture[0]))
+                    .handle((ignored, throwable) -> null)
+                    .thenRunAsync(() -> call.observation = executeToolWithRetry(toolName, call.request, agent), agentThreads.toolExecutor());
+
+            if (readOnly) {
+                readsSinceLastWrite.computeIfAbsent(resource, key -> new ArrayList<>()).add(future);
+            } else {
+                lastWrites.put(resource, future);
+                readsSinceLastWrite.remove(resource);
+            }
+            futures.add(future);
+        }
+
+        log.info("[ExecutionSubAgent] Dispatched {} tool calls concurrently over {} resources",
+                calls.size(), calls.stream().map(call -> ToolCallClassifier.resourceOf(call.request)).distinct().count());
+
+        for (int i = 0; i < futures.size(); i++) {
+            PendingToolCall call = calls.get(i);
+            try {
+                futures.get(i).join();
+            } catch (Exception e) {
+                log.warn("[ExecutionSubAgent] Concurrent tool [{}] failed: {}", call.request.name(), e.getMessage());
+            }
+            if (call.observation == null) {
+                call.observation = "Tool call error: " + call.request.name() + " was not executed";
+            }
+        }
+    }
+
+    /**
+     * A tool call waiting for dispatch, keeps its position in the AI message.
+     */
+    private static class PendingToolCall {
+        private final int index;
+        private final ToolExecutionRequest originalRequest;
+        private final ToolExecutionRequest request;
+        private volatile String observation;
+
+        private PendingToolCall(int index, ToolExecutionRequest originalRequest, ToolExecutionRequest request) {
+            this.index = index;
+            this.originalRequest = originalRequest;
+            this.request = request;
+        }
     }
 
     /**
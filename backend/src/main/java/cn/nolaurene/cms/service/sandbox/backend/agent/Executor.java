@@ -3,20 +3,30 @@ package cn.nolaurene.cms.service.sandbox.backend.agent;
 import cn.nolaurene.cms.common.sandbox.backend.llm.ChatMemory;
 import dev.langchain4j.data.message.ChatMessage;
 import dev.langchain4j.data.message.UserMessage;
-import dev.langchain4j.model.chat.ChatModel;
+import cn.nolaurene.cms.service.sandbox.backend.llm.LlmClient;
+import cn.nolaurene.cms.service.sandbox.backend.llm.LlmPhase;
 import dev.langchain4j.model.chat.request.ChatRequest;
 import dev.langchain4j.model.chat.response.ChatResponse;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.function.Consumer;
 
 import static cn.nolaurene.cms.service.sandbox.backend.utils.PromptRenderer.*;
 
 @Slf4j
 public class Executor {
 
-    public String conclude(ChatModel chatModel, List<cn.nolaurene.cms.common.sandbox.backend.llm.ChatMessage> memory) throws IOException {
+    public String conclude(LlmClient llmClient, List<cn.nolaurene.cms.common.sandbox.backend.llm.ChatMessage> memory) throws IOException {
+        return conclude(llmClient, memory, null);
+    }
+
+    /**
+     * @param onPartialResponse receives token deltas while the conclusion is generated, null for a blocking call
+     */
+    public String conclude(LlmClient llmClient, List<cn.nolaurene.cms.common.sandbox.backend.llm.ChatMessage> memory,
+                           Consumer<String> onPartialResponse) throws IOException {
         List<cn.nolaurene.cms.common.sandbox.backend.llm.ChatMessage> filtered = removeSystemPrompt(memory);
         List<ChatMessage> messages = new ArrayList<>();
         for (cn.nolaurene.cms.common.sandbox.backend.llm.ChatMessage msg : filtered) {
@@ -26,7 +36,7 @@ public class Executor {
         String conclusionPrompt = loadPrompt("prompts/conclusion.jinja");
         messages.add(UserMessage.from(conclusionPrompt));
 
-        ChatResponse response = chatModel.chat(ChatRequest.builder().messages(messages).build());
+        ChatResponse response = llmClient.forPhase(LlmPhase.CONCLUDER).chat(ChatRequest.builder().messages(messages).build(), onPartialResponse);
         return response.aiMessage().text();
     }
 }
@@ -9,7 +9,8 @@ import cn.nolaurene.cms.service.sandbox.backend.utils.PromptRenderer;
 import dev.langchain4j.data.message.ChatMessage;
 import dev.langchain4j.data.message.SystemMessage;
 import dev.langchain4j.data.message.UserMessage;
-import dev.langchain4j.model.chat.ChatModel;
+import cn.nolaurene.cms.service.sandbox.backend.llm.LlmClient;
+import cn.nolaurene.cms.service.sandbox.backend.llm.LlmPhase;
 import dev.langchain4j.model.chat.request.ChatRequest;
 import dev.langchain4j.model.chat.response.ChatResponse;
 import com.alibaba.fastjson2.JSON;
@@ -17,6 +18,7 @@ import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import static cn.nolaurene.cms.service.sandbox.backend.utils.PromptRenderer.*;
@@ -29,7 +31,14 @@ import static cn.nolaurene.cms.service.sandbox.backend.utils.PromptRenderer.*;
 @Slf4j
 public class Planner {
 
-    public String createPlan(ChatModel chatModel, String userInput, ChatMemory memory) throws IOException {
+    public String createPlan(LlmClient llmClient, String userInput, ChatMemory memory) throws IOException {
+        return createPlan(llmClient, userInput, memory, null);
+    }
+
+    /**
+     * @param onPartialResponse receives token deltas while the plan is generated, null for a blocking call
+     */
+    public String createPlan(LlmClient llmClient, String userInput, ChatMemory memory, Consumer<String> onPartialResponse) throws IOException {
         List<ChatMessage> messages = new ArrayList<>();
         messages.add(SystemMessage.from(loadPrompt("prompts/system.jinja")));
         messages.addAll(memory.toLangchain4jMessages());
@@ -38,29 +47,28 @@ public class Planner {
 
         log.info("[Planner] create plan request, messages count: {}", messages.size());
 
-        ChatResponse response = chatModel.chat(ChatRequest.builder().messages(messages).build());
+        ChatResponse response = llmClient.forPhase(LlmPhase.PLANNER).chat(ChatRequest.builder().messages(messages).build(), onPartialResponse);
         return response.aiMessage().text();
     }
 
-    public String updatePlan(ChatModel chatModel, ChatMemory memory, Plan plan) throws IOException {
+    public String updatePlan(LlmClient llmClient, ChatMemory memory, Plan plan) throws IOException {
 
         List<ChatMessage> messages = new ArrayList<>();
         messages.add(SystemMessage.from(loadPrompt("prompts/system.jinja")));
         messages.addAll(memory.toLangchain4jMessages());
 
         // assemble update prompt
-        String updatePlanTemplate = loadPrompt("prompts/updatePlan.jinja");
         Map<String, Object> context = new HashMap<>();
         context.put("stepResult", JSON.toJSONString(keepLatestResult(plan.getSteps())));
         context.put("steps", JSON.toJSONString(removeResultDetail(plan.getSteps())));
         context.put("goal", plan.getGoal());
 
-        String updatePlanPrompt = render(updatePlanTemplate, context);
+        String updatePlanPrompt = renderPrompt("prompts/updatePlan.jinja", context);
 
         messages.add(UserMessage.from(updatePlanPrompt));
 
         log.info("[Planner] update plan request, messages count: {}", messages.size());
-        ChatResponse response = chatModel.chat(ChatRequest.builder().messages(messages).build());
+        ChatResponse response = llmClient.forPhase(LlmPhase.PLAN_UPDATER).chat(ChatRequest.builder().messages(messages).build());
         return response.aiMessage().text();
     }
 
@@ -72,6 +80,7 @@ public class Planner {
             newStep.setStatus(step.getStatus());
             newStep.setResult(step.getResult());
             newStep.setError(step.getError());
+            newStep.setDependsOn(step.getDependsOn());
             return newStep;
         }).collect(Collectors.toList());
 
@@ -96,6 +105,8 @@ public class Planner {
             newStep.setId(step.getId());
             newStep.setDescription(step.getDescription());
             newStep.setStatus(step.getStatus());
+            // the model keeps the dependencies of the steps it does not change, it has to see them
+            newStep.setDependsOn(step.getDependsOn());
             return newStep;
         }).collect(Collectors.toList());
     }
@@ -0,0 +1,46 @@
+package cn.nolaurene.cms.service.sandbox.backend.agent;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * @author nolaurence
+ * @date 2026/10/17 下午6:10
+ * @description: resources owned by one step loop when independent steps of a plan run concurrently
+ */
+@Getter
+@AllArgsConstructor
+public class StepBranch {
+
+    /**
+     * id of the shell session the step works in
+     */
+    private final String shellSessionId;
+
+    /**
+     * browser tools act on the current tab of one shared browser context, only one branch may use them
+     */
+    private final boolean browserEnabled;
+
+    /**
+     * stream text deltas to the frontend, concurrent branches would interleave their deltas so only one branch streams
+     */
+    private final boolean streamContent;
+
+    /**
+     * the only branch of a sequential execution, owns every resource of the agent
+     */
+    public static StepBranch single(String agentId) {
+        return new StepBranch(agentId, true, true);
+    }
+
+    /**
+     * branch of a concurrent batch, the lead branch keeps the agent shell session, the browser and the stream
+     */
+    public static StepBranch of(String agentId, Integer stepId, boolean lead) {
+        if (lead) {
+            return single(agentId);
+        }
+        return new StepBranch(agentId + "-step-" + stepId, false, false);
+    }
+}
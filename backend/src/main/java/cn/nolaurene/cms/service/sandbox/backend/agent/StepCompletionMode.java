@@ -0,0 +1,36 @@
+package cn.nolaurene.cms.service.sandbox.backend.agent;
+
+
+import lombok.Getter;
+
+/**
+ * @author nolaurence
+ * @date 2026/10/17 下午4:05
+ * @description: how ExecutionSubAgent decides that the current step is done
+ */
+public enum StepCompletionMode {
+    /**
+     * the model calls the local finish_step tool inside its normal turn
+     */
+    TOOL("tool"),
+    /**
+     * legacy mode: sleep after every tool round and ask the model in a separate request
+     */
+    CHECK("check");
+
+    @Getter
+    private final String code;
+
+    StepCompletionMode(String code) {
+        this.code = code;
+    }
+
+    public static StepCompletionMode fromCode(String code) {
+        for (StepCompletionMode mode : values()) {
+            if (mode.code.equalsIgnoreCase(code)) {
+                return mode;
+            }
+        }
+        return TOOL;
+    }
+}
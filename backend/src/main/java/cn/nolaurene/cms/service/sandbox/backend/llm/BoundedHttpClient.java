@@ -0,0 +1,193 @@
+package cn.nolaurene.cms.service.sandbox.backend.llm;
+
+import dev.langchain4j.http.client.HttpClient;
+import dev.langchain4j.http.client.HttpClientBuilder;
+import dev.langchain4j.http.client.HttpRequest;
+import dev.langchain4j.http.client.SuccessfulHttpResponse;
+import dev.langchain4j.http.client.sse.ServerSentEvent;
+import dev.langchain4j.http.client.sse.ServerSentEventContext;
+import dev.langchain4j.http.client.sse.ServerSentEventListener;
+import dev.langchain4j.http.client.sse.ServerSentEventParser;
+
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @author nolaurence
+ * @date 2026/10/17 下午6:20
+ * @description: langchain4j HttpClient holding a permit of its endpoint for every request in flight.
+ * The shared JDK client only caps idle connections, the permits bound how many requests (and so connections or
+ * HTTP/2 streams) an endpoint gets at once. A streaming request keeps its permit until the stream is closed, fails
+ * or is aborted through the {@link StreamControl} of its call.
+ */
+public class BoundedHttpClient implements HttpClient {
+
+    private final HttpClient delegate;
+
+    private final String endpoint;
+
+    private final Semaphore permits;
+
+    private final long acquireTimeoutMs;
+
+    private BoundedHttpClient(HttpClient delegate, String endpoint, Semaphore permits, long acquireTimeoutMs) {
+        this.delegate = delegate;
+        this.endpoint = endpoint;
+        this.permits = permits;
+        this.acquireTimeoutMs = acquireTimeoutMs;
+    }
+
+    public static Builder builder(HttpClientBuilder delegate, String endpoint, Semaphore permits, long acquireTimeoutMs) {
+        return new Builder(delegate, endpoint, permits, acquireTimeoutMs);
+    }
+
+    @Override
+    public SuccessfulHttpResponse execute(HttpRequest request) {
+        acquire();
+        try {
+            return delegate.execute(request);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * A {@link StreamControl} bound to the calling thread gets the response body and learns when the slot is released.
+     */
+    @Override
+    public void execute(HttpRequest request, ServerSentEventParser parser, ServerSentEventListener listener) {
+        StreamControl control = StreamControl.current();
+        acquire();
+        ReleasingListener releasing = new ReleasingListener(listener, control);
+        ServerSentEventParser bodyParser = parser;
+        if (control != null) {
+            control.attach();
+            bodyParser = (body, eventListener) -> {
+                control.attachBody(body);
+                parser.parse(body, eventListener);
+            };
+        }
+        try {
+            delegate.execute(request, bodyParser, releasing);
+        } catch (RuntimeException e) {
+            releasing.release();
+            throw e;
+        }
+    }
+
+    private void acquire() {
+        try {
+            if (!permits.tryAcquire(acquireTimeoutMs, TimeUnit.MILLISECONDS)) {
+                throw new IllegalStateException("LLM endpoint busy, no request slot within " + acquireTimeoutMs + "ms: " + endpoint);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a request slot of endpoint: " + endpoint, e);
+        }
+    }
+
+    /**
+     * hands the permit back once, when the stream ends either way, and tells the control of the call
+     */
+    private class ReleasingListener implements ServerSentEventListener {
+
+        private final ServerSentEventListener listener;
+
+        private final StreamControl control;
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private ReleasingListener(ServerSentEventListener listener, StreamControl control) {
+            this.listener = listener;
+            this.control = control;
+        }
+
+        private void release() {
+            if (released.compareAndSet(false, true)) {
+                permits.release();
+                if (control != null) {
+                    control.markClosed();
+                }
+            }
+        }
+
+        @Override
+        public void onOpen(SuccessfulHttpResponse response) {
+            listener.onOpen(response);
+        }
+
+        @Override
+        public void onEvent(ServerSentEvent event, ServerSentEventContext context) {
+            // events still buffered when the call was given up are not handed on
+            if (control == null || !control.isCancelled()) {
+                listener.onEvent(event, context);
+            }
+        }
+
+        @Override
+        public void onEvent(ServerSentEvent event) {
+            if (control == null || !control.isCancelled()) {
+                listener.onEvent(event);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            release();
+            listener.onError(throwable);
+        }
+
+        @Override
+        public void onClose() {
+            release();
+            listener.onClose();
+        }
+    }
+
+    public static class Builder implements HttpClientBuilder {
+
+        private final HttpClientBuilder delegate;
+
+        private final String endpoint;
+
+        private final Semaphore permits;
+
+        private final long acquireTimeoutMs;
+
+        private Builder(HttpClientBuilder delegate, String endpoint, Semaphore permits, long acquireTimeoutMs) {
+            this.delegate = delegate;
+            this.endpoint = endpoint;
+            this.permits = permits;
+            this.acquireTimeoutMs = acquireTimeoutMs;
+        }
+
+        @Override
+        public Duration connectTimeout() {
+            return delegate.connectTimeout();
+        }
+
+        @Override
+        public Builder connectTimeout(Duration timeout) {
+            delegate.connectTimeout(timeout);
+            return this;
+        }
+
+        @Override
+        public Duration readTimeout() {
+            return delegate.readTimeout();
+        }
+
+        @Override
+        public Builder readTimeout(Duration timeout) {
+            delegate.readTimeout(timeout);
+            return this;
+        }
+
+        @Override
+        public HttpClient build() {
+            return new BoundedHttpClient(delegate.build(), endpoint, permits, acquireTimeoutMs);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package cn.nolaurene.cms.service.sandbox.backend.llm;
+
+import dev.langchain4j.http.client.HttpClientBuilder;
+import dev.langchain4j.http.client.jdk.JdkHttpClient;
+import dev.langchain4j.http.client.jdk.JdkHttpClientBuilder;
+import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.StreamingChatModel;
+import dev.langchain4j.model.openai.OpenAiChatModel;
+import dev.langchain4j.model.openai.OpenAiStreamingChatModel;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author nolaurence
+ * @date 2026/10/17 下午6:20
+ * @description: ChatModel instances shared per (endpoint, apiKey, modelName), all backed by one pooled HTTP client,
+ * requests in flight are bounded per endpoint
+ */
+@Slf4j
+@Component
+public class ChatModelRegistry {
+
+    @Value("${sandbox.backend.llm.http.version:HTTP_2}")
+    private String httpVersion;
+
+    @Value("${sandbox.backend.llm.http.connect-timeout-ms:10000}")
+    private long connectTimeoutMs;
+
+    /**
+     * 单次请求的读超时，包含模型生成时间
+     */
+    @Value("${sandbox.backend.llm.http.read-timeout-ms:300000}")
+    private long readTimeoutMs;
+
+    /**
+     * 每个模型服务地址同时进行的请求数上限，流式请求在流结束前一直占用
+     */
+    @Value("${sandbox.backend.llm.http.max-requests-per-endpoint:64}")
+    private int maxRequestsPerEndpoint;
+
+    /**
+     * 等待请求名额的最长时间，超时后请求失败
+     */
+    @Value("${sandbox.backend.llm.http.acquire-timeout-ms:60000}")
+    private long acquireTimeoutMs;
+
+    @Value("${sandbox.backend.llm.max-retries:2}")
+    private int maxRetries;
+
+    /**
+     * 最多缓存的模型实例数，超出后淘汰最久未使用的
+     */
+    @Value("${sandbox.backend.llm.pool.max-models:256}")
+    private int maxModels;
+
+    private HttpClient httpClient;
+
+    private final ConcurrentHashMap<ModelKey, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * endpoint -> request slots, shared by every model of the endpoint and kept when its models are evicted
+     */
+    private final ConcurrentHashMap<String, Semaphore> endpointPermits = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        // streaming exchanges can be aborted by the StreamControl of their call
+        httpClient = new CancellableHttpClient(HttpClient.newBuilder()
+                .version(HttpClient.Version.valueOf(httpVersion))
+                .connectTimeout(Duration.ofMillis(connectTimeoutMs))
+                .build());
+        log.info("[ChatModelRegistry] shared http client created, version: {}, maxRequestsPerEndpoint: {}",
+                httpVersion, maxRequestsPerEndpoint);
+    }
+
+    public ChatModel chatModel(String endpoint, String apiKey, String modelName) {
+        return acquire(endpoint, apiKey, modelName).chatModel;
+    }
+
+    public StreamingChatModel streamingChatModel(String endpoint, String apiKey, String modelName) {
+        return acquire(endpoint, apiKey, modelName).streamingChatModel;
+    }
+
+    /**
+     * Drop the models of a configuration, agents already holding them keep working until they are discarded.
+     */
+    public void evict(String endpoint, String apiKey, String modelName) {
+        if (entries.remove(new ModelKey(endpoint, apiKey, modelName)) != null) {
+            evictions.incrementAndGet();
+            log.info("[ChatModelRegistry] evicted model, endpoint: {}, modelName: {}", endpoint, modelName);
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("models", entries.size());
+        stats.put("maxModels", maxModels);
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("evictions", evictions.get());
+        stats.put("httpVersion", httpVersion);
+        stats.put("maxRequestsPerEndpoint", maxRequestsPerEndpoint);
+        Map<String, Object> inFlight = new HashMap<>();
+        endpointPermits.forEach((endpoint, permits) -> inFlight.put(endpoint, maxRequestsPerEndpoint - permits.availablePermits()));
+        stats.put("inFlightRequests", inFlight);
+
+        List<Map<String, Object>> models = new ArrayList<>();
+        entries.forEach((key, entry) -> {
+            Map<String, Object> model = new HashMap<>();
+            model.put("endpoint", key.getEndpoint());
+            model.put("modelName", key.getModelName());
+            model.put("acquired", entry.acquired.get());
+            model.put("createdAt", entry.createdAt);
+            model.put("lastAccessAt", entry.lastAccessAt);
+            models.add(model);
+        });
+        stats.put("entries", models);
+        return stats;
+    }
+
+    private Entry acquire(String endpoint, String apiKey, String modelName) {
+        ModelKey key = new ModelKey(endpoint, apiKey, modelName);
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            hits.incrementAndGet();
+        } else {
+            entry = entries.computeIfAbsent(key, k -> {
+                misses.incrementAndGet();
+                return createEntry(k);
+            });
+            evictIfNecessary();
+        }
+        entry.acquired.incrementAndGet();
+        entry.lastAccessAt = System.currentTimeMillis();
+        return entry;
+    }
+
+    private Entry createEntry(ModelKey key) {
+        log.info("[ChatModelRegistry] create model, endpoint: {}, modelName: {}", key.getEndpoint(), key.getModelName());
+        ChatModel chatModel = OpenAiChatModel.builder()
+                .httpClientBuilder(httpClientBuilder(key.getEndpoint()))
+                .baseUrl(key.getEndpoint())
+                .apiKey(key.getApiKey())
+                .modelName(key.getModelName())
+                .timeout(Duration.ofMillis(readTimeoutMs))
+                .maxRetries(maxRetries)
+                .build();
+        StreamingChatModel streamingChatModel = OpenAiStreamingChatModel.builder()
+                .httpClientBuilder(httpClientBuilder(key.getEndpoint()))
+                .baseUrl(key.getEndpoint())
+                .apiKey(key.getApiKey())
+                .modelName(key.getModelName())
+                .timeout(Duration.ofMillis(readTimeoutMs))
+                .build();
+        return new Entry(chatModel, streamingChatModel);
+    }
+
+    private HttpClientBuilder httpClientBuilder(String endpoint) {
+        JdkHttpClientBuilder jdkBuilder = JdkHttpClient.builder()
+                .httpClientBuilder(new SharedHttpClientBuilder(httpClient))
+                .connectTimeout(Duration.ofMillis(connectTimeoutMs))
+                .readTimeout(Duration.ofMillis(readTimeoutMs));
+        Semaphore permits = endpointPermits.computeIfAbsent(endpoint, key -> new Semaphore(Math.max(1, maxRequestsPerEndpoint)));
+        return BoundedHttpClient.builder(jdkBuilder, endpoint, permits, acquireTimeoutMs);
+    }
+
+    private void evictIfNecessary() {
+        while (entries.size() > maxModels) {
+            entries.entrySet().stream()
+                    .min(Comparator.comparingLong(e -> e.getValue().lastAccessAt))
+                    .ifPresent(eldest -> {
+                        if (entries.remove(eldest.getKey(), eldest.getValue())) {
+                            evictions.incrementAndGet();
+                        }
+                    });
+        }
+    }
+
+    @Getter
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    private static class ModelKey {
+        private final String endpoint;
+        private final String apiKey;
+        private final String modelName;
+    }
+
+    private static class Entry {
+        private final ChatModel chatModel;
+        private final StreamingChatModel streamingChatModel;
+        private final long createdAt = System.currentTimeMillis();
+        private final AtomicLong acquired = new AtomicLong();
+        private volatile long lastAccessAt = createdAt;
+
+        private Entry(ChatModel chatModel, StreamingChatModel streamingChatModel) {
+            this.chatModel = chatModel;
+            this.streamingChatModel = streamingChatModel;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package cn.nolaurene.cms.service.sandbox.backend.llm;
+
+import cn.nolaurene.cms.common.sandbox.backend.llm.ChatMemory;
+import cn.nolaurene.cms.common.sandbox.backend.llm.ChatMessage;
+import cn.nolaurene.cms.common.sandbox.backend.model.SSEEventType;
+import cn.nolaurene.cms.service.sandbox.backend.utils.PromptRenderer;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.TokenCountEstimator;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.openai.OpenAiTokenCountEstimator;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author nolaurence
+ * @date 2026/10/17 下午5:10
+ * @description: keep ChatMemory within a per-model token budget with a sliding window and a rolling summary
+ */
+@Slf4j
+@Component
+public class ContextWindowManager {
+
+    /**
+     * tokenizer used for models jtokkit does not know, o200k_base is close enough for budget decisions
+     */
+    private static final String FALLBACK_TOKENIZER_MODEL = "gpt-4o";
+
+    /**
+     * single message length handed to the summarizer, keeps the summarize request itself bounded
+     */
+    private static final int MAX_FOLDED_MESSAGE_CHARS = 4000;
+
+    @Value("${sandbox.backend.context.enabled:true}")
+    private boolean enabled;
+
+    @Value("${sandbox.backend.context.default-max-tokens:32000}")
+    private int defaultMaxTokens;
+
+    /**
+     * 按模型配置的上下文预算，格式 model:tokens，逗号分隔
+     */
+    @Value("${sandbox.backend.context.model-max-tokens:}")
+    private String modelMaxTokens;
+
+    /**
+     * 窗口内至少保留的最新消息数
+     */
+    @Value("${sandbox.backend.context.min-recent-messages:4}")
+    private int minRecentMessages;
+
+    @Value("${sandbox.backend.context.summary-max-tokens:1024}")
+    private int summaryMaxTokens;
+
+    private final Map<String, Integer> modelBudgets = new HashMap<>();
+
+    private final ConcurrentHashMap<String, TokenCountEstimator> estimators = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        if (StringUtils.isBlank(modelMaxTokens)) {
+            return;
+        }
+        for (String entry : modelMaxTokens.split(",")) {
+            int idx = entry.lastIndexOf(':');
+            if (idx <= 0) {
+                log.warn("[ContextWindowManager] invalid model budget entry: {}", entry);
+                continue;
+            }
+            try {
+                modelBudgets.put(entry.substring(0, idx).trim(), Integer.parseInt(entry.substring(idx + 1).trim()));
+            } catch (NumberFormatException e) {
+                log.warn("[ContextWindowManager] invalid model budget entry: {}", entry);
+            }
+        }
+    }
+
+    public int budgetOf(String modelName) {
+        return modelName == null ? defaultMaxTokens : modelBudgets.getOrDefault(modelName, defaultMaxTokens);
+    }
+
+    public TokenCountEstimator estimatorOf(String modelName) {
+        String key = StringUtils.defaultIfBlank(modelName, FALLBACK_TOKENIZER_MODEL);
+        return estimators.computeIfAbsent(key, name -> {
+            try {
+                return new OpenAiTokenCountEstimator(name);
+            } catch (Exception e) {
+                log.info("[ContextWindowManager] no tokenizer for model {}, fallback to {}", name, FALLBACK_TOKENIZER_MODEL);
+                return new OpenAiTokenCountEstimator(FALLBACK_TOKENIZER_MODEL);
+            }
+        });
+    }
+
+    /**
+     * Shrink the memory in place until it fits the budget of the model.
+     * The newest PLAN message and everything after it is never folded, older messages are replaced by a rolling summary.
+     */
+    public void fit(ChatMemory memory, LlmClient llmClient, String modelName) {
+        if (!enabled || memory == null || memory.isEmpty()) {
+            return;
+        }
+        TokenCountEstimator estimator = estimatorOf(modelName);
+        int budget = budgetOf(modelName);
+        int total = memory.calculateTokenCount(estimator);
+        if (total <= budget) {
+            return;
+        }
+
+        List<ChatMessage> window = memory.getWindow();
+        int protectedFrom = Math.max(0, window.size() - minRecentMessages);
+        for (int i = window.size() - 1; i >= 0; i--) {
+            if (window.get(i).getEventType() == SSEEventType.PLAN) {
+                protectedFrom = Math.min(protectedFrom, i);
+                break;
+            }
+        }
+
+        // slide the window start forward from the newest message until the kept part and the summary fit
+        int keptBudget = budget - summaryMaxTokens;
+        int keptTokens = 0;
+        int cut = window.size();
+        while (cut > 0) {
+            // tool events are not sent, they cost nothing and are folded along with their neighbours
+            ChatMessage message = window.get(cut - 1);
+            int tokens = ChatMemory.isSent(message) ? ChatMemory.countTokens(message, estimator) : 0;
+            if (cut <= protectedFrom && keptTokens + tokens > keptBudget) {
+                break;
+            }
+            keptTokens += tokens;
+            cut--;
+        }
+        if (cut == 0) {
+            // nothing older than the kept messages is left to fold
+            if (keptTokens > keptBudget) {
+                log.warn("[ContextWindowManager] the newest plan and recent messages alone exceed the budget, tokens: {}, budget: {}",
+                        total, budget);
+            } else {
+                log.warn("[ContextWindowManager] the window fits, the rolling summary takes it over the budget, tokens: {}, budget: {}",
+                        total, budget);
+            }
+            return;
+        }
+
+        String newSummary = summarize(memory.getSummary(), window.subList(0, cut), llmClient);
+        memory.summarize(cut, newSummary);
+        log.info("[ContextWindowManager] folded {} messages into summary, model: {}, tokens: {} -> {}, budget: {}",
+                cut, modelName, total, memory.calculateTokenCount(estimator), budget);
+    }
+
+    private String summarize(String previousSummary, List<ChatMessage> folded, LlmClient llmClient) {
+        StringBuilder conversation = new StringBuilder();
+        for (ChatMessage message : folded) {
+            if (!ChatMemory.isSent(message)) {
+                continue;
+            }
+            conversation.append(message.getRole().name()).append(": ")
+                    .append(StringUtils.abbreviate(StringUtils.defaultString(message.getContent()), MAX_FOLDED_MESSAGE_CHARS))
+                    .append("\n");
+        }
+        try {
+            Map<String, Object> context = new HashMap<>();
+            context.put("previousSummary", StringUtils.defaultString(previousSummary));
+            context.put("conversation", conversation.toString());
+            context.put("maxTokens", summaryMaxTokens);
+            String prompt = PromptRenderer.renderPrompt("prompts/summarizeContext.jinja", context);
+            String summary = llmClient.forPhase(LlmPhase.CHECKER)
+                    .chat(ChatRequest.builder().messages(UserMessage.from(prompt)).build(), LlmPriority.BACKGROUND).aiMessage().text();
+            if (StringUtils.isNotBlank(summary)) {
+                return summary.trim();
+            }
+        } catch (Exception e) {
+            log.warn("[ContextWindowManager] failed to summarize context, keep previous summary: {}", e.getMessage());
+        }
+        // the folded messages are dropped anyway, the window has to shrink to keep the request within limits
+        return StringUtils.defaultIfBlank(previousSummary, "(earlier conversation omitted)");
+    }
+}
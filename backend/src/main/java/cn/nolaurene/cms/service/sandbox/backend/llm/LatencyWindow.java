@@ -0,0 +1,63 @@
+package cn.nolaurene.cms.service.sandbox.backend.llm;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author nolaurence
+ * @date 2026/10/17 下午8:20
+ * @description: sliding window of the latest latency samples, used for percentile thresholds and tail latency metrics
+ */
+public class LatencyWindow {
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final long[] samples;
+
+    private int next;
+
+    private int size;
+
+    public LatencyWindow(int capacity) {
+        this.samples = new long[capacity];
+    }
+
+    public void add(long latencyMs) {
+        lock.lock();
+        try {
+            samples[next] = latencyMs;
+            next = (next + 1) % samples.length;
+            size = Math.min(size + 1, samples.length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param percentile 0-100
+     * @return latency at the percentile, -1 without samples
+     */
+    public long percentile(double percentile) {
+        lock.lock();
+        try {
+            if (size == 0) {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(samples, size);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100D * size) - 1;
+            return sorted[Math.max(0, Math.min(size - 1, index))];
+        } finally {
+            lock.unlock();
+        }
+    }
+}
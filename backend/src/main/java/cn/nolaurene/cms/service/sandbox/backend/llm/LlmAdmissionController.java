@@ -0,0 +1,485 @@
+package cn.nolaurene.cms.service.sandbox.backend.llm;
+
+import cn.nolaurene.cms.common.sandbox.backend.llm.ChatMemory;
+import dev.langchain4j.agent.tool.ToolExecutionRequest;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.Content;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.TextContent;
+import dev.langchain4j.data.message.ToolExecutionResultMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author nolaurence
+ * @date 2026/10/17 下午7:00
+ * @description: admission layer in front of every LLM endpoint.
+ * Each endpoint has a request bucket, an estimated-token bucket and a concurrency cap.
+ * Waiting calls are queued per priority and served round robin across users.
+ */
+@Slf4j
+@Component
+public class LlmAdmissionController {
+
+    private static final String DEFAULT_ENDPOINT = "default";
+
+    /**
+     * rough ratio for the messages without a cached count, the bucket is corrected with the real usage afterwards
+     */
+    private static final int CHARS_PER_TOKEN = 3;
+
+    /**
+     * 默认关闭，endpoint 自身有限流时按其配额开启
+     */
+    @Value("${sandbox.backend.llm.admission.enabled:false}")
+    private boolean enabled;
+
+    @Value("${sandbox.backend.llm.admission.requests-per-second:50}")
+    private double requestsPerSecond;
+
+    @Value("${sandbox.backend.llm.admission.burst:100}")
+    private int burst;
+
+    @Value("${sandbox.backend.llm.admission.tokens-per-minute:2000000}")
+    private long tokensPerMinute;
+
+    /**
+     * 每个 endpoint 同时进行中的请求上限，0 表示不限制，连接数已由 endpoint 的请求许可限制
+     */
+    @Value("${sandbox.backend.llm.admission.max-concurrency:0}")
+    private int maxConcurrency;
+
+    @Value("${sandbox.backend.llm.admission.max-wait-ms:120000}")
+    private long maxWaitMs;
+
+    /**
+     * 估算 token 时为输出预留的数量，请求完成后按实际用量校正
+     */
+    @Value("${sandbox.backend.llm.admission.estimated-output-tokens:1024}")
+    private int estimatedOutputTokens;
+
+    /**
+     * endpoint 返回 429 后暂停放行的时间
+     */
+    @Value("${sandbox.backend.llm.admission.rate-limit-backoff-ms:5000}")
+    private long rateLimitBackoffMs;
+
+    @Resource
+    private ContextWindowManager contextWindowManager;
+
+    private final ConcurrentHashMap<String, EndpointLimiter> limiters = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "llm-admission-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Block until the call may be sent to the endpoint.
+     * The returned permit must be closed when the call finishes.
+     * @param memory memory the request was built from, its messages are counted from their cached token counts
+     */
+    public Permit acquire(String endpoint, String userId, LlmPriority priority, String modelName, ChatRequest request,
+                          ChatMemory memory) {
+        if (!enabled) {
+            return Permit.NOOP;
+        }
+        int estimatedTokens = estimateTokens(modelName, request, memory);
+        EndpointLimiter limiter = limiters.computeIfAbsent(endpoint == null ? DEFAULT_ENDPOINT : endpoint, EndpointLimiter::new);
+        return limiter.acquire(userId == null ? "anonymous" : userId,
+                priority == null ? LlmPriority.INTERACTIVE : priority, estimatedTokens);
+    }
+
+    /**
+     * The endpoint answered 429, stop admitting calls for a while so queued agents do not amplify the storm.
+     */
+    public void onRateLimited(String endpoint) {
+        EndpointLimiter limiter = limiters.get(endpoint == null ? DEFAULT_ENDPOINT : endpoint);
+        if (limiter != null) {
+            limiter.backoff();
+        }
+    }
+
+    public List<Map<String, Object>> stats() {
+        List<Map<String, Object>> result = new ArrayList<>();
+        limiters.values().forEach(limiter -> result.add(limiter.stats()));
+        return result;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * The request is not tokenized as a whole on every call: memory messages reuse the counts cached by the memory,
+     * prompts and step loop messages are approximated from their length.
+     */
+    private int estimateTokens(String modelName, ChatRequest request, ChatMemory memory) {
+        try {
+            List<ChatMessage> messages = request.messages();
+            if (memory != null) {
+                return memory.estimateTokenCount(messages, contextWindowManager.estimatorOf(modelName),
+                        LlmAdmissionController::approximateTokens) + estimatedOutputTokens;
+            }
+            int tokens = 0;
+            for (ChatMessage message : messages) {
+                tokens += approximateTokens(message);
+            }
+            return tokens + estimatedOutputTokens;
+        } catch (Exception e) {
+            return estimatedOutputTokens;
+        }
+    }
+
+    private static int approximateTokens(ChatMessage message) {
+        long chars = 0;
+        if (message instanceof SystemMessage) {
+            chars = ((SystemMessage) message).text().length();
+        } else if (message instanceof UserMessage) {
+            for (Content content : ((UserMessage) message).contents()) {
+                if (content instanceof TextContent) {
+                    chars += ((TextContent) content).text().length();
+                }
+            }
+        } else if (message instanceof AiMessage) {
+            AiMessage aiMessage = (AiMessage) message;
+            chars = aiMessage.text() == null ? 0 : aiMessage.text().length();
+            if (aiMessage.hasToolExecutionRequests()) {
+                for (ToolExecutionRequest toolRequest : aiMessage.toolExecutionRequests()) {
+                    chars += toolRequest.arguments() == null ? 0 : toolRequest.arguments().length();
+                }
+            }
+        } else if (message instanceof ToolExecutionResultMessage) {
+            String text = ((ToolExecutionResultMessage) message).text();
+            chars = text == null ? 0 : text.length();
+        }
+        // 4 tokens of role framing, as counted by the memory
+        return (int) Math.min(Integer.MAX_VALUE, chars / CHARS_PER_TOKEN + 4);
+    }
+
+    /**
+     * Admission ticket, closing it releases the concurrency slot and corrects the token bucket with the real usage.
+     */
+    public interface Permit extends AutoCloseable {
+
+        Permit NOOP = new Permit() {
+            @Override
+            public void reportUsage(int actualTokens) {
+            }
+
+            @Override
+            public void releaseAfter(CompletableFuture<?> running) {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        void reportUsage(int actualTokens);
+
+        /**
+         * The call was given up but is still running, closing the permit releases it only once {@code running} completes.
+         */
+        void releaseAfter(CompletableFuture<?> running);
+
+        @Override
+        void close();
+    }
+
+    private static class Ticket {
+        private final String userId;
+        private final LlmPriority priority;
+        private final int tokens;
+        private final long enqueuedAt = System.nanoTime();
+        private final CompletableFuture<Void> granted = new CompletableFuture<>();
+
+        private Ticket(String userId, LlmPriority priority, int tokens) {
+            this.userId = userId;
+            this.priority = priority;
+            this.tokens = tokens;
+        }
+    }
+
+    private class EndpointLimiter {
+
+        private final String endpoint;
+        private final ReentrantLock lock = new ReentrantLock();
+
+        /**
+         * per priority: userId -> waiting tickets, the iteration order of the map is the round robin order
+         */
+        private final Map<LlmPriority, LinkedHashMap<String, ArrayDeque<Ticket>>> queues = new EnumMap<>(LlmPriority.class);
+
+        private double requestBucket;
+        private double tokenBucket;
+        private long lastRefillNanos = System.nanoTime();
+        private long blockedUntilNanos;
+        private boolean drainScheduled;
+        private int inFlight;
+        private int queued;
+
+        private long granted;
+        private long timeouts;
+        private long rateLimited;
+        private long totalWaitMs;
+        private long maxWaitObservedMs;
+
+        private EndpointLimiter(String endpoint) {
+            this.endpoint = endpoint;
+            this.requestBucket = burst;
+            this.tokenBucket = tokensPerMinute;
+            for (LlmPriority priority : LlmPriority.values()) {
+                queues.put(priority, new LinkedHashMap<>());
+            }
+        }
+
+        private Permit acquire(String userId, LlmPriority priority, int tokens) {
+            Ticket ticket = new Ticket(userId, priority, tokens);
+            lock.lock();
+            try {
+                queues.get(priority).computeIfAbsent(userId, k -> new ArrayDeque<>()).addLast(ticket);
+                queued++;
+                drain();
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                ticket.granted.get(maxWaitMs, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException | InterruptedException | ExecutionException e) {
+                lock.lock();
+                try {
+                    if (!ticket.granted.isDone() && remove(ticket)) {
+                        timeouts++;
+                        if (e instanceof InterruptedException) {
+                            Thread.currentThread().interrupt();
+                        }
+                        throw new IllegalStateException("LLM admission wait timeout for endpoint: " + endpoint, e);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                // granted concurrently with the timeout, go on with the call
+            }
+            return new EndpointPermit(this, tokens);
+        }
+
+        private void release(int estimatedTokens, int actualTokens) {
+            lock.lock();
+            try {
+                inFlight--;
+                if (actualTokens > 0) {
+                    tokenBucket = Math.min(tokensPerMinute, tokenBucket + estimatedTokens - actualTokens);
+                }
+                drain();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void backoff() {
+            lock.lock();
+            try {
+                rateLimited++;
+                blockedUntilNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(rateLimitBackoffMs);
+                requestBucket = 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Grant as many queued tickets as the buckets allow, must hold the lock.
+         */
+        private void drain() {
+            refill();
+            while (queued > 0) {
+                long now = System.nanoTime();
+                if (now < blockedUntilNanos) {
+                    scheduleDrain(blockedUntilNanos - now);
+                    return;
+                }
+                if (maxConcurrency > 0 && inFlight >= maxConcurrency) {
+                    // the next release drains again
+                    return;
+                }
+                Ticket next = peek();
+                if (requestBucket < 1) {
+                    scheduleDrain((long) ((1 - requestBucket) / requestsPerSecond * 1_000_000_000L));
+                    return;
+                }
+                // a request larger than the whole bucket only waits for a full bucket
+                double needed = Math.min(next.tokens, tokensPerMinute);
+                if (tokenBucket < needed) {
+                    scheduleDrain((long) ((needed - tokenBucket) / tokensPerMinute * 60_000_000_000L));
+                    return;
+                }
+
+                poll();
+                requestBucket -= 1;
+                tokenBucket -= next.tokens;
+                inFlight++;
+                granted++;
+                long waitMs = TimeUnit.NANOSECONDS.toMillis(now - next.enqueuedAt);
+                totalWaitMs += waitMs;
+                maxWaitObservedMs = Math.max(maxWaitObservedMs, waitMs);
+                next.granted.complete(null);
+            }
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            double elapsedSeconds = (now - lastRefillNanos) / 1_000_000_000D;
+            lastRefillNanos = now;
+            requestBucket = Math.min(burst, requestBucket + elapsedSeconds * requestsPerSecond);
+            tokenBucket = Math.min(tokensPerMinute, tokenBucket + elapsedSeconds * tokensPerMinute / 60D);
+        }
+
+        private void scheduleDrain(long delayNanos) {
+            if (drainScheduled) {
+                return;
+            }
+            drainScheduled = true;
+            scheduler.schedule(() -> {
+                lock.lock();
+                try {
+                    drainScheduled = false;
+                    drain();
+                } finally {
+                    lock.unlock();
+                }
+            }, Math.max(delayNanos, TimeUnit.MILLISECONDS.toNanos(1)), TimeUnit.NANOSECONDS);
+        }
+
+        private Ticket peek() {
+            for (LlmPriority priority : LlmPriority.values()) {
+                LinkedHashMap<String, ArrayDeque<Ticket>> userQueues = queues.get(priority);
+                if (!userQueues.isEmpty()) {
+                    return userQueues.values().iterator().next().peekFirst();
+                }
+            }
+            return null;
+        }
+
+        private void poll() {
+            for (LlmPriority priority : LlmPriority.values()) {
+                LinkedHashMap<String, ArrayDeque<Ticket>> userQueues = queues.get(priority);
+                if (userQueues.isEmpty()) {
+                    continue;
+                }
+                Iterator<Map.Entry<String, ArrayDeque<Ticket>>> iterator = userQueues.entrySet().iterator();
+                Map.Entry<String, ArrayDeque<Ticket>> first = iterator.next();
+                ArrayDeque<Ticket> tickets = first.getValue();
+                tickets.pollFirst();
+                queued--;
+                // move the user to the tail so every user gets one call per round
+                iterator.remove();
+                if (!tickets.isEmpty()) {
+                    userQueues.put(first.getKey(), tickets);
+                }
+                return;
+            }
+        }
+
+        private boolean remove(Ticket ticket) {
+            LinkedHashMap<String, ArrayDeque<Ticket>> userQueues = queues.get(ticket.priority);
+            ArrayDeque<Ticket> tickets = userQueues.get(ticket.userId);
+            if (tickets == null || !tickets.remove(ticket)) {
+                return false;
+            }
+            queued--;
+            if (tickets.isEmpty()) {
+                userQueues.remove(ticket.userId);
+            }
+            return true;
+        }
+
+        private Map<String, Object> stats() {
+            lock.lock();
+            try {
+                refill();
+                Map<String, Object> stats = new HashMap<>();
+                stats.put("endpoint", endpoint);
+                stats.put("queued", queued);
+                for (LlmPriority priority : LlmPriority.values()) {
+                    int count = queues.get(priority).values().stream().mapToInt(ArrayDeque::size).sum();
+                    stats.put("queued" + priority.name(), count);
+                }
+                stats.put("inFlight", inFlight);
+                stats.put("granted", granted);
+                stats.put("timeouts", timeouts);
+                stats.put("rateLimited", rateLimited);
+                stats.put("avgWaitMs", granted == 0 ? 0 : totalWaitMs / granted);
+                stats.put("maxWaitMs", maxWaitObservedMs);
+                stats.put("availableRequests", (long) requestBucket);
+                stats.put("availableTokens", (long) tokenBucket);
+                return stats;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static class EndpointPermit implements Permit {
+        private final EndpointLimiter limiter;
+        private final int estimatedTokens;
+        private int actualTokens;
+        private boolean closed;
+        private CompletableFuture<?> outliving;
+
+        private EndpointPermit(EndpointLimiter limiter, int estimatedTokens) {
+            this.limiter = limiter;
+            this.estimatedTokens = estimatedTokens;
+        }
+
+        @Override
+        public void reportUsage(int actualTokens) {
+            this.actualTokens = actualTokens;
+        }
+
+        @Override
+        public void releaseAfter(CompletableFuture<?> running) {
+            this.outliving = running;
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (outliving != null && !outliving.isDone()) {
+                // the abandoned call still holds a connection, its slot stays taken until it ends
+                outliving.whenComplete((ignored, error) -> limiter.release(estimatedTokens, actualTokens));
+                return;
+            }
+            limiter.release(estimatedTokens, actualTokens);
+        }
+    }
+}
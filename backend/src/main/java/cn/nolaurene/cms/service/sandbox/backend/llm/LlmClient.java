@@ -0,0 +1,390 @@
+package cn.nolaurene.cms.service.sandbox.backend.llm;
+
+import cn.nolaurene.cms.common.sandbox.backend.llm.ChatMemory;
+import dev.langchain4j.exception.RateLimitException;
+import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.StreamingChatModel;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.chat.response.PartialResponse;
+import dev.langchain4j.model.chat.response.PartialResponseContext;
+import dev.langchain4j.model.chat.response.PartialThinking;
+import dev.langchain4j.model.chat.response.PartialThinkingContext;
+import dev.langchain4j.model.chat.response.PartialToolCall;
+import dev.langchain4j.model.chat.response.PartialToolCallContext;
+import dev.langchain4j.model.chat.response.StreamingChatResponseHandler;
+import dev.langchain4j.model.chat.response.StreamingHandle;
+import dev.langchain4j.model.output.TokenUsage;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * @author nolaurence
+ * @date 2026/10/17 下午2:10
+ * @description: LLM client used by the agent phases, wraps a blocking ChatModel and an optional StreamingChatModel
+ */
+@Slf4j
+public class LlmClient {
+
+    @Getter
+    private final ChatModel chatModel;
+
+    @Getter
+    private final StreamingChatModel streamingChatModel;
+
+    @Getter
+    private final String modelName;
+
+    private final LlmUsageRecorder usageRecorder;
+
+    private LlmAdmissionController admissionController;
+
+    private String endpoint;
+
+    private String userId;
+
+    /**
+     * memory the requests of the agent are built from, lets the admission layer reuse its cached token counts
+     */
+    private ChatMemory promptMemory;
+
+    /**
+     * priority of calls without an explicit one, evaluated per call
+     */
+    private Supplier<LlmPriority> prioritySupplier = () -> LlmPriority.INTERACTIVE;
+
+    /**
+     * dedicated clients of the phases configured with their own model, other phases use this client
+     */
+    private final Map<LlmPhase, LlmClient> phaseClients = new ConcurrentHashMap<>();
+
+    /**
+     * default client a phase client falls back to when its own model fails
+     */
+    private LlmClient fallback;
+
+    /**
+     * phase served by this client, decides the deadline of its calls
+     */
+    @Getter
+    private LlmPhase phase;
+
+    private LlmHedgingPolicy hedgingPolicy;
+
+    /**
+     * same model on the secondary endpoint, slow calls are hedged to it
+     */
+    private LlmClient secondary;
+
+    public LlmClient(ChatModel chatModel, StreamingChatModel streamingChatModel) {
+        this(chatModel, streamingChatModel, null, null);
+    }
+
+    public LlmClient(ChatModel chatModel, StreamingChatModel streamingChatModel, String modelName, LlmUsageRecorder usageRecorder) {
+        this.chatModel = chatModel;
+        this.streamingChatModel = streamingChatModel;
+        this.modelName = modelName;
+        this.usageRecorder = usageRecorder;
+    }
+
+    /**
+     * view of {@code base} serving one phase with the same models
+     */
+    private LlmClient(LlmClient base, LlmPhase phase) {
+        this(base.chatModel, base.streamingChatModel, base.modelName, base.usageRecorder);
+        this.admissionController = base.admissionController;
+        this.endpoint = base.endpoint;
+        this.userId = base.userId;
+        this.promptMemory = base.promptMemory;
+        this.prioritySupplier = base.prioritySupplier;
+        this.hedgingPolicy = base.hedgingPolicy;
+        this.secondary = base.secondary;
+        this.phase = phase;
+    }
+
+    /**
+     * Route every call through the admission layer of the endpoint.
+     */
+    public void setAdmission(LlmAdmissionController admissionController, String endpoint, String userId) {
+        this.admissionController = admissionController;
+        this.endpoint = endpoint;
+        this.userId = userId;
+    }
+
+    /**
+     * Apply per-phase deadlines to the calls, and hedge slow calls to {@code secondary} when it is given.
+     */
+    public void setHedging(LlmHedgingPolicy hedgingPolicy, LlmClient secondary) {
+        this.hedgingPolicy = hedgingPolicy;
+        this.secondary = secondary;
+    }
+
+    public void setPrioritySupplier(Supplier<LlmPriority> prioritySupplier) {
+        this.prioritySupplier = prioritySupplier;
+        if (secondary != null) {
+            secondary.setPrioritySupplier(prioritySupplier);
+        }
+        if (fallback != null) {
+            fallback.setPrioritySupplier(prioritySupplier);
+        }
+        phaseClients.values().forEach(client -> client.setPrioritySupplier(prioritySupplier));
+    }
+
+    public void setPromptMemory(ChatMemory promptMemory) {
+        this.promptMemory = promptMemory;
+        if (secondary != null) {
+            secondary.setPromptMemory(promptMemory);
+        }
+        if (fallback != null) {
+            fallback.setPromptMemory(promptMemory);
+        }
+        phaseClients.values().forEach(client -> client.setPromptMemory(promptMemory));
+    }
+
+    /**
+     * Route the calls of a phase to a dedicated client, failures of that client fall back to this one.
+     */
+    public void route(LlmPhase phase, LlmClient phaseClient) {
+        // the fallback keeps the phase, so its calls stay under the same deadline
+        phaseClient.fallback = new LlmClient(this, phase);
+        phaseClient.phase = phase;
+        phaseClient.setPrioritySupplier(this.prioritySupplier);
+        phaseClient.setPromptMemory(this.promptMemory);
+        phaseClients.put(phase, phaseClient);
+    }
+
+    /**
+     * Client serving the given phase: its dedicated client, or a view of this client bound to the phase.
+     */
+    public LlmClient forPhase(LlmPhase phase) {
+        if (phase == null || phase == this.phase) {
+            return this;
+        }
+        return phaseClients.computeIfAbsent(phase, p -> new LlmClient(this, p));
+    }
+
+    public boolean isStreaming() {
+        return streamingChatModel != null;
+    }
+
+    /**
+     * Blocking call, the full response is returned at once.
+     */
+    public ChatResponse chat(ChatRequest request) {
+        return chat(request, prioritySupplier.get());
+    }
+
+    /**
+     * Blocking call with an explicit admission priority.
+     */
+    public ChatResponse chat(ChatRequest request, LlmPriority priority) {
+        return chat(request, priority, deadlineAt());
+    }
+
+    /**
+     * @param deadlineNanos shared with the fallback, so a failing phase model does not restart the clock
+     */
+    private ChatResponse chat(ChatRequest request, LlmPriority priority, long deadlineNanos) {
+        try (LlmAdmissionController.Permit permit = admit(request, priority)) {
+            long start = System.currentTimeMillis();
+            ChatResponse response = invoke(() -> call(request, priority, null, deadlineNanos, permit));
+            recordUsage(response, start, permit);
+            return response;
+        } catch (RuntimeException e) {
+            if (fallback == null) {
+                throw e;
+            }
+            log.warn("[LlmClient] Model {} failed, fall back to default model {}: {}", modelName, fallback.modelName, e.getMessage());
+        }
+        return fallback.chat(request, priority, deadlineNanos);
+    }
+
+    /**
+     * Call the LLM and push every text delta to {@code onPartialResponse} as soon as it arrives.
+     * Falls back to the blocking model when streaming is disabled or no consumer is given.
+     * The returned response always carries the fully assembled AiMessage (text and tool calls).
+     */
+    public ChatResponse chat(ChatRequest request, Consumer<String> onPartialResponse) {
+        return chat(request, onPartialResponse, deadlineAt());
+    }
+
+    private ChatResponse chat(ChatRequest request, Consumer<String> onPartialResponse, long deadlineNanos) {
+        if (!isStreaming() || onPartialResponse == null) {
+            return chat(request, prioritySupplier.get(), deadlineNanos);
+        }
+
+        AtomicBoolean streamed = new AtomicBoolean(false);
+        LlmPriority priority = prioritySupplier.get();
+        try (LlmAdmissionController.Permit permit = admit(request, priority)) {
+            long start = System.currentTimeMillis();
+            ChatResponse response = invoke(() -> call(request, priority, delta -> {
+                streamed.set(true);
+                onPartialResponse.accept(delta);
+            }, deadlineNanos, permit));
+            recordUsage(response, start, permit);
+            return response;
+        } catch (RuntimeException e) {
+            // deltas already on the wire cannot be taken back, only fall back before the first one
+            if (fallback == null || streamed.get()) {
+                throw e;
+            }
+            log.warn("[LlmClient] Model {} failed, fall back to default model {}: {}", modelName, fallback.modelName, e.getMessage());
+        }
+        return fallback.chat(request, onPartialResponse, deadlineNanos);
+    }
+
+    private long deadlineAt() {
+        return hedgingPolicy == null ? Long.MAX_VALUE : hedgingPolicy.deadlineAt(phase);
+    }
+
+    /**
+     * Call the model, bounded by the deadline and hedged when a secondary is configured.
+     * Calls given up at the deadline keep the admission permit until they have actually ended.
+     * @param sink delta consumer for streaming calls, null for blocking calls
+     */
+    private ChatResponse call(ChatRequest request, LlmPriority priority, Consumer<String> sink, long deadlineNanos,
+                              LlmAdmissionController.Permit permit) {
+        Function<Consumer<String>, ChatResponse> primary = sink == null
+                ? ignored -> chatModel.chat(request)
+                : deltas -> stream(request, deltas);
+        if (hedgingPolicy == null) {
+            return primary.apply(sink);
+        }
+        Function<Consumer<String>, ChatResponse> hedge = null;
+        if (secondary != null) {
+            hedge = sink == null
+                    ? ignored -> secondary.chat(request, priority, deadlineNanos)
+                    : deltas -> secondary.chat(request, deltas, deadlineNanos);
+        }
+        return hedgingPolicy.execute(phase, endpoint, modelName, deadlineNanos, primary, hedge, sink, permit::releaseAfter);
+    }
+
+    private ChatResponse stream(ChatRequest request, Consumer<String> onPartialResponse) {
+        CompletableFuture<ChatResponse> future = new CompletableFuture<>();
+        // handle of the stream, known from the first event on, cancels the HTTP stream when the call is given up
+        AtomicReference<StreamingHandle> handle = new AtomicReference<>();
+        AtomicBoolean cancelled = new AtomicBoolean(false);
+        // aborts the HTTP request also before the first event, a hedged attempt brings its own control
+        StreamControl boundControl = StreamControl.current();
+        StreamControl control = boundControl != null ? boundControl : new StreamControl();
+        StreamControl.runBound(control, () -> streamingChatModel.chat(request, new StreamingChatResponseHandler() {
+            @Override
+            public void onPartialResponse(PartialResponse partialResponse, PartialResponseContext context) {
+                if (!track(context.streamingHandle())) {
+                    return;
+                }
+                String text = partialResponse.text();
+                if (text == null || text.isEmpty()) {
+                    return;
+                }
+                try {
+                    onPartialResponse.accept(text);
+                } catch (Exception e) {
+                    // a broken SSE connection must not abort the generation
+                    log.warn("[LlmClient] Failed to dispatch partial response: {}", e.getMessage());
+                }
+            }
+
+            @Override
+            public void onPartialThinking(PartialThinking partialThinking, PartialThinkingContext context) {
+                track(context.streamingHandle());
+            }
+
+            @Override
+            public void onPartialToolCall(PartialToolCall partialToolCall, PartialToolCallContext context) {
+                track(context.streamingHandle());
+            }
+
+            /**
+             * @return false when the call was given up, the stream is cancelled then
+             */
+            private boolean track(StreamingHandle streamingHandle) {
+                handle.compareAndSet(null, streamingHandle);
+                if (cancelled.get()) {
+                    streamingHandle.cancel();
+                    return false;
+                }
+                return true;
+            }
+
+            @Override
+            public void onCompleteResponse(ChatResponse completeResponse) {
+                future.complete(completeResponse);
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                future.completeExceptionally(error);
+            }
+        }));
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            cancelled.set(true);
+            control.cancel();
+            StreamingHandle streamingHandle = handle.get();
+            if (streamingHandle != null) {
+                streamingHandle.cancel();
+            }
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for streaming response", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException("Streaming chat failed", cause);
+        } finally {
+            if (boundControl == null) {
+                control.finish();
+            }
+        }
+    }
+
+    private LlmAdmissionController.Permit admit(ChatRequest request, LlmPriority priority) {
+        if (admissionController == null) {
+            return LlmAdmissionController.Permit.NOOP;
+        }
+        return admissionController.acquire(endpoint, userId, priority, modelName, request, promptMemory);
+    }
+
+    /**
+     * Run the call and report 429 to the admission layer, so the endpoint is paused for every queued agent.
+     */
+    private ChatResponse invoke(Supplier<ChatResponse> call) {
+        try {
+            return call.get();
+        } catch (RateLimitException e) {
+            if (admissionController != null) {
+                admissionController.onRateLimited(endpoint);
+            }
+            throw e;
+        }
+    }
+
+    private void recordUsage(ChatResponse response, long start, LlmAdmissionController.Permit permit) {
+        TokenUsage usage = response == null ? null : response.tokenUsage();
+        if (usage != null && usage.totalTokenCount() != null) {
+            permit.reportUsage(usage.totalTokenCount());
+        }
+        if (usageRecorder == null) {
+            return;
+        }
+        try {
+            usageRecorder.record(modelName, response, System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            log.warn("[LlmClient] Failed to record usage: {}", e.getMessage());
+        }
+    }
+}
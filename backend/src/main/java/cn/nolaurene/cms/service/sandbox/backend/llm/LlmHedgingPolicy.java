@@ -0,0 +1,373 @@
+package cn.nolaurene.cms.service.sandbox.backend.llm;
+
+import cn.nolaurene.cms.service.sandbox.backend.AgentThreads;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * @author nolaurence
+ * @date 2026/10/17 下午8:20
+ * @description: per-phase deadlines and hedging of LLM calls.
+ * When the primary endpoint has not produced its first token (streaming) or its response (blocking) within
+ * a percentile of the recently observed latency, the same request is sent to the secondary endpoint and the first
+ * answer wins. The losing call and every call given up at the deadline are interrupted, the caller is told when they
+ * have actually ended so it can hold their resources until then.
+ */
+@Slf4j
+@Component
+public class LlmHedgingPolicy {
+
+    private static final int LATENCY_WINDOW_SIZE = 512;
+
+    @Value("${sandbox.backend.llm.hedge.enabled:false}")
+    private boolean hedgeEnabled;
+
+    @Getter
+    @Value("${sandbox.backend.llm.hedge.secondary-endpoint:}")
+    private String secondaryEndpoint;
+
+    @Getter
+    @Value("${sandbox.backend.llm.hedge.secondary-api-key:}")
+    private String secondaryApiKey;
+
+    /**
+     * 为空时使用与主调用相同的模型名
+     */
+    @Getter
+    @Value("${sandbox.backend.llm.hedge.secondary-model-name:}")
+    private String secondaryModelName;
+
+    /**
+     * 触发对冲的延迟分位数
+     */
+    @Value("${sandbox.backend.llm.hedge.percentile:95}")
+    private double percentile;
+
+    /**
+     * 样本数不足时使用 initial-delay-ms
+     */
+    @Value("${sandbox.backend.llm.hedge.min-samples:20}")
+    private int minSamples;
+
+    @Value("${sandbox.backend.llm.hedge.initial-delay-ms:15000}")
+    private long initialDelayMs;
+
+    @Value("${sandbox.backend.llm.hedge.min-delay-ms:2000}")
+    private long minDelayMs;
+
+    @Value("${sandbox.backend.llm.hedge.max-delay-ms:60000}")
+    private long maxDelayMs;
+
+    /**
+     * 各阶段单次调用的截止时间，0 表示不限制
+     */
+    @Value("${sandbox.backend.llm.deadline.planner-ms:180000}")
+    private long plannerDeadlineMs;
+
+    @Value("${sandbox.backend.llm.deadline.plan-updater-ms:60000}")
+    private long planUpdaterDeadlineMs;
+
+    @Value("${sandbox.backend.llm.deadline.executor-ms:180000}")
+    private long executorDeadlineMs;
+
+    @Value("${sandbox.backend.llm.deadline.checker-ms:60000}")
+    private long checkerDeadlineMs;
+
+    @Value("${sandbox.backend.llm.deadline.concluder-ms:180000}")
+    private long concluderDeadlineMs;
+
+    @Resource
+    private AgentThreads agentThreads;
+
+    /**
+     * endpoint + model + phase + mode -> latency until the first token (streaming) or the response (blocking)
+     */
+    private final ConcurrentHashMap<String, LatencyWindow> firstSignalLatency = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<LlmPhase, PhaseStats> phaseStats = new ConcurrentHashMap<>();
+
+    public boolean isHedgeEnabled() {
+        return hedgeEnabled && StringUtils.isNotBlank(secondaryEndpoint);
+    }
+
+    public long deadlineMs(LlmPhase phase) {
+        if (phase == null) {
+            return 0;
+        }
+        switch (phase) {
+            case PLANNER:
+                return plannerDeadlineMs;
+            case PLAN_UPDATER:
+                return planUpdaterDeadlineMs;
+            case EXECUTOR:
+                return executorDeadlineMs;
+            case CHECKER:
+                return checkerDeadlineMs;
+            case CONCLUDER:
+                return concluderDeadlineMs;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * {@link System#nanoTime()} by which a call of the phase starting now must end, {@link Long#MAX_VALUE} without a deadline.
+     * A call and its fallbacks share it.
+     */
+    public long deadlineAt(LlmPhase phase) {
+        long deadlineMs = deadlineMs(phase);
+        return deadlineMs > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMs) : Long.MAX_VALUE;
+    }
+
+    /**
+     * Run a call until the given deadline, hedged to the secondary when it is given.
+     *
+     * @param deadlineNanos from {@link #deadlineAt(LlmPhase)}
+     * @param primary       the call on the primary endpoint, receives the delta consumer (null for blocking calls)
+     * @param secondary     the same call on the secondary endpoint, null disables hedging
+     * @param sink          delta consumer of the caller, only the winning attempt writes to it
+     * @param onAbandoned   receives, when the call is given up while attempts are still running, a future completing
+     *                      once all of them ended
+     */
+    public <T> T execute(LlmPhase phase, String endpoint, String modelName, long deadlineNanos,
+                         Function<Consumer<String>, T> primary, Function<Consumer<String>, T> secondary,
+                         Consumer<String> sink, Consumer<CompletableFuture<Void>> onAbandoned) {
+        boolean hedge = secondary != null && isHedgeEnabled();
+        if (deadlineNanos == Long.MAX_VALUE && !hedge) {
+            return primary.apply(sink);
+        }
+
+        PhaseStats stats = phase == null ? null : phaseStats.computeIfAbsent(phase, p -> new PhaseStats());
+        if (stats != null) {
+            stats.calls.increment();
+        }
+        long start = System.nanoTime();
+        if (deadlineNanos - start <= 0) {
+            if (stats != null) {
+                stats.deadlineExceeded.increment();
+            }
+            throw new dev.langchain4j.exception.TimeoutException("LLM call has no time left before the deadline in phase " + phase);
+        }
+
+        AtomicReference<Attempt<T>> owner = new AtomicReference<>();
+        List<Attempt<T>> attempts = new CopyOnWriteArrayList<>();
+        CompletableFuture<T> outcome = new CompletableFuture<>();
+
+        String latencyKey = endpoint + "|" + modelName + "|" + (phase == null ? "-" : phase.getCode())
+                + (sink == null ? "|response" : "|first-token");
+        Attempt<T> primaryAttempt = start(primary, sink, owner, attempts, outcome);
+        primaryAttempt.firstSignal.thenRun(() -> {
+            if (!primaryAttempt.result.isCompletedExceptionally()) {
+                firstSignalLatency.computeIfAbsent(latencyKey, k -> new LatencyWindow(LATENCY_WINDOW_SIZE))
+                        .add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+        });
+
+        Attempt<T> secondaryAttempt = null;
+        try {
+            if (hedge) {
+                long hedgeDelayNanos = TimeUnit.MILLISECONDS.toNanos(hedgeDelayMs(latencyKey));
+                if (start + hedgeDelayNanos < deadlineNanos) {
+                    try {
+                        primaryAttempt.firstSignal.get(hedgeDelayNanos, TimeUnit.NANOSECONDS);
+                    } catch (TimeoutException e) {
+                        log.info("[LlmHedging] primary {} silent for {} ms in phase {}, hedge to {}",
+                                endpoint, TimeUnit.NANOSECONDS.toMillis(hedgeDelayNanos), phase, secondaryEndpoint);
+                        if (stats != null) {
+                            stats.hedged.increment();
+                        }
+                        secondaryAttempt = start(secondary, sink, owner, attempts, outcome);
+                    }
+                }
+            }
+
+            T result = deadlineNanos == Long.MAX_VALUE
+                    ? outcome.get()
+                    : outcome.get(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+            if (stats != null) {
+                stats.latency.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                if (secondaryAttempt != null && owner.get() == secondaryAttempt) {
+                    stats.secondaryWins.increment();
+                }
+            }
+            return result;
+        } catch (TimeoutException e) {
+            long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (stats != null) {
+                stats.deadlineExceeded.increment();
+                stats.latency.add(elapsedMs);
+            }
+            // a late winner must not write into a response that was already given up
+            owner.compareAndSet(null, new Attempt<>());
+            throw new dev.langchain4j.exception.TimeoutException(
+                    "LLM call exceeded its deadline after " + elapsedMs + " ms in phase " + phase);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            owner.compareAndSet(null, new Attempt<>());
+            throw new IllegalStateException("Interrupted while waiting for LLM response", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException("LLM call failed", cause);
+        } finally {
+            // the losing attempt of a hedge and every attempt given up at the deadline are of no use any more
+            abandon(attempts, owner.get(), onAbandoned);
+        }
+    }
+
+    /**
+     * Interrupt the attempts other than the winner that are still running, and tell the caller when they have ended.
+     */
+    private static <T> void abandon(List<Attempt<T>> attempts, Attempt<T> winner, Consumer<CompletableFuture<Void>> onAbandoned) {
+        List<CompletableFuture<Void>> running = new ArrayList<>();
+        for (Attempt<T> attempt : attempts) {
+            if (attempt != winner && !attempt.ended.isDone()) {
+                attempt.cancel();
+                running.add(attempt.ended);
+            }
+        }
+        if (!running.isEmpty() && onAbandoned != null) {
+            onAbandoned.accept(CompletableFuture.allOf(running.toArray(new CompletableFuture[0])));
+        }
+    }
+
+    public List<Map<String, Object>> stats() {
+        List<Map<String, Object>> result = new ArrayList<>();
+        phaseStats.forEach((phase, stats) -> {
+            long calls = stats.calls.sum();
+            long hedged = stats.hedged.sum();
+            Map<String, Object> item = new HashMap<>();
+            item.put("phase", phase.getCode());
+            item.put("calls", calls);
+            item.put("hedged", hedged);
+            item.put("hedgeRate", calls == 0 ? 0D : (double) hedged / calls);
+            item.put("secondaryWins", stats.secondaryWins.sum());
+            item.put("deadlineExceeded", stats.deadlineExceeded.sum());
+            item.put("deadlineMs", deadlineMs(phase));
+            item.put("p50Ms", stats.latency.percentile(50));
+            item.put("p95Ms", stats.latency.percentile(95));
+            item.put("p99Ms", stats.latency.percentile(99));
+            result.add(item);
+        });
+        firstSignalLatency.forEach((key, window) -> {
+            Map<String, Object> item = new HashMap<>();
+            item.put("latencyKey", key);
+            item.put("samples", window.size());
+            item.put("hedgeDelayMs", hedgeDelayMs(key));
+            result.add(item);
+        });
+        return result;
+    }
+
+    private long hedgeDelayMs(String latencyKey) {
+        LatencyWindow window = firstSignalLatency.get(latencyKey);
+        if (window == null || window.size() < minSamples) {
+            return initialDelayMs;
+        }
+        return Math.max(minDelayMs, Math.min(maxDelayMs, window.percentile(percentile)));
+    }
+
+    private <T> Attempt<T> start(Function<Consumer<String>, T> call, Consumer<String> sink,
+                                 AtomicReference<Attempt<T>> owner, List<Attempt<T>> attempts, CompletableFuture<T> outcome) {
+        Attempt<T> attempt = new Attempt<>();
+        attempts.add(attempt);
+        // the first attempt producing a token owns the sink, deltas of the other one are dropped
+        Consumer<String> gated = sink == null ? null : delta -> {
+            attempt.firstSignal.complete(null);
+            if (owner.compareAndSet(null, attempt) || owner.get() == attempt) {
+                sink.accept(delta);
+            }
+        };
+        attempt.result.whenComplete((response, error) -> {
+            if (error == null) {
+                owner.compareAndSet(null, attempt);
+                if (owner.get() == attempt) {
+                    outcome.complete(response);
+                }
+            } else if (owner.get() == attempt
+                    || (owner.get() == null && attempts.stream().allMatch(a -> a.result.isCompletedExceptionally()))) {
+                outcome.completeExceptionally(error);
+            }
+        });
+        agentThreads.llmCallExecutor().execute(() -> {
+            attempt.runner = Thread.currentThread();
+            try {
+                if (attempt.cancelled) {
+                    throw new IllegalStateException("LLM call cancelled before it started");
+                }
+                AtomicReference<T> response = new AtomicReference<>();
+                StreamControl.runBound(attempt.control, () -> response.set(call.apply(gated)));
+                attempt.result.complete(response.get());
+            } catch (Throwable t) {
+                attempt.result.completeExceptionally(t);
+            } finally {
+                attempt.runner = null;
+                attempt.firstSignal.complete(null);
+                // a stream outlives the thread until its request has really ended and released its slot
+                attempt.control.finish();
+                attempt.control.closed().whenComplete((ignored, error) -> attempt.ended.complete(null));
+            }
+        });
+        return attempt;
+    }
+
+    private static class Attempt<T> {
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        /**
+         * completes on the first token, the response or the failure, whichever happens first
+         */
+        private final CompletableFuture<Void> firstSignal = new CompletableFuture<>();
+        /**
+         * completes once the call has returned and its HTTP request has ended, after the result
+         */
+        private final CompletableFuture<Void> ended = new CompletableFuture<>();
+        private final StreamControl control = new StreamControl();
+        private volatile Thread runner;
+        private volatile boolean cancelled;
+
+        /**
+         * interrupt the call, a blocking request is aborted by the HTTP client, a stream is aborted by its control
+         * whether or not its first event arrived
+         */
+        private void cancel() {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            control.cancel();
+            Thread thread = runner;
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    private static class PhaseStats {
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder hedged = new LongAdder();
+        private final LongAdder secondaryWins = new LongAdder();
+        private final LongAdder deadlineExceeded = new LongAdder();
+        private final LatencyWindow latency = new LatencyWindow(LATENCY_WINDOW_SIZE);
+    }
+}
@@ -0,0 +1,47 @@
+package cn.nolaurene.cms.service.sandbox.backend.llm;
+
+import lombok.Getter;
+
+/**
+ * @author nolaurence
+ * @date 2026/10/17 下午7:40
+ * @description: agent phase of an LLM call, each phase can be routed to its own model
+ */
+public enum LlmPhase {
+    /**
+     * plan creation
+     */
+    PLANNER("planner"),
+    /**
+     * plan update after each step, smaller than the plan creation and run once per step
+     */
+    PLAN_UPDATER("plan_updater"),
+    /**
+     * tool calling loop of a step
+     */
+    EXECUTOR("executor"),
+    /**
+     * step completion check and other cheap auxiliary calls such as context summarization
+     */
+    CHECKER("checker"),
+    /**
+     * final answer to the user
+     */
+    CONCLUDER("concluder");
+
+    @Getter
+    private final String code;
+
+    LlmPhase(String code) {
+        this.code = code;
+    }
+
+    public static LlmPhase fromCode(String code) {
+        for (LlmPhase phase : values()) {
+            if (phase.code.equalsIgnoreCase(code)) {
+                return phase;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,17 @@
+package cn.nolaurene.cms.service.sandbox.backend.llm;
+
+/**
+ * @author nolaurence
+ * @date 2026/10/17 下午7:00
+ * @description: admission priority of an LLM call, interactive calls are always dispatched before background ones
+ */
+public enum LlmPriority {
+    /**
+     * a user is watching the session through a connected SSE stream
+     */
+    INTERACTIVE,
+    /**
+     * frontend disconnected, or housekeeping calls such as context summarization
+     */
+    BACKGROUND
+}
@@ -0,0 +1,76 @@
+package cn.nolaurene.cms.service.sandbox.backend.llm;
+
+import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.openai.OpenAiTokenUsage;
+import dev.langchain4j.model.output.TokenUsage;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author nolaurence
+ * @date 2026/10/17 下午5:40
+ * @description: record prompt / cached / completion token usage of every LLM call, aggregated per model
+ */
+@Slf4j
+@Component
+public class LlmUsageRecorder {
+
+    private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<>();
+
+    public void record(String modelName, ChatResponse response, long latencyMs) {
+        if (response == null) {
+            return;
+        }
+        TokenUsage usage = response.tokenUsage();
+        int input = usage == null || usage.inputTokenCount() == null ? 0 : usage.inputTokenCount();
+        int output = usage == null || usage.outputTokenCount() == null ? 0 : usage.outputTokenCount();
+        int cached = 0;
+        if (usage instanceof OpenAiTokenUsage) {
+            OpenAiTokenUsage.InputTokensDetails details = ((OpenAiTokenUsage) usage).inputTokensDetails();
+            if (details != null && details.cachedTokens() != null) {
+                cached = details.cachedTokens();
+            }
+        }
+
+        String key = modelName == null ? "unknown" : modelName;
+        Counter counter = counters.computeIfAbsent(key, k -> new Counter());
+        counter.calls.increment();
+        counter.inputTokens.add(input);
+        counter.cachedInputTokens.add(cached);
+        counter.outputTokens.add(output);
+        counter.latencyMs.add(latencyMs);
+
+        log.info("[LlmUsage] model: {}, inputTokens: {}, cachedTokens: {}, outputTokens: {}, latencyMs: {}",
+                key, input, cached, output, latencyMs);
+    }
+
+    public List<LlmUsageStats> snapshot() {
+        List<LlmUsageStats> result = new ArrayList<>();
+        counters.forEach((modelName, counter) -> {
+            LlmUsageStats stats = new LlmUsageStats();
+            stats.setModelName(modelName);
+            stats.setCalls(counter.calls.sum());
+            stats.setInputTokens(counter.inputTokens.sum());
+            stats.setCachedInputTokens(counter.cachedInputTokens.sum());
+            stats.setOutputTokens(counter.outputTokens.sum());
+            stats.setTotalLatencyMs(counter.latencyMs.sum());
+            stats.setCacheHitRatio(stats.getInputTokens() == 0 ? 0D
+                    : (double) stats.getCachedInputTokens() / stats.getInputTokens());
+            result.add(stats);
+        });
+        return result;
+    }
+
+    private static class Counter {
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder inputTokens = new LongAdder();
+        private final LongAdder cachedInputTokens = new LongAdder();
+        private final LongAdder outputTokens = new LongAdder();
+        private final LongAdder latencyMs = new LongAdder();
+    }
+}
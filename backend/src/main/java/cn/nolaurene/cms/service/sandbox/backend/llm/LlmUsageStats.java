@@ -0,0 +1,32 @@
+package cn.nolaurene.cms.service.sandbox.backend.llm;
+
+import lombok.Data;
+
+/**
+ * @author nolaurence
+ * @date 2026/10/17 下午5:40
+ * @description: accumulated token usage of one model
+ */
+@Data
+public class LlmUsageStats {
+
+    private String modelName;
+
+    private long calls;
+
+    private long inputTokens;
+
+    /**
+     * prompt tokens served from the prefix (KV) cache of the inference server
+     */
+    private long cachedInputTokens;
+
+    private long outputTokens;
+
+    private long totalLatencyMs;
+
+    /**
+     * cachedInputTokens / inputTokens
+     */
+    private double cacheHitRatio;
+}
@@ -0,0 +1,81 @@
+package cn.nolaurene.cms.service.sandbox.backend.llm;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import java.net.Authenticator;
+import java.net.CookieHandler;
+import java.net.ProxySelector;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.concurrent.Executor;
+
+/**
+ * @author nolaurence
+ * @date 2026/10/17 下午6:20
+ * @description: HttpClient.Builder handing out one shared, pre-configured HttpClient.
+ * langchain4j builds a new JDK HttpClient (and connection pool) per model, this builder makes all models share one.
+ * Configuration calls from langchain4j are ignored, the shared client is configured once by {@link ChatModelRegistry}.
+ */
+public class SharedHttpClientBuilder implements HttpClient.Builder {
+
+    private final HttpClient httpClient;
+
+    public SharedHttpClientBuilder(HttpClient httpClient) {
+        this.httpClient = httpClient;
+    }
+
+    @Override
+    public HttpClient.Builder cookieHandler(CookieHandler cookieHandler) {
+        return this;
+    }
+
+    @Override
+    public HttpClient.Builder connectTimeout(Duration duration) {
+        return this;
+    }
+
+    @Override
+    public HttpClient.Builder sslContext(SSLContext sslContext) {
+        return this;
+    }
+
+    @Override
+    public HttpClient.Builder sslParameters(SSLParameters sslParameters) {
+        return this;
+    }
+
+    @Override
+    public HttpClient.Builder executor(Executor executor) {
+        return this;
+    }
+
+    @Override
+    public HttpClient.Builder followRedirects(HttpClient.Redirect policy) {
+        return this;
+    }
+
+    @Override
+    public HttpClient.Builder version(HttpClient.Version version) {
+        return this;
+    }
+
+    @Override
+    public HttpClient.Builder priority(int priority) {
+        return this;
+    }
+
+    @Override
+    public HttpClient.Builder proxy(ProxySelector proxySelector) {
+        return this;
+    }
+
+    @Override
+    public HttpClient.Builder authenticator(Authenticator authenticator) {
+        return this;
+    }
+
+    @Override
+    public HttpClient build() {
+        return httpClient;
+    }
+}
@@ -0,0 +1,124 @@
+package cn.nolaurene.cms.service.sandbox.backend.llm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+/**
+ * @author nolaurence
+ * @date 2026/10/17 下午11:50
+ * @description: cancellation of the streaming HTTP request an LLM call sends. langchain4j hands out its streaming
+ * handle only with the first event, a call given up before that could not end its request, which then held its
+ * connection and endpoint slot until the read timeout. The control is bound to the calling thread while the request
+ * is sent, {@link CancellableHttpClient} and {@link BoundedHttpClient} attach the exchange, the response body and the
+ * slot to it, so a cancel aborts the request at any point and {@link #closed()} tells when it has really ended.
+ */
+public class StreamControl {
+
+    private static final ThreadLocal<StreamControl> BOUND = new ThreadLocal<>();
+
+    private final CompletableFuture<Void> closed = new CompletableFuture<>();
+
+    private volatile boolean cancelled;
+
+    /**
+     * a request took the control, it completes {@link #closed} once its endpoint slot is released
+     */
+    private volatile boolean attached;
+
+    private volatile Future<?> exchange;
+
+    private volatile Closeable body;
+
+    /**
+     * Run the call with the control bound to the current thread, the streaming request it sends is controlled.
+     */
+    public static void runBound(StreamControl control, Runnable call) {
+        StreamControl previous = BOUND.get();
+        BOUND.set(control);
+        try {
+            call.run();
+        } finally {
+            if (previous == null) {
+                BOUND.remove();
+            } else {
+                BOUND.set(previous);
+            }
+        }
+    }
+
+    /**
+     * control bound to the current thread, null when the call is not controlled
+     */
+    public static StreamControl current() {
+        return BOUND.get();
+    }
+
+    /**
+     * Abort the request: a pending exchange is cancelled, an open response body is closed.
+     * The request ends through its error or close callback, which releases its slot and completes {@link #closed()}.
+     */
+    public void cancel() {
+        cancelled = true;
+        Future<?> pending = exchange;
+        if (pending != null) {
+            pending.cancel(true);
+        }
+        closeQuietly(body);
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * completes once the controlled request has ended and released its slot,
+     * or once the call returned without sending a controlled request
+     */
+    public CompletableFuture<Void> closed() {
+        return closed;
+    }
+
+    /**
+     * The call has returned. Without an attached request there is nothing left to wait for.
+     */
+    public void finish() {
+        if (!attached) {
+            closed.complete(null);
+        }
+    }
+
+    void attach() {
+        attached = true;
+    }
+
+    void attachExchange(Future<?> pending) {
+        exchange = pending;
+        if (cancelled) {
+            pending.cancel(true);
+        }
+    }
+
+    void attachBody(Closeable responseBody) {
+        body = responseBody;
+        if (cancelled) {
+            closeQuietly(responseBody);
+        }
+    }
+
+    void markClosed() {
+        closed.complete(null);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+            // the stream is given up either way
+        }
+    }
+}
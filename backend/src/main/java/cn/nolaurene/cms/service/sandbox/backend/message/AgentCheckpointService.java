@@ -0,0 +1,308 @@
+package cn.nolaurene.cms.service.sandbox.backend.message;
+
+import cn.nolaurene.cms.common.sandbox.backend.llm.ChatMessage;
+import cn.nolaurene.cms.common.sandbox.backend.model.SSEEventType;
+import cn.nolaurene.cms.dal.enhance.mapper.AgentCheckpointEnhanceMapper;
+import cn.nolaurene.cms.dal.entity.AgentCheckpointDO;
+import cn.nolaurene.cms.dal.mapper.AgentCheckpointMapper;
+import cn.nolaurene.cms.service.AgentSessionServerService;
+import cn.nolaurene.cms.service.sandbox.backend.agent.AgentCheckpoint;
+import cn.nolaurene.cms.service.sandbox.backend.agent.AgentStatus;
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONArray;
+import com.alibaba.fastjson2.JSONObject;
+import io.mybatis.mapper.example.Example;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author nolaurence
+ * @date 2026/10/17 下午8:40
+ * @description: durable checkpoints of agent runs, one row per agent overwritten at every step boundary
+ */
+@Slf4j
+@Service
+public class AgentCheckpointService {
+
+    /**
+     * 是否在步骤边界写入检查点
+     */
+    @Value("${sandbox.backend.checkpoint.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 其他节点写入的运行中检查点超过该时间未更新，视为运行已中断，可以在本节点恢复。
+     * 运行中的节点在步骤循环内续约，续约间隔为该时间的十分之一
+     */
+    @Value("${sandbox.backend.checkpoint.stale-after-ms:600000}")
+    private long staleAfterMs;
+
+    @Resource
+    private AgentCheckpointMapper agentCheckpointMapper;
+
+    @Resource
+    private AgentCheckpointEnhanceMapper agentCheckpointEnhanceMapper;
+
+    @Resource
+    private AgentSessionServerService agentSessionServerService;
+
+    /**
+     * agentId -> last lease renewal of the runs on this node, only used to space the renewals out
+     */
+    private final ConcurrentHashMap<String, Long> leaseRenewedAt = new ConcurrentHashMap<>();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Write the checkpoint of a run starting on this node, failures are logged and never break the run.
+     */
+    public void save(AgentCheckpoint checkpoint) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            AgentCheckpointDO dataObject = toDataObject(checkpoint);
+            AgentCheckpointDO existing = selectByAgentId(checkpoint.getAgentId());
+            if (existing != null) {
+                dataObject.setId(existing.getId());
+                agentCheckpointMapper.updateByPrimaryKeySelective(dataObject);
+                agentCheckpointEnhanceMapper.renewLease(checkpoint.getAgentId(), dataObject.getServerIp());
+            } else {
+                dataObject.setGmtCreate(new Date());
+                agentCheckpointMapper.insertSelective(dataObject);
+            }
+            leaseRenewedAt.put(checkpoint.getAgentId(), System.currentTimeMillis());
+            log.debug("保存Agent检查点: agentId={}, status={}, round={}", checkpoint.getAgentId(), checkpoint.getAgentStatus(), checkpoint.getRound());
+        } catch (Exception e) {
+            log.warn("保存Agent检查点失败: agentId={}", checkpoint.getAgentId(), e);
+        }
+    }
+
+    /**
+     * Write the checkpoint of a run going on, only while this node still owns the run.
+     * @return false when another node took the run over, the run must stop
+     */
+    public boolean saveOwned(AgentCheckpoint checkpoint) {
+        if (!enabled) {
+            return true;
+        }
+        try {
+            if (agentCheckpointMapper.updateByExampleSelective(toDataObject(checkpoint), ownedExample(checkpoint.getAgentId())) == 0) {
+                if (isTakenOver(checkpoint.getAgentId())) {
+                    return false;
+                }
+                // the row is missing, e.g. the first save failed
+                save(checkpoint);
+                return true;
+            }
+            // an unchanged row keeps its gmt_modified, stamp it on the database clock
+            agentCheckpointEnhanceMapper.renewLease(checkpoint.getAgentId(), agentSessionServerService.getCurrentServerIp());
+            leaseRenewedAt.put(checkpoint.getAgentId(), System.currentTimeMillis());
+            log.debug("保存Agent检查点: agentId={}, status={}, round={}", checkpoint.getAgentId(), checkpoint.getAgentStatus(), checkpoint.getRound());
+        } catch (Exception e) {
+            log.warn("保存Agent检查点失败: agentId={}", checkpoint.getAgentId(), e);
+        }
+        return true;
+    }
+
+    /**
+     * Keep the lease of a run on this node, called inside the step loop since a single step may outlast stale-after-ms.
+     * @return false when another node took the run over, the run must stop
+     */
+    public boolean renewLease(String agentId) {
+        if (!enabled || StringUtils.isBlank(agentId)) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        Long renewedAt = leaseRenewedAt.get(agentId);
+        if (renewedAt != null && now - renewedAt < staleAfterMs / 10) {
+            return true;
+        }
+        try {
+            if (agentCheckpointEnhanceMapper.renewLease(agentId, agentSessionServerService.getCurrentServerIp()) == 0 && isTakenOver(agentId)) {
+                return false;
+            }
+            leaseRenewedAt.put(agentId, now);
+        } catch (Exception e) {
+            // an unreachable table never breaks the run, the next round tries again
+            log.warn("续约Agent检查点失败: agentId={}: {}", agentId, e.getMessage());
+        }
+        return true;
+    }
+
+    /**
+     * Take an interrupted run over from the node that wrote its checkpoint. The update only matches the row as it was
+     * read, so of the nodes resuming the same run at once exactly one wins.
+     * @return whether this node now owns the run
+     */
+    public boolean claim(AgentCheckpoint checkpoint) {
+        if (!enabled) {
+            return true;
+        }
+        try {
+            if (agentCheckpointEnhanceMapper.claim(checkpoint.getAgentId(), checkpoint.getServerIp(),
+                    checkpoint.getGmtModified(), agentSessionServerService.getCurrentServerIp()) != 1) {
+                return false;
+            }
+            leaseRenewedAt.put(checkpoint.getAgentId(), System.currentTimeMillis());
+            return true;
+        } catch (Exception e) {
+            log.warn("接管Agent运行失败: agentId={}", checkpoint.getAgentId(), e);
+            return false;
+        }
+    }
+
+    private AgentCheckpointDO toDataObject(AgentCheckpoint checkpoint) {
+        AgentCheckpointDO dataObject = new AgentCheckpointDO();
+        dataObject.setAgentId(checkpoint.getAgentId());
+        dataObject.setUserId(checkpoint.getUserId());
+        dataObject.setInput(checkpoint.getInput());
+        dataObject.setAgentStatus(checkpoint.getAgentStatus().name());
+        dataObject.setRound(checkpoint.getRound());
+        dataObject.setPlan(checkpoint.getPlan() == null ? null : JSON.toJSONString(checkpoint.getPlan()));
+        dataObject.setMemory(encodeMemory(checkpoint.getMemorySummary(), checkpoint.getMemoryMessages()));
+        dataObject.setRunStatus(checkpoint.getRunStatus());
+        dataObject.setServerIp(agentSessionServerService.getCurrentServerIp());
+        return dataObject;
+    }
+
+    /**
+     * The run finished, its checkpoint stays for inspection but is no longer resumable.
+     */
+    public void markCompleted(String agentId) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            AgentCheckpointDO existing = selectByAgentId(agentId);
+            if (existing == null) {
+                return;
+            }
+            AgentCheckpointDO dataObject = new AgentCheckpointDO();
+            dataObject.setId(existing.getId());
+            dataObject.setRunStatus(AgentCheckpoint.COMPLETED);
+            agentCheckpointMapper.updateByPrimaryKeySelective(dataObject);
+            leaseRenewedAt.remove(agentId);
+        } catch (Exception e) {
+            log.warn("更新Agent检查点状态失败: agentId={}", agentId, e);
+        }
+    }
+
+    public AgentCheckpoint getByAgentId(String agentId) {
+        AgentCheckpointDO dataObject = selectByAgentId(agentId);
+        if (dataObject == null) {
+            return null;
+        }
+        AgentCheckpoint checkpoint = new AgentCheckpoint();
+        checkpoint.setAgentId(dataObject.getAgentId());
+        checkpoint.setUserId(dataObject.getUserId());
+        checkpoint.setInput(dataObject.getInput());
+        checkpoint.setAgentStatus(AgentStatus.valueOf(dataObject.getAgentStatus()));
+        checkpoint.setRound(dataObject.getRound() == null ? 1 : dataObject.getRound());
+        checkpoint.setPlan(StringUtils.isBlank(dataObject.getPlan()) ? null : JSON.parseObject(dataObject.getPlan(), Plan.class));
+        decodeMemory(dataObject.getMemory(), checkpoint);
+        checkpoint.setRunStatus(dataObject.getRunStatus());
+        checkpoint.setServerIp(dataObject.getServerIp());
+        checkpoint.setGmtModified(dataObject.getGmtModified());
+        return checkpoint;
+    }
+
+    /**
+     * A checkpoint written by another node that is still being updated belongs to a live run.
+     * The lease age is measured on the database clock that wrote it, not on this node's clock.
+     */
+    public boolean isOwnedByLiveRun(AgentCheckpoint checkpoint) {
+        if (!AgentCheckpoint.RUNNING.equals(checkpoint.getRunStatus())
+                || Objects.equals(checkpoint.getServerIp(), agentSessionServerService.getCurrentServerIp())) {
+            return false;
+        }
+        try {
+            return agentCheckpointEnhanceMapper.countLive(checkpoint.getAgentId(), checkpoint.getServerIp(), staleAfterMs) > 0;
+        } catch (Exception e) {
+            // without the table the run cannot be claimed either, leave it to its node
+            log.warn("查询Agent运行状态失败: agentId={}", checkpoint.getAgentId(), e);
+            return true;
+        }
+    }
+
+    /**
+     * the running checkpoint of the agent was written by another node since this node last owned it
+     */
+    private boolean isTakenOver(String agentId) {
+        AgentCheckpointDO existing = selectByAgentId(agentId);
+        boolean takenOver = existing != null
+                && AgentCheckpoint.RUNNING.equals(existing.getRunStatus())
+                && !Objects.equals(existing.getServerIp(), agentSessionServerService.getCurrentServerIp());
+        if (takenOver) {
+            leaseRenewedAt.remove(agentId);
+            log.warn("Agent运行已被节点 {} 接管: agentId={}", existing.getServerIp(), agentId);
+        }
+        return takenOver;
+    }
+
+    private Example<AgentCheckpointDO> ownedExample(String agentId) {
+        Example<AgentCheckpointDO> example = new Example<>();
+        example.createCriteria()
+                .andEqualTo(AgentCheckpointDO::getAgentId, agentId)
+                .andEqualTo(AgentCheckpointDO::getServerIp, agentSessionServerService.getCurrentServerIp());
+        return example;
+    }
+
+    private AgentCheckpointDO selectByAgentId(String agentId) {
+        if (StringUtils.isBlank(agentId)) {
+            return null;
+        }
+        Example<AgentCheckpointDO> example = new Example<>();
+        example.createCriteria().andEqualTo(AgentCheckpointDO::getAgentId, agentId);
+        return agentCheckpointMapper.selectOneByExample(example).orElse(null);
+    }
+
+    private static String encodeMemory(String summary, List<ChatMessage> messages) {
+        JSONArray messageArray = new JSONArray();
+        if (messages != null) {
+            for (ChatMessage message : messages) {
+                JSONObject item = new JSONObject();
+                item.put("role", message.getRole().name());
+                item.put("eventType", message.getEventType().getType());
+                item.put("content", message.getContent());
+                messageArray.add(item);
+            }
+        }
+        JSONObject memory = new JSONObject();
+        memory.put("summary", summary);
+        memory.put("messages", messageArray);
+        return memory.toJSONString();
+    }
+
+    private static void decodeMemory(String memoryJson, AgentCheckpoint checkpoint) {
+        List<ChatMessage> messages = new ArrayList<>();
+        checkpoint.setMemoryMessages(messages);
+        if (StringUtils.isBlank(memoryJson)) {
+            return;
+        }
+        JSONObject memory = JSON.parseObject(memoryJson);
+        checkpoint.setMemorySummary(memory.getString("summary"));
+        JSONArray messageArray = memory.getJSONArray("messages");
+        if (messageArray == null) {
+            return;
+        }
+        for (int idx = 0; idx < messageArray.size(); idx++) {
+            JSONObject item = messageArray.getJSONObject(idx);
+            messages.add(new ChatMessage(
+                    ChatMessage.Role.valueOf(item.getString("role")),
+                    SSEEventType.fromType(item.getString("eventType")),
+                    item.getString("content")));
+        }
+    }
+}
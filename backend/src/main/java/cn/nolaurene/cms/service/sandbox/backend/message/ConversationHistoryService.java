@@ -118,7 +118,10 @@ public class ConversationHistoryService {
         conversationHistoryTkMapper.updateByPrimaryKeySelective(newDataObject);
     }
 
-    public void addStep(String userId, String sessionId, String stepDescription) {
+    /**
+     * @param stepId 计划中的步骤 id，记录在 metadata 中，步骤状态按它更新
+     */
+    public void addStep(String userId, String sessionId, Integer stepId, String stepDescription) {
         ConversationHistoryDO conversation = ConversationHistoryDO.builder()
                 .userId(StringUtils.isNoneBlank(userId) ? userId : "anonymous")
                 .sessionId(sessionId)
@@ -130,6 +133,9 @@ public class ConversationHistoryService {
 
         JSONObject jsonObject = new JSONObject();
         jsonObject.put("stepStatus", StepEventStatus.running.getCode());
+        if (stepId != null) {
+            jsonObject.put("stepId", stepId);
+        }
         conversation.setMetadata(jsonObject.toString());
         conversationHistoryTkMapper.insertSelective(conversation);
     }
@@ -139,16 +145,33 @@ public class ConversationHistoryService {
     }
 
     public void updateLastStepStatus(String sessionId, String status, List<Long> toolIds) {
+        updateStepStatus(sessionId, null, status, toolIds);
+    }
+
+    /**
+     * 更新指定步骤最近一次执行的状态，并发执行的步骤不一定是最后一个写入的步骤，描述相同的步骤也按 id 区分
+     * @param stepId 计划中的步骤 id，为空时更新最后一个步骤
+     */
+    public void updateStepStatus(String sessionId, Integer stepId, String status, List<Long> toolIds) {
         Example<ConversationHistoryDO> example = new Example<>();
-        example.createCriteria().andEqualTo(ConversationHistoryDO::getSessionId, sessionId)
+        Example.Criteria<ConversationHistoryDO> criteria = example.createCriteria()
+                .andEqualTo(ConversationHistoryDO::getSessionId, sessionId)
                 .andEqualTo(ConversationHistoryDO::getEventType, SSEEventType.STEP.getType())
                 .andEqualTo(ConversationHistoryDO::getIsDeleted, false);
-        example.orderByDesc(ConversationHistoryDO::getGmtModified);
+        if (stepId != null) {
+            // narrows the rows, the id is compared exactly below
+            criteria.andLike(ConversationHistoryDO::getMetadata, "%\"stepId\":" + stepId + "%");
+        }
+        example.orderByDesc(ConversationHistoryDO::getId);
         List<ConversationHistoryDO> stepMessageList = conversationHistoryTkMapper.selectByExample(example);
-        if (CollectionUtils.isEmpty(stepMessageList)) {
+        // step ids restart with every plan, the latest record of the id belongs to the running plan
+        ConversationHistoryDO stepMessage = stepMessageList.stream()
+                .filter(message -> stepId == null || isStep(message, stepId))
+                .findFirst()
+                .orElse(null);
+        if (stepMessage == null) {
             return;
         }
-        ConversationHistoryDO stepMessage = stepMessageList.get(0);
         ConversationHistoryDO newDataObject = new ConversationHistoryDO();
         newDataObject.setId(stepMessage.getId());
 
@@ -166,6 +189,14 @@ public class ConversationHistoryService {
         conversationHistoryTkMapper.updateByPrimaryKeySelective(newDataObject);
     }
 
+    private static boolean isStep(ConversationHistoryDO stepMessage, Integer stepId) {
+        if (StringUtils.isBlank(stepMessage.getMetadata())) {
+            return false;
+        }
+        JSONObject metaData = JSON.parseObject(stepMessage.getMetadata());
+        return metaData != null && stepId.equals(metaData.getInteger("stepId"));
+    }
+
     /**
      * 批量保存对话历史
      */
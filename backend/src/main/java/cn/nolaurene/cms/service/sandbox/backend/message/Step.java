@@ -13,4 +13,10 @@ public class Step {
     private String result;
     private String error;
     private List<Long> toolIds;
+
+    /**
+     * ids of the steps that must be completed before this one, empty means it only depends on the plan goal,
+     * null means the planner did not state them
+     */
+    private List<Integer> dependsOn;
 }
@@ -0,0 +1,216 @@
+package cn.nolaurene.cms.service.sandbox.backend.session;
+
+import cn.nolaurene.cms.dal.enhance.mapper.BackendNodeEnhanceMapper;
+import cn.nolaurene.cms.dal.entity.BackendNodeDO;
+import cn.nolaurene.cms.dal.mapper.BackendNodeMapper;
+import cn.nolaurene.cms.service.AgentSessionServerService;
+import io.mybatis.mapper.example.Example;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author nolaurence
+ * @date 2026/10/17 下午9:20
+ * @description: placement of agents on backend nodes. Nodes heartbeat into backend_node, the live ones form a
+ * consistent hash ring. An agent is served by its recorded owner while that node is live, otherwise by its node on the
+ * ring, new agents get an id that lands on the node creating them.
+ */
+@Slf4j
+@Component
+public class AgentPlacementService {
+
+    /**
+     * 新 agent 的 ID 落到本节点所需的最大尝试次数，超出后使用最后一个 ID
+     */
+    private static final int MAX_ID_ATTEMPTS = 64;
+
+    @Value("${sandbox.backend.placement.enabled:true}")
+    private boolean enabled;
+
+    @Value("${sandbox.backend.placement.heartbeat-ms:5000}")
+    private long heartbeatMs;
+
+    /**
+     * 心跳超过该时间未更新的节点视为已离开
+     */
+    @Value("${sandbox.backend.placement.node-ttl-ms:15000}")
+    private long nodeTtlMs;
+
+    /**
+     * 每个节点在哈希环上的虚拟节点数
+     */
+    @Value("${sandbox.backend.placement.virtual-nodes:160}")
+    private int virtualNodes;
+
+    @Value("${server.port}")
+    private Integer serverPort;
+
+    @Resource
+    private BackendNodeMapper backendNodeMapper;
+
+    @Resource
+    private BackendNodeEnhanceMapper backendNodeEnhanceMapper;
+
+    @Resource
+    private AgentSessionServerService agentSessionServerService;
+
+    private volatile String localNode;
+
+    private volatile ConsistentHashRing ring = ConsistentHashRing.EMPTY;
+
+    /**
+     * ips of the live nodes, requests routed by a peer must come from one of them
+     */
+    private volatile Set<String> liveIps = Set.of();
+
+    private volatile boolean membershipHealthy = true;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "agent-placement-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        localNode = nodeKey(agentSessionServerService.getCurrentServerIp(), serverPort);
+        if (!enabled) {
+            return;
+        }
+        heartbeat();
+        scheduler.scheduleWithFixedDelay(this::heartbeat, heartbeatMs, heartbeatMs, TimeUnit.MILLISECONDS);
+        log.info("[AgentPlacementService] started, local node: {}, ring: {}", localNode, ring.nodes());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+        if (!enabled || localNode == null) {
+            return;
+        }
+        // leave right away instead of waiting for the ttl, peers take over the agents placed here
+        try {
+            backendNodeMapper.deleteByExample(localNodeExample());
+        } catch (Exception e) {
+            log.warn("[AgentPlacementService] failed to leave the ring: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Node that serves the agent, the recorded owner while it is live, otherwise the node of the agent on the ring.
+     * @return ip:port of the node, the local node when placement is disabled or the membership is unknown
+     */
+    public String nodeOf(String agentId) {
+        ConsistentHashRing current = ring;
+        if (!enabled || current.size() == 0) {
+            return localNode;
+        }
+        AgentSessionServerService.Owner owner = agentSessionServerService.getOwner(agentId);
+        if (owner != null && owner.getServerIp() != null) {
+            String ownerNode = nodeKey(owner.getServerIp(), owner.getServerPort());
+            // sessions stay where they are while their node lives, the ring only places the orphaned ones
+            if (ownerNode.equals(localNode) || current.contains(ownerNode)) {
+                return ownerNode;
+            }
+        }
+        String node = current.nodeOf(agentId);
+        return node == null ? localNode : node;
+    }
+
+    public boolean isLocalNode(String node) {
+        return node == null || node.equals(localNode);
+    }
+
+    /**
+     * whether the address belongs to a live backend node, never when placement is disabled as no peer routes then
+     */
+    public boolean isMemberAddress(String ip) {
+        return enabled && liveIps.contains(ip);
+    }
+
+    public String getLocalNode() {
+        return localNode;
+    }
+
+    /**
+     * New agent id that the ring places on this node, so the node creating the agent keeps serving it.
+     */
+    public String newAgentId() {
+        String agentId = UUID.randomUUID().toString().replace("-", "");
+        ConsistentHashRing current = ring;
+        if (!enabled || current.size() <= 1) {
+            return agentId;
+        }
+        for (int attempt = 1; attempt < MAX_ID_ATTEMPTS && !localNode.equals(current.nodeOf(agentId)); attempt++) {
+            agentId = UUID.randomUUID().toString().replace("-", "");
+        }
+        return agentId;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("localNode", localNode);
+        stats.put("nodes", ring.nodes());
+        stats.put("membershipHealthy", membershipHealthy);
+        return stats;
+    }
+
+    /**
+     * Refresh the heartbeat of this node and rebuild the ring from the live nodes, the ring is kept when the table is unreachable.
+     */
+    private void heartbeat() {
+        try {
+            // written and compared with the clock of the database, skewed node clocks do not flap the membership
+            backendNodeEnhanceMapper.heartbeat(localNode.split(":")[0], serverPort);
+            Set<String> live = new HashSet<>();
+            Set<String> ips = new HashSet<>();
+            live.add(localNode);
+            for (BackendNodeDO node : backendNodeEnhanceMapper.selectLive(nodeTtlMs)) {
+                live.add(nodeKey(node.getServerIp(), node.getServerPort()));
+                ips.add(node.getServerIp());
+            }
+            ips.add(localNode.split(":")[0]);
+            if (!live.equals(new HashSet<>(ring.nodes()))) {
+                log.info("[AgentPlacementService] membership changed: {} -> {}", ring.nodes(), live);
+                ring = new ConsistentHashRing(live, virtualNodes);
+            }
+            liveIps = ips;
+            if (!membershipHealthy) {
+                log.info("[AgentPlacementService] membership heartbeat recovered");
+            }
+            membershipHealthy = true;
+        } catch (Exception e) {
+            if (membershipHealthy) {
+                log.warn("[AgentPlacementService] membership heartbeat failed, keep the current ring: {}", e.getMessage());
+            }
+            membershipHealthy = false;
+        }
+    }
+
+    private Example<BackendNodeDO> localNodeExample() {
+        Example<BackendNodeDO> example = new Example<>();
+        example.createCriteria()
+                .andEqualTo(BackendNodeDO::getServerIp, localNode.split(":")[0])
+                .andEqualTo(BackendNodeDO::getServerPort, serverPort);
+        return example;
+    }
+
+    private static String nodeKey(String ip, Integer port) {
+        return ip + ":" + port;
+    }
+}
@@ -0,0 +1,308 @@
+package cn.nolaurene.cms.service.sandbox.backend.session;
+
+import cn.nolaurene.cms.service.sandbox.backend.agent.AgentSession;
+import cn.nolaurene.cms.service.sandbox.backend.llm.ChatModelRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author nolaurence
+ * @date 2026/10/17 下午8:30
+ * @description: sessions already connected to the MCP endpoints of a worker, handed out by createAgent and bound to the
+ * new agent there. The pools are refilled in the background, idle sessions are health checked and closed after max idle.
+ */
+@Slf4j
+@Component
+public class AgentSessionPool {
+
+    @Value("${sandbox.backend.session-pool.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 每个 worker endpoint 预先连接的空闲会话数
+     */
+    @Value("${sandbox.backend.session-pool.size:4}")
+    private int size;
+
+    /**
+     * 空闲会话的最长保留时间，超过后关闭并重新连接
+     */
+    @Value("${sandbox.backend.session-pool.max-idle-ms:600000}")
+    private long maxIdleMs;
+
+    /**
+     * 空闲会话的健康检查及补充间隔
+     */
+    @Value("${sandbox.backend.session-pool.check-interval-ms:30000}")
+    private long checkIntervalMs;
+
+    /**
+     * 连接 worker 失败后暂停补充的时间
+     */
+    @Value("${sandbox.backend.session-pool.retry-backoff-ms:30000}")
+    private long retryBackoffMs;
+
+    @Value("${sandbox.backend.worker-url}")
+    private String workerUrl;
+
+    @Value("${sandbox.backend.sse-endpoint}")
+    private String sseEndpoint;
+
+    @Value("${llm-client.silicon-flow.endpoint}")
+    private String defaultLlmEndpoint;
+
+    @Value("${llm-client.silicon-flow.api-key}")
+    private String defaultLlmApiKey;
+
+    @Resource
+    private ApplicationContext applicationContext;
+
+    @Resource
+    private ChatModelRegistry chatModelRegistry;
+
+    /**
+     * worker endpoint -> idle sessions
+     */
+    private final ConcurrentHashMap<String, Pool> pools = new ConcurrentHashMap<>();
+
+    private final AtomicInteger threadCounter = new AtomicInteger();
+
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2, r -> {
+        Thread thread = new Thread(r, "agent-session-pool-" + threadCounter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!enabled || size <= 0) {
+            return;
+        }
+        // the default LLM profile is what most new agents use, build its models before the first sign-in
+        try {
+            chatModelRegistry.chatModel(defaultLlmEndpoint, defaultLlmApiKey, null);
+        } catch (Exception e) {
+            log.warn("[AgentSessionPool] failed to warm default LLM profile: {}", e.getMessage());
+        }
+        poolOf(workerUrl, sseEndpoint);
+        scheduler.scheduleWithFixedDelay(this::maintain, 0, Math.max(1000, checkIntervalMs), TimeUnit.MILLISECONDS);
+        log.info("[AgentSessionPool] started, size: {}, max idle: {} ms", size, maxIdleMs);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+        pools.values().forEach(pool -> {
+            List<Idle> idle;
+            synchronized (pool) {
+                idle = new ArrayList<>(pool.idle);
+                pool.idle.clear();
+            }
+            idle.forEach(entry -> entry.session.close());
+        });
+    }
+
+    /**
+     * Take a connected session of the worker endpoint, the caller binds it to its agent.
+     * @return null when the pool is disabled or empty, the caller connects a session itself
+     */
+    public AgentSession acquire(String workerUrl, String sseEndpoint) {
+        if (!enabled || size <= 0) {
+            return null;
+        }
+        Pool pool = poolOf(workerUrl, sseEndpoint);
+        AgentSession session = null;
+        while (session == null) {
+            Idle idle;
+            synchronized (pool) {
+                idle = pool.idle.pollFirst();
+            }
+            if (idle == null) {
+                break;
+            }
+            long now = System.currentTimeMillis();
+            if (now - idle.connectedAt > maxIdleMs) {
+                discard(pool, idle, "expired");
+                continue;
+            }
+            if (now - idle.checkedAt >= checkIntervalMs) {
+                // not checked lately, one ping is still far cheaper than a new handshake
+                try {
+                    idle.session.checkHealth();
+                } catch (Exception e) {
+                    discard(pool, idle, "unhealthy");
+                    continue;
+                }
+            }
+            session = idle.session;
+        }
+        (session != null ? pool.hits : pool.misses).incrementAndGet();
+        scheduleRefill(pool);
+        return session;
+    }
+
+    public List<Map<String, Object>> stats() {
+        List<Map<String, Object>> result = new ArrayList<>();
+        pools.forEach((key, pool) -> {
+            Map<String, Object> item = new HashMap<>();
+            item.put("endpoint", key);
+            synchronized (pool) {
+                item.put("idle", pool.idle.size());
+                item.put("connecting", pool.connecting);
+            }
+            item.put("size", size);
+            item.put("hits", pool.hits.get());
+            item.put("misses", pool.misses.get());
+            item.put("created", pool.created.get());
+            item.put("evicted", pool.evicted.get());
+            item.put("failed", pool.failed.get());
+            result.add(item);
+        });
+        return result;
+    }
+
+    private Pool poolOf(String workerUrl, String sseEndpoint) {
+        return pools.computeIfAbsent(workerUrl + sseEndpoint, key -> new Pool(workerUrl, sseEndpoint));
+    }
+
+    /**
+     * drop expired and broken idle sessions, then top the pools up
+     */
+    private void maintain() {
+        for (Pool pool : pools.values()) {
+            List<Idle> idle;
+            synchronized (pool) {
+                idle = new ArrayList<>(pool.idle);
+            }
+            for (Idle entry : idle) {
+                long now = System.currentTimeMillis();
+                if (now - entry.connectedAt > maxIdleMs) {
+                    if (remove(pool, entry)) {
+                        discard(pool, entry, "expired");
+                    }
+                    continue;
+                }
+                try {
+                    entry.session.checkHealth();
+                    entry.checkedAt = now;
+                } catch (Exception e) {
+                    if (remove(pool, entry)) {
+                        discard(pool, entry, "unhealthy");
+                    }
+                }
+            }
+            try {
+                refill(pool);
+            } catch (Exception e) {
+                // keep the periodic task alive
+                log.warn("[AgentSessionPool] failed to refill {}{}: {}", pool.workerUrl, pool.sseEndpoint, e.getMessage());
+            }
+        }
+    }
+
+    private void scheduleRefill(Pool pool) {
+        try {
+            scheduler.execute(() -> refill(pool));
+        } catch (RejectedExecutionException e) {
+            log.debug("[AgentSessionPool] scheduler stopped, skip refill");
+        }
+    }
+
+    /**
+     * Connect sessions until the pool is full, a failed connect pauses the pool for the retry backoff.
+     */
+    private void refill(Pool pool) {
+        while (true) {
+            synchronized (pool) {
+                if (pool.idle.size() + pool.connecting >= size || System.currentTimeMillis() < pool.retryAfter) {
+                    return;
+                }
+                pool.connecting++;
+            }
+            AgentSession session;
+            try {
+                session = applicationContext.getBean(AgentSession.class);
+                session.connect(pool.workerUrl, pool.sseEndpoint);
+            } catch (Exception e) {
+                pool.failed.incrementAndGet();
+                synchronized (pool) {
+                    pool.connecting--;
+                    pool.retryAfter = System.currentTimeMillis() + retryBackoffMs;
+                }
+                log.warn("[AgentSessionPool] failed to connect session to {}{}, retry in {} ms: {}",
+                        pool.workerUrl, pool.sseEndpoint, retryBackoffMs, e.getMessage());
+                return;
+            }
+            pool.created.incrementAndGet();
+            synchronized (pool) {
+                pool.connecting--;
+                pool.idle.addLast(new Idle(session));
+            }
+        }
+    }
+
+    private static boolean remove(Pool pool, Idle entry) {
+        synchronized (pool) {
+            return pool.idle.remove(entry);
+        }
+    }
+
+    private static void discard(Pool pool, Idle entry, String reason) {
+        pool.evicted.incrementAndGet();
+        log.info("[AgentSessionPool] close {} idle session of {}{}", reason, pool.workerUrl, pool.sseEndpoint);
+        entry.session.close();
+    }
+
+    private static class Pool {
+        private final String workerUrl;
+        private final String sseEndpoint;
+        /**
+         * oldest first, guarded by the pool
+         */
+        private final Deque<Idle> idle = new ArrayDeque<>();
+        private int connecting;
+        private long retryAfter;
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong created = new AtomicLong();
+        private final AtomicLong evicted = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+
+        private Pool(String workerUrl, String sseEndpoint) {
+            this.workerUrl = workerUrl;
+            this.sseEndpoint = sseEndpoint;
+        }
+    }
+
+    private static class Idle {
+        private final AgentSession session;
+        private final long connectedAt;
+        private volatile long checkedAt;
+
+        private Idle(AgentSession session) {
+            this.session = session;
+            this.connectedAt = System.currentTimeMillis();
+            this.checkedAt = connectedAt;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package cn.nolaurene.cms.service.sandbox.backend.session;
+
+import org.springframework.util.DigestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * @author nolaurence
+ * @date 2026/10/17 下午9:20
+ * @description: consistent hash ring of backend nodes. Every node sits at a number of virtual points, a key belongs to
+ * the first point clockwise from its hash, so a node joining or leaving only moves the keys of its own arcs.
+ */
+public final class ConsistentHashRing {
+
+    public static final ConsistentHashRing EMPTY = new ConsistentHashRing(List.of(), 1);
+
+    private final List<String> nodes;
+
+    private final long[] points;
+
+    private final String[] owners;
+
+    public ConsistentHashRing(Collection<String> nodes, int virtualNodes) {
+        this.nodes = List.copyOf(new TreeSet<>(nodes));
+        TreeMap<Long, String> ring = new TreeMap<>();
+        for (String node : this.nodes) {
+            for (int idx = 0; idx < Math.max(1, virtualNodes); idx++) {
+                // on a rare collision the smaller node key wins, the same on every node
+                ring.merge(hash(node + "#" + idx), node, (left, right) -> left.compareTo(right) <= 0 ? left : right);
+            }
+        }
+        this.points = new long[ring.size()];
+        this.owners = new String[ring.size()];
+        int idx = 0;
+        for (var entry : ring.entrySet()) {
+            points[idx] = entry.getKey();
+            owners[idx] = entry.getValue();
+            idx++;
+        }
+    }
+
+    /**
+     * @return node of the key, null when the ring is empty
+     */
+    public String nodeOf(String key) {
+        if (points.length == 0) {
+            return null;
+        }
+        int idx = Arrays.binarySearch(points, hash(key));
+        if (idx < 0) {
+            idx = -idx - 1;
+        }
+        return owners[idx == points.length ? 0 : idx];
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    public boolean contains(String node) {
+        return nodes.contains(node);
+    }
+
+    /**
+     * nodes of the ring, sorted
+     */
+    public List<String> nodes() {
+        return new ArrayList<>(nodes);
+    }
+
+    /**
+     * first 8 bytes of the MD5, stable across JVMs and spread well for short keys
+     */
+    private static long hash(String key) {
+        byte[] digest = DigestUtils.md5Digest(key.getBytes(StandardCharsets.UTF_8));
+        long hash = 0;
+        for (int idx = 0; idx < 8; idx++) {
+            hash = (hash << 8) | (digest[idx] & 0xFF);
+        }
+        return hash;
+    }
+}
@@ -1,49 +1,250 @@
 package cn.nolaurene.cms.service.sandbox.backend.session;
 
 import cn.nolaurene.cms.service.sandbox.backend.agent.AgentSession;
+import cn.nolaurene.cms.service.sandbox.backend.message.TaskStatus;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
+/**
+ * 本节点 agent 会话的生命周期：空闲超时或超出会话上限（最久未使用优先）的会话被回收，关闭其 MCP 连接与心跳。
+ * 被回收的 agent 下次使用时重新连接，对话记忆从持久化的历史或检查点恢复
+ */
 @Slf4j
 @Service
 public class GlobalAgentSessionManager {
 
+    @Value("${sandbox.backend.session-lifecycle.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 会话空闲超过该时间后回收
+     */
+    @Value("${sandbox.backend.session-lifecycle.idle-ttl-ms:1800000}")
+    private long idleTtlMs;
+
+    /**
+     * 本节点保留的会话数上限，超出后回收最久未使用的会话
+     */
+    @Value("${sandbox.backend.session-lifecycle.max-sessions:200}")
+    private int maxSessions;
+
     /**
-     * 本地存储agent会话信息，存在即有创建，不存在就没有
+     * 超出上限时也不回收在该时间内使用过的会话，刚取出尚未开始运行的会话不会被关闭
      */
-    private final ConcurrentHashMap<String, AgentSession> localSessions = new ConcurrentHashMap<>();
+    @Value("${sandbox.backend.session-lifecycle.min-idle-ms:60000}")
+    private long minIdleMs;
+
+    @Value("${sandbox.backend.session-lifecycle.sweep-interval-ms:60000}")
+    private long sweepIntervalMs;
+
+    /**
+     * 本地存储agent会话信息，存在即有创建，不存在就没有。
+     * 会话只保存在负责该 agent 的节点上，其他节点收到的请求由 {@link AgentPlacementService} 路由到该节点
+     */
+    private final ConcurrentHashMap<String, Entry> localSessions = new ConcurrentHashMap<>();
+
+    private final AtomicLong evictedIdle = new AtomicLong();
+
+    private final AtomicLong evictedOverCap = new AtomicLong();
+
+    private final AtomicLong rehydrated = new AtomicLong();
+
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "agent-session-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    public void init() {
+        if (enabled) {
+            sweeper.scheduleWithFixedDelay(this::sweep, sweepIntervalMs, sweepIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        sweeper.shutdownNow();
+        localSessions.values().forEach(entry -> release(entry.session));
+        localSessions.clear();
+    }
 
     public boolean createSession(String agentId, AgentSession session) {
-        if (localSessions.containsKey(agentId)) {
+        if (localSessions.putIfAbsent(agentId, new Entry(session)) != null) {
             // 如果会话已存在，返回已有的agent
             return false;
         }
-        // 将新创建的agent存入本地会话
-        localSessions.put(agentId, session);
-
+        if (enabled && localSessions.size() > maxSessions) {
+            // 不等下一轮清理，尽快回到上限以内
+            try {
+                sweeper.execute(this::sweep);
+            } catch (RejectedExecutionException e) {
+                log.debug("Session sweeper is shut down");
+            }
+        }
         return true;
     }
 
-    public boolean removeSession(String agentId) {
-        if (!localSessions.containsKey(agentId)) {
-            return true;
+    /**
+     * Session of the agent, one that was evicted is rehydrated by the given supplier first.
+     * @param rehydrator connects a new session, returns null when the agent can not be rehydrated on this node
+     * @return the session, null when there is none and none could be rehydrated
+     */
+    public AgentSession getOrRehydrate(String agentId, Supplier<AgentSession> rehydrator) {
+        AgentSession session = getSession(agentId);
+        if (session != null) {
+            return session;
+        }
+        AgentSession created = rehydrator.get();
+        if (created == null) {
+            return null;
+        }
+        if (createSession(agentId, created)) {
+            rehydrated.incrementAndGet();
+            log.info("Agent session rehydrated: agentId={}", agentId);
+            return created;
         }
+        // another request rehydrated it meanwhile, keep theirs
+        release(created);
+        return getSession(agentId);
+    }
 
-        localSessions.remove(agentId);
+    public boolean removeSession(String agentId) {
+        Entry entry = localSessions.remove(agentId);
+        if (entry != null) {
+            release(entry.session);
+        }
         return true; // 成功删除会话
     }
 
     public AgentSession getSession(String agentId) {
-        return localSessions.get(agentId);
+        Entry entry = localSessions.get(agentId);
+        if (entry == null) {
+            return null;
+        }
+        entry.lastAccessMs = System.currentTimeMillis();
+        return entry.session;
     }
 
     public List<String> getAllSessionIds() {
         return new ArrayList<>(localSessions.keySet());
     }
 
-    // TODO：分布式情况下存储session
+    public Map<String, Object> stats() {
+        long now = System.currentTimeMillis();
+        int running = 0;
+        long oldestIdleMs = 0;
+        for (Entry entry : localSessions.values()) {
+            if (entry.session.getSessionStatus() == TaskStatus.RUNNING) {
+                running++;
+            } else {
+                oldestIdleMs = Math.max(oldestIdleMs, now - entry.lastAccessMs);
+            }
+        }
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("sessions", localSessions.size());
+        stats.put("running", running);
+        stats.put("maxSessions", maxSessions);
+        stats.put("idleTtlMs", idleTtlMs);
+        stats.put("oldestIdleMs", oldestIdleMs);
+        stats.put("evictedIdle", evictedIdle.get());
+        stats.put("evictedOverCap", evictedOverCap.get());
+        stats.put("rehydrated", rehydrated.get());
+        return stats;
+    }
+
+    /**
+     * Evict the sessions idle past the ttl, then the least recently used ones while the node is over the cap.
+     * Running sessions are never evicted.
+     */
+    private void sweep() {
+        try {
+            long now = System.currentTimeMillis();
+            // last access as seen now, the entries keep changing while they are sorted
+            Map<String, Long> candidates = new HashMap<>();
+            for (Map.Entry<String, Entry> mapEntry : localSessions.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                if (entry.session.getSessionStatus() == TaskStatus.RUNNING) {
+                    continue;
+                }
+                long idleMs = now - entry.lastAccessMs;
+                if (idleMs > idleTtlMs) {
+                    if (evict(mapEntry.getKey(), entry)) {
+                        evictedIdle.incrementAndGet();
+                    }
+                } else if (idleMs >= minIdleMs) {
+                    candidates.put(mapEntry.getKey(), entry.lastAccessMs);
+                }
+            }
+
+            int excess = localSessions.size() - maxSessions;
+            if (excess <= 0) {
+                return;
+            }
+            List<String> leastRecentlyUsed = new ArrayList<>(candidates.keySet());
+            leastRecentlyUsed.sort(Comparator.comparingLong(candidates::get));
+            for (int idx = 0; idx < leastRecentlyUsed.size() && excess > 0; idx++) {
+                String agentId = leastRecentlyUsed.get(idx);
+                Entry entry = localSessions.get(agentId);
+                if (entry != null && evict(agentId, entry)) {
+                    evictedOverCap.incrementAndGet();
+                    excess--;
+                }
+            }
+            if (excess > 0) {
+                log.warn("Agent sessions over the cap, the rest are running or in recent use: sessions={}, maxSessions={}",
+                        localSessions.size(), maxSessions);
+            }
+        } catch (Exception e) {
+            log.warn("Agent session sweep failed: {}", e.getMessage());
+        }
+    }
+
+    private boolean evict(String agentId, Entry entry) {
+        // a session used or started since it was picked stays
+        if (System.currentTimeMillis() - entry.lastAccessMs < Math.min(minIdleMs, idleTtlMs)
+                || entry.session.getSessionStatus() == TaskStatus.RUNNING
+                || !localSessions.remove(agentId, entry)) {
+            return false;
+        }
+        release(entry.session);
+        log.info("Agent session evicted: agentId={}, idleMs={}", agentId, System.currentTimeMillis() - entry.lastAccessMs);
+        return true;
+    }
+
+    private static void release(AgentSession session) {
+        try {
+            session.close();
+        } catch (Exception e) {
+            log.warn("Failed to close agent session: {}", e.getMessage());
+        }
+    }
+
+    private static final class Entry {
+
+        private final AgentSession session;
+
+        private volatile long lastAccessMs = System.currentTimeMillis();
+
+        private Entry(AgentSession session) {
+            this.session = session;
+        }
+    }
 }
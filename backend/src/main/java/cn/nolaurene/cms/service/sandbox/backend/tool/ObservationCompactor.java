@@ -0,0 +1,277 @@
+package cn.nolaurene.cms.service.sandbox.backend.tool;
+
+import cn.nolaurene.cms.service.sandbox.backend.llm.ContextWindowManager;
+import cn.nolaurene.cms.service.sandbox.backend.llm.LlmClient;
+import cn.nolaurene.cms.service.sandbox.backend.llm.LlmPhase;
+import cn.nolaurene.cms.service.sandbox.backend.llm.LlmPriority;
+import cn.nolaurene.cms.service.sandbox.backend.utils.PromptRenderer;
+import dev.langchain4j.agent.tool.ToolExecutionRequest;
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.ToolExecutionResultMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.TokenCountEstimator;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author nolaurence
+ * @date 2026/10/17 下午7:40
+ * @description: keep the messages of one step loop small: older tool results are replaced by digests per tool prefix,
+ * and the earlier rounds are folded into a summary once the messages pass a token threshold
+ */
+@Slf4j
+@Component
+public class ObservationCompactor {
+
+    private static final String DIGEST_MARK = "[digest]";
+
+    private static final String SUMMARY_PREFIX = "Summary of the earlier rounds of this step:\n";
+
+    /**
+     * length of the tool arguments and results handed to the summarizer
+     */
+    private static final int MAX_FOLDED_CHARS = 1000;
+
+    @Value("${sandbox.backend.observation.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 按工具前缀配置的压缩规则，格式 prefix:保留原文的最近结果数:摘要字符数，逗号分隔；未匹配的工具结果保持原文
+     */
+    @Value("${sandbox.backend.observation.rules:browser_:1:600,shell_:2:1200,file_:2:1200}")
+    private String rulesConfig;
+
+    /**
+     * 步骤内消息超过该 token 数时，将较早的轮次折叠为摘要
+     */
+    @Value("${sandbox.backend.observation.summarize-threshold-tokens:24000}")
+    private int summarizeThresholdTokens;
+
+    /**
+     * 折叠时保留的最近轮次数
+     */
+    @Value("${sandbox.backend.observation.keep-recent-rounds:2}")
+    private int keepRecentRounds;
+
+    @Value("${sandbox.backend.context.summary-max-tokens:1024}")
+    private int summaryMaxTokens;
+
+    @Resource
+    private ContextWindowManager contextWindowManager;
+
+    /**
+     * tool prefix -> rule, in configuration order, the first matching prefix wins
+     */
+    private final Map<String, Rule> rules = new LinkedHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        if (StringUtils.isBlank(rulesConfig)) {
+            return;
+        }
+        for (String entry : rulesConfig.split(",")) {
+            String[] parts = entry.trim().split(":");
+            if (parts.length != 3) {
+                log.warn("[ObservationCompactor] invalid rule entry: {}", entry);
+                continue;
+            }
+            try {
+                rules.put(parts[0].trim(), new Rule(Integer.parseInt(parts[1].trim()), Integer.parseInt(parts[2].trim())));
+            } catch (NumberFormatException e) {
+                log.warn("[ObservationCompactor] invalid rule entry: {}", entry);
+            }
+        }
+    }
+
+    /**
+     * Compact the messages of a step loop in place.
+     * The leading system and user messages are kept, a summary of folded rounds is kept right after them.
+     * @param llmClient default client of the agent, the executor model decides the tokenizer
+     */
+    public void compact(List<ChatMessage> messages, LlmClient llmClient) {
+        if (!enabled || messages == null || messages.isEmpty()) {
+            return;
+        }
+        digestOldObservations(messages);
+        if (summarizeThresholdTokens > 0) {
+            foldEarlyRounds(messages, llmClient);
+        }
+    }
+
+    /**
+     * Replace the tool results beyond the newest {@code keepLatest} of their prefix with digests, newest first.
+     */
+    private void digestOldObservations(List<ChatMessage> messages) {
+        Map<String, Integer> seen = new HashMap<>();
+        int digested = 0;
+        int savedChars = 0;
+        for (int idx = messages.size() - 1; idx >= 0; idx--) {
+            if (!(messages.get(idx) instanceof ToolExecutionResultMessage)) {
+                continue;
+            }
+            ToolExecutionResultMessage result = (ToolExecutionResultMessage) messages.get(idx);
+            String prefix = prefixOf(result.toolName());
+            if (prefix == null) {
+                continue;
+            }
+            Rule rule = rules.get(prefix);
+            int count = seen.merge(prefix, 1, Integer::sum);
+            String text = StringUtils.defaultString(result.text());
+            if (count <= rule.keepLatest || text.startsWith(DIGEST_MARK) || text.length() <= rule.digestChars) {
+                continue;
+            }
+            String digest = digest(result.toolName(), text, rule.digestChars);
+            messages.set(idx, ToolExecutionResultMessage.from(result.id(), result.toolName(), digest));
+            digested++;
+            savedChars += text.length() - digest.length();
+        }
+        if (digested > 0) {
+            log.info("[ObservationCompactor] digested {} tool results, saved {} chars", digested, savedChars);
+        }
+    }
+
+    /**
+     * Fold all but the newest rounds into one summary message once the messages pass the threshold.
+     * A round is an AI message with its tool results, rounds are folded whole so every tool call keeps its result.
+     */
+    private void foldEarlyRounds(List<ChatMessage> messages, LlmClient llmClient) {
+        TokenCountEstimator estimator = contextWindowManager.estimatorOf(llmClient.forPhase(LlmPhase.EXECUTOR).getModelName());
+        int total = estimator.estimateTokenCountInMessages(messages);
+        if (total <= summarizeThresholdTokens) {
+            return;
+        }
+
+        // leading messages: system prompt, execution context and the summary of an earlier fold
+        int head = 0;
+        String previousSummary = null;
+        while (head < messages.size() && !(messages.get(head) instanceof AiMessage)) {
+            ChatMessage message = messages.get(head);
+            if (message instanceof UserMessage && ((UserMessage) message).hasSingleText()
+                    && ((UserMessage) message).singleText().startsWith(SUMMARY_PREFIX)) {
+                previousSummary = ((UserMessage) message).singleText().substring(SUMMARY_PREFIX.length());
+            }
+            head++;
+        }
+
+        List<Integer> roundStarts = new ArrayList<>();
+        for (int idx = head; idx < messages.size(); idx++) {
+            if (messages.get(idx) instanceof AiMessage) {
+                roundStarts.add(idx);
+            }
+        }
+        int keptRounds = Math.max(1, keepRecentRounds);
+        if (roundStarts.size() <= keptRounds) {
+            // nothing older than the kept rounds, the recent rounds alone are over the threshold
+            return;
+        }
+        int cut = roundStarts.get(roundStarts.size() - keptRounds);
+        // the kept rounds may pass the threshold by themselves, fold again only once the older rounds
+        // outweigh the summary replacing them instead of summarizing after every round
+        int foldedTokens = estimator.estimateTokenCountInMessages(messages.subList(head, cut));
+        if (foldedTokens <= summaryMaxTokens) {
+            return;
+        }
+
+        String summary = summarize(previousSummary, messages.subList(head, cut), llmClient);
+        messages.subList(head, cut).clear();
+        UserMessage summaryMessage = UserMessage.from(SUMMARY_PREFIX + summary);
+        if (previousSummary != null) {
+            // the old summary is the last leading message, replace it
+            messages.set(head - 1, summaryMessage);
+        } else {
+            messages.add(head, summaryMessage);
+        }
+        log.info("[ObservationCompactor] folded {} rounds into summary, tokens: {} -> {}",
+                roundStarts.size() - keptRounds, total, estimator.estimateTokenCountInMessages(messages));
+    }
+
+    private String summarize(String previousSummary, List<ChatMessage> folded, LlmClient llmClient) {
+        StringBuilder rounds = new StringBuilder();
+        for (ChatMessage message : folded) {
+            if (message instanceof AiMessage) {
+                AiMessage aiMessage = (AiMessage) message;
+                if (StringUtils.isNotBlank(aiMessage.text())) {
+                    rounds.append("ASSISTANT: ").append(StringUtils.abbreviate(aiMessage.text(), MAX_FOLDED_CHARS)).append("\n");
+                }
+                if (aiMessage.hasToolExecutionRequests()) {
+                    for (ToolExecutionRequest request : aiMessage.toolExecutionRequests()) {
+                        rounds.append("TOOL CALL: ").append(request.name()).append(" ")
+                                .append(StringUtils.abbreviate(request.arguments(), MAX_FOLDED_CHARS)).append("\n");
+                    }
+                }
+            } else if (message instanceof ToolExecutionResultMessage) {
+                ToolExecutionResultMessage result = (ToolExecutionResultMessage) message;
+                rounds.append("TOOL RESULT ").append(result.toolName()).append(": ")
+                        .append(StringUtils.abbreviate(result.text(), MAX_FOLDED_CHARS)).append("\n");
+            }
+        }
+        try {
+            Map<String, Object> context = new HashMap<>();
+            context.put("previousSummary", StringUtils.defaultString(previousSummary));
+            context.put("conversation", rounds.toString());
+            context.put("maxTokens", summaryMaxTokens);
+            String prompt = PromptRenderer.renderPrompt("prompts/summarizeContext.jinja", context);
+            String summary = llmClient.forPhase(LlmPhase.CHECKER)
+                    .chat(ChatRequest.builder().messages(UserMessage.from(prompt)).build(), LlmPriority.BACKGROUND).aiMessage().text();
+            if (StringUtils.isNotBlank(summary)) {
+                return summary.trim();
+            }
+        } catch (Exception e) {
+            log.warn("[ObservationCompactor] failed to summarize rounds, keep the folded calls verbatim: {}", e.getMessage());
+        }
+        // without a summary the abbreviated transcript still tells the model what was already done
+        return StringUtils.isBlank(previousSummary) ? rounds.toString() : previousSummary + "\n" + rounds;
+    }
+
+    private String prefixOf(String toolName) {
+        if (toolName == null) {
+            return null;
+        }
+        for (String prefix : rules.keySet()) {
+            if (toolName.startsWith(prefix)) {
+                return prefix;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Head and tail of the result, page location lines of browser results are always kept.
+     */
+    private static String digest(String toolName, String text, int digestChars) {
+        StringBuilder sb = new StringBuilder(DIGEST_MARK).append(" ").append(toolName)
+                .append(" result, ").append(text.length()).append(" chars, older result shortened\n");
+        for (String line : text.split("\n")) {
+            if (line.startsWith("- Page URL:") || line.startsWith("- Page Title:")) {
+                sb.append(line).append("\n");
+            }
+        }
+        int half = digestChars / 2;
+        sb.append(text, 0, half)
+                .append("\n... [").append(text.length() - 2 * half).append(" chars omitted] ...\n")
+                .append(text, text.length() - half, text.length());
+        return sb.toString();
+    }
+
+    private static class Rule {
+        private final int keepLatest;
+        private final int digestChars;
+
+        private Rule(int keepLatest, int digestChars) {
+            this.keepLatest = keepLatest;
+            this.digestChars = digestChars;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package cn.nolaurene.cms.service.sandbox.backend.tool;
+
+import cn.nolaurene.cms.service.sandbox.worker.mcp.server.tool.ToolType;
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONObject;
+import dev.langchain4j.agent.tool.ToolExecutionRequest;
+import dev.langchain4j.agent.tool.ToolSpecification;
+import dev.langchain4j.mcp.client.McpToolMetadataKeys;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * @author nolaurence
+ * @date 2026/10/17 下午3:20
+ * @description: classify MCP tool calls by access type and the resource they operate on
+ */
+public class ToolCallClassifier {
+
+    /**
+     * Read-only tools of the native MCP server, mirrors the {@link ToolType} declared on the worker side.
+     * The native server cannot publish MCP annotations yet, so the hint is not available in the tool metadata.
+     */
+    private static final Set<String> NATIVE_READ_ONLY_TOOLS = Set.of(
+            "file_read",
+            "file_find_in_content",
+            "file_find_by_name",
+            "shell_view",
+            "shell_wait"
+    );
+
+    private ToolCallClassifier() {
+    }
+
+    /**
+     * Resolve the access type of a tool. The readOnlyHint annotation published by the MCP server wins,
+     * tools without annotation fall back to the native worker declaration, unknown tools are treated as destructive.
+     */
+    public static ToolType classify(String toolName, Map<String, ToolSpecification> toolSpecs) {
+        ToolSpecification spec = toolSpecs == null ? null : toolSpecs.get(toolName);
+        if (spec != null && spec.metadata() != null) {
+            Object readOnlyHint = spec.metadata().get(McpToolMetadataKeys.READ_ONLY_HINT);
+            if (readOnlyHint != null) {
+                return Boolean.parseBoolean(readOnlyHint.toString()) ? ToolType.READ_ONLY : ToolType.DESTRUCTIVE;
+            }
+        }
+        return NATIVE_READ_ONLY_TOOLS.contains(toolName) ? ToolType.READ_ONLY : ToolType.DESTRUCTIVE;
+    }
+
+    /**
+     * Resource key of a tool call, calls sharing a key must keep their relative order when one of them mutates.
+     * - browser tools all act on the current tab of the same browser context
+     * - shell tools act on a shell session identified by the id argument
+     * - file tools share one key because find tools scan whole directories
+     */
+    public static String resourceOf(ToolExecutionRequest request) {
+        String toolName = request.name();
+        if (toolName.startsWith("browser")) {
+            return "browser";
+        }
+        if (toolName.startsWith("shell")) {
+            String sessionId = null;
+            try {
+                JSONObject args = JSON.parseObject(request.arguments());
+                sessionId = args == null ? null : args.getString("id");
+            } catch (Exception ignore) {
+            }
+            return "shell:" + (sessionId == null ? "" : sessionId);
+        }
+        if (toolName.startsWith("file")) {
+            return "file";
+        }
+        return "tool:" + toolName;
+    }
+}
@@ -0,0 +1,71 @@
+package cn.nolaurene.cms.service.sandbox.backend.tool;
+
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * @author nolaurence
+ * @date 2026/10/17 下午9:40
+ * @description: families of MCP tools, named by the tool prefix. A set of families is kept as a bitset of {@link #bit()}.
+ */
+@Getter
+public enum ToolFamily {
+
+    BROWSER("browser", "web pages", List.of("browser", "web", "webpage", "page", "url", "http", "https", "site", "website",
+            "search", "click", "navigate", "login", "google", "网页", "浏览", "网站", "搜索", "页面", "点击", "链接", "登录")),
+    SHELL("shell", "commands and processes", List.of("shell", "command", "run", "install", "execute", "terminal", "script",
+            "pip", "npm", "git", "python", "java", "compile", "build", "test", "deploy",
+            "命令", "运行", "安装", "执行", "终端", "脚本", "编译", "部署")),
+    FILE("file", "read, write and search files", List.of("file", "write", "read", "save", "create", "edit", "directory",
+            "folder", "report", "document", "code", ".md", ".txt", ".py",
+            "文件", "写入", "读取", "保存", "创建", "编辑", "目录", "报告", "文档", "代码")),
+    /**
+     * tools without a known prefix, always sent
+     */
+    OTHER("", "", List.of());
+
+    public static final int ALL = (1 << values().length) - 1;
+
+    private final String prefix;
+
+    /**
+     * what the tools of the family do, shown to the model when it may ask for the family
+     */
+    private final String description;
+
+    /**
+     * lower case words of a step description that suggest the family is needed, matched as whole words
+     */
+    private final List<String> keywords;
+
+    ToolFamily(String prefix, String description, List<String> keywords) {
+        this.prefix = prefix;
+        this.description = description;
+        this.keywords = keywords;
+    }
+
+    public int bit() {
+        return 1 << ordinal();
+    }
+
+    public static ToolFamily of(String toolName) {
+        if (toolName != null) {
+            for (ToolFamily family : values()) {
+                if (family != OTHER && toolName.startsWith(family.prefix)) {
+                    return family;
+                }
+            }
+        }
+        return OTHER;
+    }
+
+    public static ToolFamily fromPrefix(String prefix) {
+        for (ToolFamily family : values()) {
+            if (family != OTHER && family.prefix.equalsIgnoreCase(prefix)) {
+                return family;
+            }
+        }
+        return null;
+    }
+}
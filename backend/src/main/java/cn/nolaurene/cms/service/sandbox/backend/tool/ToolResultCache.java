@@ -0,0 +1,105 @@
+package cn.nolaurene.cms.service.sandbox.backend.tool;
+
+import cn.nolaurene.cms.service.sandbox.worker.mcp.server.tool.ToolType;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * @author nolaurence
+ * @date 2026/10/17 下午9:10
+ * @description: results of read-only tool calls of one agent session, in LRU order.
+ * Every entry carries the scope it was read from, mutating calls drop the entries of the scopes they touch.
+ */
+public class ToolResultCache {
+
+    /**
+     * key (tool name and canonical arguments) -> entry, guarded by this
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * tool name -> access type, tools of a session do not change
+     */
+    private final ConcurrentHashMap<String, ToolType> toolTypes = new ConcurrentHashMap<>();
+
+    /**
+     * bumped by every invalidation, a result read before an invalidation must not be stored after it
+     */
+    private long epoch;
+
+    ToolType typeOf(String toolName, Function<String, ToolType> classifier) {
+        return toolTypes.computeIfAbsent(toolName, classifier);
+    }
+
+    synchronized Lookup lookup(String key, long ttlMs) {
+        Entry entry = entries.get(key);
+        if (entry != null && ttlMs > 0 && System.currentTimeMillis() - entry.createdAt > ttlMs) {
+            entries.remove(key);
+            entry = null;
+        }
+        return new Lookup(entry == null ? null : entry.result, epoch);
+    }
+
+    /**
+     * store a result unless a mutating call invalidated anything since it was looked up
+     */
+    synchronized boolean put(String key, String scope, String result, Lookup lookup, int maxEntries) {
+        if (lookup.epoch != epoch) {
+            return false;
+        }
+        entries.put(key, new Entry(scope, result, System.currentTimeMillis()));
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (entries.size() > maxEntries && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+        return true;
+    }
+
+    /**
+     * @return number of dropped entries
+     */
+    synchronized int invalidate(Predicate<String> scopeMatcher) {
+        epoch++;
+        int dropped = 0;
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (scopeMatcher.test(iterator.next().getValue().scope)) {
+                iterator.remove();
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    static class Lookup {
+        final String result;
+        private final long epoch;
+
+        private Lookup(String result, long epoch) {
+            this.result = result;
+            this.epoch = epoch;
+        }
+    }
+
+    private static class Entry {
+        private final String scope;
+        private final String result;
+        private final long createdAt;
+
+        private Entry(String scope, String result, long createdAt) {
+            this.scope = scope;
+            this.result = result;
+            this.createdAt = createdAt;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package cn.nolaurene.cms.service.sandbox.backend.tool;
+
+import cn.nolaurene.cms.common.sandbox.backend.model.Agent;
+import cn.nolaurene.cms.service.sandbox.worker.mcp.server.tool.ToolType;
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONObject;
+import com.alibaba.fastjson2.JSONWriter;
+import dev.langchain4j.agent.tool.ToolExecutionRequest;
+import dev.langchain4j.agent.tool.ToolSpecification;
+import dev.langchain4j.service.tool.ToolExecutionResult;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * @author nolaurence
+ * @date 2026/10/17 下午9:10
+ * @description: answer repeated read-only tool calls of a session from its {@link ToolResultCache}.
+ * Scopes of the cached reads and what a mutating call invalidates:
+ * - file_read / file_find_in_content read "file:path", file_find_by_name reads "dir:path";
+ *   a file write drops its path and every directory scan, a shell call drops all of them since a command may touch any file
+ * - browser tools act on the current tab of one browser context, so any mutating browser call drops every browser read
+ * - other mutating tools drop everything
+ */
+@Slf4j
+@Component
+public class ToolResultMemoizer {
+
+    private static final String BROWSER_SCOPE = "browser";
+
+    private static final String FILE_SCOPE_PREFIX = "file:";
+
+    private static final String DIR_SCOPE_PREFIX = "dir:";
+
+    /**
+     * 是否缓存会话内只读工具调用的结果
+     */
+    @Value("${sandbox.backend.tool-cache.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 单个会话缓存的结果数上限，超出时淘汰最久未使用的结果
+     */
+    @Value("${sandbox.backend.tool-cache.max-entries-per-session:64}")
+    private int maxEntriesPerSession;
+
+    /**
+     * 结果的有效期，页面和文件也可能在 agent 之外发生变化，0 表示不过期
+     */
+    @Value("${sandbox.backend.tool-cache.ttl-ms:30000}")
+    private long ttlMs;
+
+    /**
+     * 只读但结果随时间变化的工具，不缓存，逗号分隔
+     */
+    @Value("${sandbox.backend.tool-cache.uncacheable-tools:shell_view,shell_wait}")
+    private String uncacheableToolsConfig;
+
+    private final Set<String> uncacheableTools = new HashSet<>();
+
+    /**
+     * tool name -> counters
+     */
+    private final ConcurrentHashMap<String, Counters> counters = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        if (StringUtils.isBlank(uncacheableToolsConfig)) {
+            return;
+        }
+        for (String toolName : uncacheableToolsConfig.split(",")) {
+            if (StringUtils.isNotBlank(toolName)) {
+                uncacheableTools.add(toolName.trim());
+            }
+        }
+    }
+
+    /**
+     * Run a tool call through the cache of the session, failed results are never cached.
+     * @param call the actual call to the worker
+     * @return result text of the call
+     */
+    public String execute(Agent agent, ToolExecutionRequest request, Supplier<ToolExecutionResult> call) {
+        if (!enabled || agent == null || agent.getToolResultCache() == null) {
+            return textOf(call.get());
+        }
+        ToolResultCache cache = agent.getToolResultCache();
+        String toolName = request.name();
+        ToolType toolType = cache.typeOf(toolName, name -> ToolCallClassifier.classify(name, specsOf(agent)));
+
+        if (toolType != ToolType.READ_ONLY) {
+            // dropped before and after the call: reads of other resources may run concurrently and see either state
+            Predicate<String> invalidation = invalidationOf(request);
+            int dropped = cache.invalidate(invalidation);
+            ToolExecutionResult result = call.get();
+            dropped += cache.invalidate(invalidation);
+            if (dropped > 0) {
+                counters(toolName).invalidated.add(dropped);
+                log.debug("[ToolResultMemoizer] {} dropped {} cached results", toolName, dropped);
+            }
+            return textOf(result);
+        }
+        if (uncacheableTools.contains(toolName)) {
+            return textOf(call.get());
+        }
+
+        String key = toolName + " " + canonicalArguments(request.arguments());
+        ToolResultCache.Lookup lookup = cache.lookup(key, ttlMs);
+        if (lookup.result != null) {
+            counters(toolName).hits.increment();
+            log.info("[ToolResultMemoizer] Cache hit for {}", toolName);
+            return lookup.result;
+        }
+        counters(toolName).misses.increment();
+        ToolExecutionResult result = call.get();
+        String text = textOf(result);
+        if (!result.isError()) {
+            cache.put(key, scopeOf(request), text, lookup, Math.max(1, maxEntriesPerSession));
+        }
+        return text;
+    }
+
+    public Map<String, Object> stats() {
+        long hits = 0;
+        long misses = 0;
+        Map<String, Object> perTool = new HashMap<>();
+        for (Map.Entry<String, Counters> entry : counters.entrySet()) {
+            Counters toolCounters = entry.getValue();
+            long toolHits = toolCounters.hits.sum();
+            long toolMisses = toolCounters.misses.sum();
+            hits += toolHits;
+            misses += toolMisses;
+            Map<String, Object> item = new HashMap<>();
+            item.put("hits", toolHits);
+            item.put("misses", toolMisses);
+            item.put("hitRate", hitRate(toolHits, toolMisses));
+            item.put("invalidated", toolCounters.invalidated.sum());
+            perTool.put(entry.getKey(), item);
+        }
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("hitRate", hitRate(hits, misses));
+        stats.put("tools", perTool);
+        return stats;
+    }
+
+    private Counters counters(String toolName) {
+        return counters.computeIfAbsent(toolName, key -> new Counters());
+    }
+
+    private static double hitRate(long hits, long misses) {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    private static String scopeOf(ToolExecutionRequest request) {
+        String toolName = request.name();
+        if (toolName.startsWith("browser")) {
+            return BROWSER_SCOPE;
+        }
+        if ("file_find_by_name".equals(toolName)) {
+            return DIR_SCOPE_PREFIX + pathArgument(request, "path");
+        }
+        if (toolName.startsWith("file")) {
+            return FILE_SCOPE_PREFIX + pathArgument(request, "file");
+        }
+        return "tool:" + toolName;
+    }
+
+    private static Predicate<String> invalidationOf(ToolExecutionRequest request) {
+        String toolName = request.name();
+        if (toolName.startsWith("browser")) {
+            return BROWSER_SCOPE::equals;
+        }
+        if (toolName.startsWith("file")) {
+            String fileScope = FILE_SCOPE_PREFIX + pathArgument(request, "file");
+            return scope -> scope.equals(fileScope) || scope.startsWith(DIR_SCOPE_PREFIX);
+        }
+        if (toolName.startsWith("shell")) {
+            return scope -> scope.startsWith(FILE_SCOPE_PREFIX) || scope.startsWith(DIR_SCOPE_PREFIX);
+        }
+        return scope -> true;
+    }
+
+    private static String pathArgument(ToolExecutionRequest request, String field) {
+        try {
+            JSONObject args = JSON.parseObject(request.arguments());
+            String path = args == null ? null : args.getString(field);
+            return path == null ? "" : Paths.get(path).normalize().toString();
+        } catch (Exception e) {
+            return "";
+        }
+    }
+
+    /**
+     * arguments with sorted keys, so the same call written differently by the model hits the same entry
+     */
+    private static String canonicalArguments(String arguments) {
+        try {
+            JSONObject args = JSON.parseObject(arguments);
+            return args == null ? "" : JSON.toJSONString(args, JSONWriter.Feature.MapSortField);
+        } catch (Exception e) {
+            return StringUtils.defaultString(arguments);
+        }
+    }
+
+    private static Map<String, ToolSpecification> specsOf(Agent agent) {
+        Map<String, ToolSpecification> toolSpecs = new HashMap<>();
+        if (agent.getToolSpecifications() != null) {
+            for (ToolSpecification spec : agent.getToolSpecifications()) {
+                toolSpecs.put(spec.name(), spec);
+            }
+        }
+        return toolSpecs;
+    }
+
+    private static String textOf(ToolExecutionResult result) {
+        String resultText = result.resultText();
+        return resultText != null ? resultText : "(empty result)";
+    }
+
+    private static class Counters {
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder invalidated = new LongAdder();
+    }
+}
@@ -0,0 +1,177 @@
+package cn.nolaurene.cms.service.sandbox.backend.tool;
+
+import cn.nolaurene.cms.service.sandbox.backend.agent.AgentContext;
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.JSONArray;
+import com.alibaba.fastjson2.JSONObject;
+import dev.langchain4j.agent.tool.ToolSpecification;
+import dev.langchain4j.model.chat.request.json.JsonArraySchema;
+import dev.langchain4j.model.chat.request.json.JsonEnumSchema;
+import dev.langchain4j.model.chat.request.json.JsonObjectSchema;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * @author nolaurence
+ * @date 2026/10/17 下午9:40
+ * @description: pick the tool families a step needs, so every request of the step loop only carries their schemas.
+ * The families come from keywords of the step description and the tools the session used recently,
+ * the model can ask for the others with the {@value #REQUEST_TOOLS_TOOL_NAME} tool.
+ */
+@Slf4j
+@Component
+public class ToolRouter {
+
+    public static final String REQUEST_TOOLS_TOOL_NAME = "request_tools";
+
+    /**
+     * endings a keyword may carry and still count as the same word, the empty one first
+     */
+    private static final List<String> INFLECTIONS = List.of("", "s", "es", "d", "ed", "ing");
+
+    /**
+     * 是否按步骤只发送相关的工具族，关闭时每次请求都携带全部工具
+     */
+    @Value("${sandbox.backend.tool-routing.enabled:true}")
+    private boolean enabled;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Families for a step, all of them when routing is off or nothing points to a family.
+     */
+    public int route(String stepDescription, AgentContext context) {
+        if (!enabled) {
+            return ToolFamily.ALL;
+        }
+        int families = ToolFamily.OTHER.bit();
+        String description = stepDescription == null ? "" : stepDescription.toLowerCase(Locale.ROOT);
+        for (ToolFamily family : ToolFamily.values()) {
+            for (String keyword : family.getKeywords()) {
+                if (containsWord(description, keyword)) {
+                    families |= family.bit();
+                    break;
+                }
+            }
+        }
+        if (context != null) {
+            families |= context.recentFamilies();
+        }
+        return families == ToolFamily.OTHER.bit() ? ToolFamily.ALL : families;
+    }
+
+    /**
+     * Tools of the selected families in their original order, with the request tool when some family is left out.
+     * @param ownedFamilies families the caller may use at all, the request tool only offers those
+     */
+    public List<ToolSpecification> select(List<ToolSpecification> toolSpecs, int families, int ownedFamilies) {
+        List<ToolSpecification> selected = new ArrayList<>();
+        int omitted = 0;
+        for (ToolSpecification spec : toolSpecs) {
+            int bit = ToolFamily.of(spec.name()).bit();
+            if ((bit & families) != 0) {
+                selected.add(spec);
+            } else if ((bit & ownedFamilies) != 0) {
+                omitted |= bit;
+            }
+        }
+        if (omitted != 0) {
+            selected.add(buildRequestToolsSpec(ownedFamilies));
+        }
+        return selected;
+    }
+
+    /**
+     * Families asked for by a call of the request tool, unknown names are ignored.
+     */
+    public int parseRequestedFamilies(String arguments) {
+        int families = 0;
+        try {
+            JSONObject args = JSON.parseObject(arguments);
+            JSONArray requested = args == null ? null : args.getJSONArray("families");
+            if (requested == null) {
+                return families;
+            }
+            for (int idx = 0; idx < requested.size(); idx++) {
+                String name = requested.getString(idx);
+                if ("all".equalsIgnoreCase(name)) {
+                    return ToolFamily.ALL;
+                }
+                ToolFamily family = ToolFamily.fromPrefix(name);
+                if (family != null) {
+                    families |= family.bit();
+                }
+            }
+        } catch (Exception e) {
+            log.warn("[ToolRouter] invalid {} arguments: {}", REQUEST_TOOLS_TOOL_NAME, arguments);
+        }
+        return families;
+    }
+
+    private static ToolSpecification buildRequestToolsSpec(int ownedFamilies) {
+        List<String> names = new ArrayList<>();
+        List<String> descriptions = new ArrayList<>();
+        for (ToolFamily family : ToolFamily.values()) {
+            if (family != ToolFamily.OTHER && (ownedFamilies & family.bit()) != 0) {
+                names.add(family.getPrefix());
+                descriptions.add(family.getPrefix() + " (" + family.getDescription() + ")");
+            }
+        }
+        names.add("all");
+        return ToolSpecification.builder()
+                .name(REQUEST_TOOLS_TOOL_NAME)
+                .description("Only the tools that look relevant to the current step are available. "
+                        + "Call this tool to get more tool families when the step needs them: "
+                        + String.join(", ", descriptions) + ".")
+                .parameters(JsonObjectSchema.builder()
+                        .addProperty("families", JsonArraySchema.builder()
+                                .description("Tool families to add.")
+                                .items(JsonEnumSchema.builder().enumValues(names).build())
+                                .build())
+                        .required("families")
+                        .build())
+                .build();
+    }
+
+    /**
+     * Whether the keyword appears as a word of the text, so "test" does not match "latest" nor "java" "javascript".
+     * Plain English inflections of the keyword still match, CJK keywords match anywhere.
+     */
+    static boolean containsWord(String text, String keyword) {
+        if (keyword.isEmpty()) {
+            return false;
+        }
+        boolean wordStart = isWordChar(keyword.charAt(0));
+        boolean wordEnd = isWordChar(keyword.charAt(keyword.length() - 1));
+        int from = 0;
+        int index;
+        while ((index = text.indexOf(keyword, from)) >= 0) {
+            from = index + 1;
+            if (wordStart && index > 0 && isWordChar(text.charAt(index - 1))) {
+                continue;
+            }
+            if (!wordEnd) {
+                return true;
+            }
+            int end = index + keyword.length();
+            for (String suffix : INFLECTIONS) {
+                if (text.startsWith(suffix, end)
+                        && (end + suffix.length() == text.length() || !isWordChar(text.charAt(end + suffix.length())))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isWordChar(char c) {
+        return c < 0x80 && Character.isLetterOrDigit(c);
+    }
+}
@@ -0,0 +1,171 @@
+package cn.nolaurene.cms.service.sandbox.backend.tool;
+
+import dev.langchain4j.agent.tool.ToolSpecification;
+import dev.langchain4j.mcp.client.McpClient;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @author nolaurence
+ * @date 2026/10/17 下午10:10
+ * @description: tool specifications of each worker MCP endpoint, shared by all sessions.
+ * The list of an endpoint is fetched once and refetched after the refresh interval, a new list is only
+ * published when the content hash changed, so sessions keep referencing the same immutable list.
+ */
+@Slf4j
+@Component
+public class ToolSpecRegistry {
+
+    /**
+     * 工具列表的刷新间隔，到期后由下一次访问重新拉取并比较内容哈希，其他会话继续使用当前列表
+     */
+    @Value("${sandbox.backend.tool-registry.refresh-interval-ms:300000}")
+    private long refreshIntervalMs;
+
+    /**
+     * endpoint key -> tools of the endpoint
+     */
+    private final ConcurrentHashMap<String, EndpointTools> endpoints = new ConcurrentHashMap<>();
+
+    /**
+     * joined endpoint keys -> combined tools of the endpoints, rebuilt when a version of them changes
+     */
+    private final ConcurrentHashMap<String, CombinedTools> combined = new ConcurrentHashMap<>();
+
+    /**
+     * Tools of the endpoint of the client. The first caller of an endpoint fetches the list,
+     * a caller finding the list expired refetches it while the others keep using the current one.
+     * @throws RuntimeException when the first fetch of the endpoint fails
+     */
+    public List<ToolSpecification> toolsOf(McpClient client) {
+        EndpointTools tools = endpoints.computeIfAbsent(client.key(), key -> fetch(client, null));
+        if (System.currentTimeMillis() - tools.fetchedAt >= refreshIntervalMs && tools.refreshing.compareAndSet(false, true)) {
+            try {
+                EndpointTools refreshed = fetch(client, tools);
+                endpoints.put(client.key(), refreshed);
+                tools = refreshed;
+            } catch (Exception e) {
+                // keep the current list and try again after another interval
+                log.warn("[ToolSpecRegistry] Failed to refresh tools of {}, keep version {}: {}", client.key(), tools.version, e.getMessage());
+                endpoints.put(client.key(), new EndpointTools(tools.specs, tools.hash, tools.version, System.currentTimeMillis()));
+            }
+        }
+        return tools.specs;
+    }
+
+    /**
+     * Tools of several endpoints in client order, the combined list is shared as long as no endpoint changed.
+     */
+    public List<ToolSpecification> toolsOf(McpClient... clients) {
+        List<List<ToolSpecification>> parts = new ArrayList<>();
+        StringBuilder key = new StringBuilder();
+        long[] versions = new long[clients.length];
+        for (int idx = 0; idx < clients.length; idx++) {
+            parts.add(toolsOf(clients[idx]));
+            versions[idx] = endpoints.get(clients[idx].key()).version;
+            key.append(clients[idx].key()).append('|');
+        }
+        CombinedTools current = combined.get(key.toString());
+        if (current != null && Arrays.equals(current.versions, versions)) {
+            return current.specs;
+        }
+        List<ToolSpecification> specs = new ArrayList<>();
+        parts.forEach(specs::addAll);
+        CombinedTools rebuilt = new CombinedTools(versions, Collections.unmodifiableList(specs));
+        combined.put(key.toString(), rebuilt);
+        return rebuilt.specs;
+    }
+
+    /**
+     * drop the tools of an endpoint, e.g. after the worker was redeployed, the next access fetches them again
+     */
+    public void invalidate(String endpointKey) {
+        endpoints.computeIfPresent(endpointKey, (key, tools) -> tools.expired());
+    }
+
+    public List<Map<String, Object>> stats() {
+        List<Map<String, Object>> stats = new ArrayList<>();
+        endpoints.forEach((key, tools) -> {
+            Map<String, Object> item = new HashMap<>();
+            item.put("endpoint", key);
+            item.put("tools", tools.specs.size());
+            item.put("version", tools.version);
+            item.put("hash", tools.hash);
+            item.put("fetchedAt", tools.fetchedAt);
+            stats.add(item);
+        });
+        return stats;
+    }
+
+    private static EndpointTools fetch(McpClient client, EndpointTools previous) {
+        long start = System.currentTimeMillis();
+        List<ToolSpecification> fetched = client.listTools();
+        if (fetched == null || fetched.isEmpty()) {
+            // a worker still starting lists nothing, never publish that
+            throw new IllegalStateException("No tools found at " + client.key());
+        }
+        String hash = hashOf(fetched);
+        if (previous != null && previous.hash.equals(hash)) {
+            return new EndpointTools(previous.specs, hash, previous.version, System.currentTimeMillis());
+        }
+        long version = previous == null ? 1 : previous.version + 1;
+        log.info("[ToolSpecRegistry] Tools of {} fetched in {} ms: {} tools, version {}",
+                client.key(), System.currentTimeMillis() - start, fetched.size(), version);
+        return new EndpointTools(Collections.unmodifiableList(new ArrayList<>(fetched)), hash, version, System.currentTimeMillis());
+    }
+
+    /**
+     * content hash independent of the order the server lists its tools in
+     */
+    private static String hashOf(List<ToolSpecification> specs) {
+        List<ToolSpecification> sorted = new ArrayList<>(specs);
+        sorted.sort(Comparator.comparing(ToolSpecification::name));
+        StringBuilder sb = new StringBuilder();
+        for (ToolSpecification spec : sorted) {
+            sb.append(spec).append('\n');
+        }
+        return DigestUtils.md5DigestAsHex(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static class EndpointTools {
+        private final List<ToolSpecification> specs;
+        private final String hash;
+        private final long version;
+        private final long fetchedAt;
+        private final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+        private EndpointTools(List<ToolSpecification> specs, String hash, long version, long fetchedAt) {
+            this.specs = specs;
+            this.hash = hash;
+            this.version = version;
+            this.fetchedAt = fetchedAt;
+        }
+
+        private EndpointTools expired() {
+            return new EndpointTools(specs, hash, version, 0);
+        }
+    }
+
+    private static class CombinedTools {
+        private final long[] versions;
+        private final List<ToolSpecification> specs;
+
+        private CombinedTools(long[] versions, List<ToolSpecification> specs) {
+            this.versions = versions;
+            this.specs = specs;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package cn.nolaurene.cms.service.sandbox.backend.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * @author nolaurence
+ * @date 2026/10/17 下午4:30
+ * @description: prompt template compiled once into literal and ${key} segments
+ */
+public class CompiledPrompt {
+
+    static final Pattern PLACEHOLDER_PATTERN = Pattern.compile("\\$\\{([^}]*)\\}");
+
+    private final String name;
+
+    private final String source;
+
+    /**
+     * literal parts, placeholders.get(i) sits between literals.get(i) and literals.get(i + 1)
+     */
+    private final List<String> literals;
+
+    private final List<String> placeholders;
+
+    /**
+     * total length of the literal parts, the initial capacity of a render
+     */
+    private final int literalLength;
+
+    private CompiledPrompt(String name, String source, List<String> literals, List<String> placeholders) {
+        this.name = name;
+        this.source = source;
+        this.literals = literals;
+        this.placeholders = placeholders;
+        this.literalLength = literals.stream().mapToInt(String::length).sum();
+    }
+
+    public static CompiledPrompt compile(String name, String source) {
+        List<String> literals = new ArrayList<>();
+        List<String> placeholders = new ArrayList<>();
+        Matcher matcher = PLACEHOLDER_PATTERN.matcher(source);
+        int last = 0;
+        while (matcher.find()) {
+            literals.add(source.substring(last, matcher.start()));
+            placeholders.add(matcher.group(1));
+            last = matcher.end();
+        }
+        literals.add(source.substring(last));
+        return new CompiledPrompt(name, source, Collections.unmodifiableList(literals), Collections.unmodifiableList(placeholders));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * raw template text
+     */
+    public String getSource() {
+        return source;
+    }
+
+    public boolean hasPlaceholders() {
+        return !placeholders.isEmpty();
+    }
+
+    /**
+     * Render the template, unknown keys keep their original ${key} form.
+     */
+    public String render(Map<String, Object> context) {
+        if (placeholders.isEmpty()) {
+            return source;
+        }
+        StringBuilder sb = new StringBuilder(literalLength + 64 * placeholders.size());
+        for (int i = 0; i < placeholders.size(); i++) {
+            sb.append(literals.get(i));
+            String key = placeholders.get(i);
+            Object value = context == null ? null : context.get(key);
+            if (value != null) {
+                sb.append(value);
+            } else {
+                sb.append("${").append(key).append('}');
+            }
+        }
+        sb.append(literals.get(literals.size() - 1));
+        return sb.toString();
+    }
+}
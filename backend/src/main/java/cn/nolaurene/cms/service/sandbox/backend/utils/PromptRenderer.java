@@ -3,23 +3,18 @@ package cn.nolaurene.cms.service.sandbox.backend.utils;
 import cn.nolaurene.cms.common.sandbox.backend.llm.ChatMessage;
 import cn.nolaurene.cms.service.sandbox.backend.message.Step;
 import org.apache.commons.collections4.CollectionUtils;
-import org.springframework.core.io.ClassPathResource;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class PromptRenderer {
 
     public static String render(String input, Map<String, Object> context) {
-        // 定义正则表达式，匹配 ${key} 格式
-        Pattern pattern = Pattern.compile("\\$\\{([^}]*)\\}");
-        Matcher matcher = pattern.matcher(input);
+        // 匹配 ${key} 格式，正则在 CompiledPrompt 中预编译
+        Matcher matcher = CompiledPrompt.PLACEHOLDER_PATTERN.matcher(input);
         StringBuilder result = new StringBuilder();
 
         while (matcher.find()) {
@@ -79,8 +74,13 @@ public class PromptRenderer {
     }
 
     public static String loadPrompt(String filePathString) throws IOException {
-        ClassPathResource resource = new ClassPathResource(filePathString);
-        InputStream inputStream = resource.getInputStream();
-        return new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+        return PromptTemplateCache.get(filePathString).getSource();
+    }
+
+    /**
+     * Render a cached, pre-compiled template, prefer this over render(loadPrompt(...), context).
+     */
+    public static String renderPrompt(String filePathString, Map<String, Object> context) throws IOException {
+        return PromptTemplateCache.get(filePathString).render(context);
     }
 }
@@ -0,0 +1,86 @@
+package cn.nolaurene.cms.service.sandbox.backend.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author nolaurence
+ * @date 2026/10/17 下午4:30
+ * @description: compiled prompt templates cached by classpath name, e.g. prompts/system.jinja
+ */
+@Slf4j
+public class PromptTemplateCache {
+
+    private static final String PROMPT_PREFIX = "prompts/";
+
+    private static final ConcurrentHashMap<String, CompiledPrompt> TEMPLATES = new ConcurrentHashMap<>();
+
+    /**
+     * 开发环境热加载时优先从该目录读取模板，为空时只读 classpath
+     */
+    private static volatile Path overrideDir;
+
+    private PromptTemplateCache() {
+    }
+
+    public static CompiledPrompt get(String name) throws IOException {
+        try {
+            return TEMPLATES.computeIfAbsent(name, key -> {
+                try {
+                    return CompiledPrompt.compile(key, read(key));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Point template loading at a directory holding the prompts/ sources, null restores classpath only loading.
+     */
+    public static void setOverrideDir(Path dir) {
+        overrideDir = dir;
+        invalidateAll();
+    }
+
+    public static void invalidate(String name) {
+        if (TEMPLATES.remove(name) != null) {
+            log.info("[PromptTemplateCache] template invalidated: {}", name);
+        }
+    }
+
+    public static void invalidateAll() {
+        TEMPLATES.clear();
+    }
+
+    /**
+     * Map a file name inside the override directory to its cache key.
+     */
+    public static String nameOf(String fileName) {
+        return PROMPT_PREFIX + fileName;
+    }
+
+    private static String read(String name) throws IOException {
+        Path dir = overrideDir;
+        if (dir != null && name.startsWith(PROMPT_PREFIX)) {
+            Path file = dir.resolve(name.substring(PROMPT_PREFIX.length()));
+            if (Files.isRegularFile(file)) {
+                return Files.readString(file, StandardCharsets.UTF_8);
+            }
+        }
+        ClassPathResource resource = new ClassPathResource(name);
+        try (InputStream inputStream = resource.getInputStream()) {
+            return new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -6,6 +6,7 @@ import org.apache.commons.lang3.StringUtils;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -17,13 +18,24 @@ import java.util.stream.Collectors;
  */
 public class ReActParser {
 
+    private static final Pattern THINK_PATTERN = Pattern.compile("<think>(.*?)</think>", Pattern.DOTALL);
+    private static final Pattern STEP_PATTERN = Pattern.compile("<step>(.*?)</step>", Pattern.DOTALL);
+    private static final Pattern ID_PATTERN = Pattern.compile("<id>(.*?)</id>");
+    private static final Pattern DESCRIPTION_PATTERN = Pattern.compile("<description>(.*?)</description>", Pattern.DOTALL);
+    private static final Pattern DEPENDS_ON_PATTERN = Pattern.compile("<depends_on>(.*?)</depends_on>", Pattern.DOTALL);
+    private static final Pattern NUMBER_PATTERN = Pattern.compile("\\d+");
+
+    /**
+     * compiled tag patterns, tag names come from code so the map stays small
+     */
+    private static final ConcurrentHashMap<String, Pattern> TAG_PATTERNS = new ConcurrentHashMap<>();
+
     public static String parseThinking(String content) {
         if (StringUtils.isBlank(content)) {
             return null;
         }
 
-        Pattern thinkPattern = Pattern.compile("<think>(.*?)</think>", Pattern.DOTALL);
-        Matcher thinkMatcher = thinkPattern.matcher(content);
+        Matcher thinkMatcher = THINK_PATTERN.matcher(content);
 
         if (thinkMatcher.find()) {
             return thinkMatcher.group(1).trim();
@@ -35,7 +47,8 @@ public class ReActParser {
         if (StringUtils.isBlank(content)) {
             return null;
         }
-        Pattern goalPattern = Pattern.compile("<" + tagName + ">(.*?)</" + tagName + ">", Pattern.DOTALL);
+        Pattern goalPattern = TAG_PATTERNS.computeIfAbsent(tagName,
+                tag -> Pattern.compile("<" + Pattern.quote(tag) + ">(.*?)</" + Pattern.quote(tag) + ">", Pattern.DOTALL));
         Matcher goalMatcher = goalPattern.matcher(content);
 
         if (goalMatcher.find()) {
@@ -46,17 +59,14 @@ public class ReActParser {
 
     public static List<Step> parseStepListFromContent(String content) {
         List<Step> toolCalls = new ArrayList<>();
-        Pattern stepsPattern = Pattern.compile("<step>(.*?)</step>", Pattern.DOTALL);
-        Matcher stepsMatcher = stepsPattern.matcher(content);
+        Matcher stepsMatcher = STEP_PATTERN.matcher(content);
 
         while (stepsMatcher.find()) {
             String stepBlock = stepsMatcher.group(1);
 
-            Pattern idPattern = Pattern.compile("<id>(.*?)</id>");
-            Pattern descriptionPattern = Pattern.compile("<description>(.*?)</description>", Pattern.DOTALL);
-
-            Matcher idMatcher = idPattern.matcher(stepBlock);
-            Matcher descriptionMatcher = descriptionPattern.matcher(stepBlock);
+            Matcher idMatcher = ID_PATTERN.matcher(stepBlock);
+            Matcher descriptionMatcher = DESCRIPTION_PATTERN.matcher(stepBlock);
+            Matcher dependsOnMatcher = DEPENDS_ON_PATTERN.matcher(stepBlock);
 
             String id = idMatcher.find() ? idMatcher.group(1).trim() : null;
             String description = descriptionMatcher.find() ? descriptionMatcher.group(1).trim() : null;
@@ -65,12 +75,29 @@ public class ReActParser {
                 Step step = new Step();
                 step.setId(Integer.valueOf(id));
                 step.setDescription(description);
+                // no tag leaves the dependencies unstated (null), an empty tag states there are none
+                step.setDependsOn(dependsOnMatcher.find() ? parseStepIds(dependsOnMatcher.group(1)) : null);
                 toolCalls.add(step);
             }
         }
         return toolCalls;
     }
 
+    /**
+     * step ids of a depends_on tag, accepts "1, 2", "1 2" or nested id tags
+     */
+    private static List<Integer> parseStepIds(String content) {
+        List<Integer> ids = new ArrayList<>();
+        Matcher numberMatcher = NUMBER_PATTERN.matcher(content);
+        while (numberMatcher.find()) {
+            Integer id = Integer.valueOf(numberMatcher.group());
+            if (!ids.contains(id)) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
     public static Plan parsePlan(String content) {
         String planString = parseStringOfTag(content, "plan");
         String message = parseStringOfTag(planString, "message");
@@ -11,7 +11,7 @@ import {ArrowDown, Bot, Clock, ChevronUp, ChevronDown, PanelLeft, Settings} from
 import {useNavigate, useLocation} from "react-router";
 import { useParams } from 'umi';
 import StepSuccessIcon from '@/components/icons/StepSuccessIcon';
-import type {MessageEventData, StepEventData, ToolEventData, PlanEventData} from '@/types/sseEvent';
+import type {MessageEventData, StepEventData, ToolEventData, PlanEventData, QueueEventData} from '@/types/sseEvent';
 // import '@/assets/global.css';
 // import '@/assets/theme.css';
 import {useStyles} from '@/assets/chatPageStyle';
@@ -274,6 +274,15 @@ const ChatComponent: React.FC = () => {
     ]);
   };
 
+  // 处理排队事件，排队期间持续提示当前位置
+  const handleQueueEvent = (queueData: QueueEventData) => {
+    if (queueData.position > 0) {
+      antdMessage.open({key: 'run-queue', type: 'loading', content: queueData.message, duration: 0});
+    } else {
+      antdMessage.destroy('run-queue');
+    }
+  };
+
   // 事件处理
   const handleEvent = (event: any) => {
     if (event.event === 'message') {
@@ -285,7 +294,10 @@ const ChatComponent: React.FC = () => {
     } else if (event.event === 'done') {
       setIsLoading(false);
     } else if (event.event === 'error') {
+      antdMessage.destroy('run-queue');
       handleErrorEvent(event.data);
+    } else if (event.event === 'queue') {
+      handleQueueEvent(event.data);
     } else if (event.event === 'title') {
       setTitle(event.data.title);
     } else if (event.event === 'plan') {
@@ -4,7 +4,16 @@ import { useNavigate } from 'react-router';
 import { Bot, ArrowLeft, Save, RotateCcw } from 'lucide-react';
 import ManusLogoTextIcon from '@/components/icons/ManusLogoTextIcon';
 import { createStyles } from 'antd-style';
-import { getLlmConfig, updateLlmConfig } from '@/services/api/settings';
+import { getLlmConfig, updateLlmConfig, LlmPhaseModelConfig } from '@/services/api/settings';
+
+// 可单独配置模型的 agent 阶段，未配置的阶段使用上方的默认模型
+const PHASES: { key: string; label: string }[] = [
+  { key: 'planner', label: '规划' },
+  { key: 'plan_updater', label: '计划更新' },
+  { key: 'executor', label: '执行' },
+  { key: 'checker', label: '完成检查' },
+  { key: 'concluder', label: '总结' },
+];
 
 const useStyles = createStyles((utils) => {
   const css = utils.css;
@@ -108,6 +117,16 @@ const SettingsPage: React.FC = () => {
         endpoint: config.data?.endpoint || '',
         apiKey: config.data?.apiKey || '',
         modelName: config.data?.modelName || '',
+        phaseModels: Object.fromEntries(
+          PHASES.map(({ key }) => {
+            const phase = config.data?.phaseModels?.[key];
+            return [key, {
+              modelName: phase?.modelName || '',
+              endpoint: phase?.endpoint || '',
+              apiKey: phase?.apiKey || '',
+            }];
+          }),
+        ),
       });
     } catch (error) {
       console.error('加载配置失败:', error);
@@ -119,6 +138,7 @@ const SettingsPage: React.FC = () => {
     endpoint: string;
     apiKey: string;
     modelName: string;
+    phaseModels?: Record<string, LlmPhaseModelConfig>;
   }) => {
     if (!values.endpoint.trim()) {
       message.warning('请输入模型端点地址');
@@ -133,12 +153,34 @@ const SettingsPage: React.FC = () => {
       return;
     }
 
+    // 只提交填写了模型名称的阶段，端点与 API Key 留空时沿用默认配置
+    const phaseModels: Record<string, LlmPhaseModelConfig> = {};
+    for (const { key, label } of PHASES) {
+      const phase = values.phaseModels?.[key];
+      const modelName = phase?.modelName?.trim() || '';
+      const endpoint = phase?.endpoint?.trim() || '';
+      const apiKey = phase?.apiKey?.trim() || '';
+      if (!modelName) {
+        if (endpoint || apiKey) {
+          message.warning(`请输入${label}阶段的模型名称`);
+          return;
+        }
+        continue;
+      }
+      phaseModels[key] = {
+        modelName,
+        ...(endpoint ? { endpoint } : {}),
+        ...(apiKey ? { apiKey } : {}),
+      };
+    }
+
     setLoading(true);
     try {
       await updateLlmConfig({
         endpoint: values.endpoint.trim(),
         apiKey: values.apiKey.trim(),
         modelName: values.modelName.trim(),
+        phaseModels,
       });
       message.success('保存成功');
     } catch (error) {
@@ -197,6 +239,24 @@ const SettingsPage: React.FC = () => {
               placeholder="例如: Qwen3-Next-80B-A3B-Instruct-int4g-fp16-mixed"
             />
           </Form.Item>
+          <Divider style={{ margin: '16px 0' }} />
+          <div className={styles.sectionTitle}>按阶段配置模型</div>
+          <div className={styles.description} style={{ marginBottom: 16 }}>
+            可选，为各阶段指定不同的模型；模型名称留空的阶段使用默认模型，端点与 API Key 留空时沿用默认配置
+          </div>
+          {PHASES.map(({ key, label }) => (
+            <Space key={key} align="start" style={{ display: 'flex' }} wrap>
+              <Form.Item name={['phaseModels', key, 'modelName']} label={`${label}模型名称`}>
+                <Input placeholder="使用默认模型" />
+              </Form.Item>
+              <Form.Item name={['phaseModels', key, 'endpoint']} label="端点地址">
+                <Input placeholder="使用默认端点" />
+              </Form.Item>
+              <Form.Item name={['phaseModels', key, 'apiKey']} label="API Key">
+                <Input.Password placeholder="使用默认 API Key" />
+              </Form.Item>
+            </Space>
+          ))}
           <div className={styles.buttonGroup}>
             <Button
               type="primary"
@@ -1,9 +1,17 @@
 import request from '../request';
 
+export interface LlmPhaseModelConfig {
+  endpoint?: string;
+  apiKey?: string;
+  modelName: string;
+}
+
 export interface LlmConfig {
   endpoint: string;
   apiKey: string;
   modelName: string;
+  /** 按阶段配置的模型，key 为 planner / plan_updater / executor / checker / concluder，未配置的阶段使用默认模型 */
+  phaseModels?: Record<string, LlmPhaseModelConfig>;
 }
 
 /**
@@ -1,6 +1,6 @@
 export type SSEEvent = {
-  event: 'tool' | 'step' | 'message' | 'error' | 'done' | 'title';
-  data: ToolEventData | StepEventData | MessageEventData | ErrorEventData | DoneEventData | TitleEventData;
+  event: 'tool' | 'step' | 'message' | 'error' | 'done' | 'title' | 'queue';
+  data: ToolEventData | StepEventData | MessageEventData | ErrorEventData | DoneEventData | TitleEventData | QueueEventData;
 }
 
 export interface ToolEventData {
@@ -40,6 +40,13 @@ export interface TitleEventData {
   title: string;
 }
 
+export interface QueueEventData {
+  timestamp: number;
+  // 1-based position in the run queue, 0 once the run starts
+  position: number;
+  message: string;
+}
+
 export interface PlanEventData {
   timestamp: number;
   steps: StepEventData[];
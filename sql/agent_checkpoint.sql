@@ -0,0 +1,19 @@
+-- Agent Checkpoint Table
+-- 在步骤边界记录 agent 运行状态（计划及步骤结果、压缩后的记忆、状态机位置），节点重启或执行线程异常后可在任意节点恢复
+
+CREATE TABLE IF NOT EXISTS `agent_checkpoint` (
+    `id` BIGINT(20) NOT NULL AUTO_INCREMENT COMMENT '主键ID',
+    `agent_id` VARCHAR(64) NOT NULL COMMENT 'Agent ID（Session ID）',
+    `user_id` VARCHAR(64) DEFAULT NULL COMMENT '用户ID',
+    `input` TEXT COMMENT '本次运行的用户输入',
+    `agent_status` VARCHAR(32) NOT NULL COMMENT '恢复后进入的状态机状态',
+    `round` INT(11) NOT NULL DEFAULT 1 COMMENT '恢复后开始的轮次',
+    `plan` MEDIUMTEXT COMMENT '计划 JSON，包含步骤状态和结果',
+    `memory` MEDIUMTEXT COMMENT '压缩后的记忆 JSON，包含摘要和窗口内消息',
+    `run_status` VARCHAR(16) NOT NULL COMMENT '运行状态：RUNNING/COMPLETED',
+    `server_ip` VARCHAR(64) DEFAULT NULL COMMENT '写入检查点的后端服务器IP',
+    `gmt_create` DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
+    `gmt_modified` DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+    PRIMARY KEY (`id`),
+    UNIQUE KEY `uk_agent_id` (`agent_id`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COMMENT='Agent运行检查点表';
@@ -0,0 +1,13 @@
+-- Backend Node Table
+-- 后端节点成员表，各节点定期写入心跳，心跳未过期的节点组成一致性哈希环，agent 按 agentId 分配到环上的节点
+
+CREATE TABLE IF NOT EXISTS `backend_node` (
+    `id` BIGINT(20) NOT NULL AUTO_INCREMENT COMMENT '主键ID',
+    `server_ip` VARCHAR(64) NOT NULL COMMENT '节点IP',
+    `server_port` INT(11) NOT NULL COMMENT '节点端口',
+    `gmt_heartbeat` DATETIME(3) NOT NULL COMMENT '最近一次心跳时间，取数据库时间',
+    `gmt_create` DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
+    `gmt_modified` DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+    PRIMARY KEY (`id`),
+    UNIQUE KEY `uk_server` (`server_ip`, `server_port`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COMMENT='后端节点成员表';
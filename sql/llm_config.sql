@@ -5,6 +5,7 @@ CREATE TABLE IF NOT EXISTS `llm_config` (
     `endpoint` VARCHAR(500) NOT NULL COMMENT 'LLM服务端点',
     `api_key` VARCHAR(500) NOT NULL COMMENT 'API密钥',
     `model_name` VARCHAR(200) NOT NULL COMMENT '模型名称',
+    `phase_models` TEXT DEFAULT NULL COMMENT '按阶段配置的模型(JSON)，key为planner/plan_updater/executor/checker/concluder',
     `gmt_create` DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
     `gmt_modified` DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
     `is_delete` TINYINT(1) NOT NULL DEFAULT 0 COMMENT '是否删除 0-未删除 1-已删除',
@@ -12,3 +13,6 @@ CREATE TABLE IF NOT EXISTS `llm_config` (
     UNIQUE KEY `uk_user_id` (`user_id`, `is_delete`),
     KEY `idx_user_id` (`user_id`)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COMMENT='LLM配置表';
+
+-- 已有表升级：增加按阶段配置的模型
+-- ALTER TABLE `llm_config` ADD COLUMN `phase_models` TEXT DEFAULT NULL COMMENT '按阶段配置的模型(JSON)，key为planner/plan_updater/executor/checker/concluder' AFTER `model_name`;